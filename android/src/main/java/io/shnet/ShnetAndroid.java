@@ -0,0 +1,693 @@
+package io.shnet;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.google.zxing.WriterException;
+
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class ShnetAndroid {
+    public static final String ACTION_START = "io.shnet.action.START";
+    public static final String ACTION_STOP = "io.shnet.action.STOP";
+
+    private ShnetAndroid() {
+    }
+
+    public interface HandlerFactory {
+        Shnet.Handler create(Context context);
+    }
+
+    public static void start(Context context, Shnet.Config config, Shnet.Handler handler) {
+        if (context == null || config == null || handler == null) {
+            throw new IllegalArgumentException("Missing context/config/handler");
+        }
+        Context appContext = context.getApplicationContext();
+        ShnetRuntime.setEphemeral(appContext, config, handler);
+        Intent intent = new Intent(appContext, ShnetNodeService.class);
+        intent.setAction(ACTION_START);
+        startServiceCompat(appContext, intent);
+    }
+
+    public static void startPersistent(Context context, Shnet.Config config,
+                                       Class<? extends HandlerFactory> factoryClass) {
+        if (context == null || config == null || factoryClass == null) {
+            throw new IllegalArgumentException("Missing context/config/factory");
+        }
+        Context appContext = context.getApplicationContext();
+        ShnetRuntime.setPersistent(appContext, config, factoryClass);
+        Intent intent = new Intent(appContext, ShnetNodeService.class);
+        intent.setAction(ACTION_START);
+        startServiceCompat(appContext, intent);
+    }
+
+    public static void stop(Context context) {
+        if (context == null) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        Intent intent = new Intent(appContext, ShnetNodeService.class);
+        intent.setAction(ACTION_STOP);
+        appContext.startService(intent);
+    }
+
+    public static boolean isRunning(Context context) {
+        return ShnetRuntime.isRunning(context);
+    }
+
+    public static String lastError(Context context) {
+        return ShnetRuntime.getLastError(context);
+    }
+
+    public static long lastStartAttempt(Context context) {
+        return ShnetRuntime.getLastStartAttempt(context);
+    }
+
+    // The node served by this process, or null while the service is not running it.
+    public static Shnet.Node node() {
+        return ShnetNodeService.node();
+    }
+
+    public static List<Shnet.Link> links(Context context, int port, Shnet.LinkPreference preference) {
+        return links(context, port, preference, false);
+    }
+
+    public static List<Shnet.Link> links(Context context, Shnet.Config config, Shnet.LinkPreference preference) {
+        if (config == null) {
+            return Collections.emptyList();
+        }
+        return links(context, config.port, preference, config.tlsConfig != null);
+    }
+
+    private static List<Shnet.Link> links(Context context, int port, Shnet.LinkPreference preference, boolean tls) {
+        String scheme = tls ? "https" : "http";
+        List<Shnet.Link> results = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        if (context != null) {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (cm != null) {
+                Network[] networks = cm.getAllNetworks();
+                if (networks != null) {
+                    for (Network network : networks) {
+                        NetworkCapabilities caps = cm.getNetworkCapabilities(network);
+                        if (caps != null && (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                                || caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET))) {
+                            collectActiveLinks(cm, network, port, scheme, results, seen);
+                        }
+                    }
+                }
+                if (results.isEmpty()) {
+                    Network active = cm.getActiveNetwork();
+                    if (active != null) {
+                        collectActiveLinks(cm, active, port, scheme, results, seen);
+                    }
+                }
+            }
+        }
+        return Shnet.completeLinks(port, scheme, results, seen, preference);
+    }
+
+    public static Bitmap qr(String text, int size) throws WriterException {
+        return Bitmap.createBitmap(Shnet.qrPixels(text, size), size, size, Bitmap.Config.RGB_565);
+    }
+
+    private static void startServiceCompat(Context context, Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    private static void collectActiveLinks(ConnectivityManager cm, Network network, int port,
+                                           String scheme,
+                                           List<Shnet.Link> results, Set<String> seen) {
+        LinkProperties props = cm.getLinkProperties(network);
+        if (props == null) {
+            return;
+        }
+        String ifaceName = props.getInterfaceName();
+        for (LinkAddress link : props.getLinkAddresses()) {
+            InetAddress address = link.getAddress();
+            if (address == null || address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || address.isMulticastAddress() || address.isLinkLocalAddress()) {
+                continue;
+            }
+            Shnet.addLink(address, ifaceName, port, scheme, results, seen);
+        }
+    }
+}
+
+final class ShnetRuntime {
+    private static final String PREFS_NAME = "shnet_runtime";
+    private static final String KEY_PERSISTENT = "persistent";
+    private static final String KEY_RUNNING = "running";
+    private static final String KEY_ERROR = "error";
+    private static final String KEY_LAST_START = "last_start";
+    private static final String KEY_CONFIG_SET = "config_set";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_ICON = "icon";
+    private static final String KEY_TITLE = "title";
+    private static final String KEY_TEXT = "text";
+    private static final String KEY_CHANNEL_ID = "channel_id";
+    private static final String KEY_CHANNEL_NAME = "channel_name";
+    private static final String KEY_CHANNEL_DESC = "channel_desc";
+    private static final String KEY_STOP_LABEL = "stop_label";
+    private static final String KEY_BIND_MODE = "bind_mode";
+    private static final String KEY_ENGINE = "engine";
+    private static final String KEY_READ_TIMEOUT = "read_timeout";
+    private static final String KEY_MAX_BODY = "max_body";
+    private static final String KEY_STREAM_BODIES = "stream_bodies";
+    private static final String KEY_MAX_STREAMED_BODY = "max_streamed_body";
+    private static final String KEY_WORKERS = "workers";
+    private static final String KEY_EXECUTOR = "executor";
+    private static final String KEY_KEEP_ALIVE_TIMEOUT = "keep_alive_timeout";
+    private static final String KEY_MAX_REQUESTS = "max_requests";
+    private static final String KEY_MAX_QUEUED = "max_queued";
+    private static final String KEY_MAX_QUEUE_WAIT = "max_queue_wait";
+    private static final String KEY_RETRY_AFTER = "retry_after";
+    private static final String KEY_ASYNC_TIMEOUT = "async_timeout";
+    private static final String KEY_COMPRESS = "compress";
+    private static final String KEY_COMPRESS_MIN = "compress_min";
+    private static final String KEY_COMPRESS_LEVEL = "compress_level";
+    private static final String KEY_COMPRESS_TYPES = "compress_types";
+    private static final String KEY_CACHE_CONTROL = "cache_control";
+    private static final String KEY_FILE_CACHE_CONTROL = "file_cache_control";
+    private static final String KEY_BODY_ETAGS = "body_etags";
+    private static final String KEY_RESPONSE_CACHE_BYTES = "response_cache_bytes";
+    private static final String KEY_RESPONSE_CACHE_TTL = "response_cache_ttl";
+    private static final String KEY_RESPONSE_CACHE_VARY = "response_cache_vary";
+    private static final String KEY_METRICS_PATH = "metrics_path";
+    private static final String KEY_FACTORY = "factory";
+    private static final String KEY_HTTP2 = "http2";
+    private static final String KEY_MAX_CONNECTION_THREADS = "max_connection_threads";
+    private static final String KEY_WS_MAX_MESSAGE = "ws_max_message";
+    private static final String KEY_WS_MAX_QUEUED = "ws_max_queued";
+    private static final String KEY_WS_PING_INTERVAL = "ws_ping_interval";
+    private static final String KEY_WS_COMPRESSION = "ws_compression";
+    private static final String KEY_TLS_ENABLED = "tls_enabled";
+    private static final String KEY_TLS_SOURCE = "tls_source";
+    private static final String KEY_TLS_RES_ID = "tls_res_id";
+    private static final String KEY_TLS_PATH = "tls_path";
+    private static final String KEY_TLS_STORE_TYPE = "tls_store_type";
+    private static final String KEY_TLS_STORE_PASS = "tls_store_pass";
+    private static final String KEY_TLS_KEY_PASS = "tls_key_pass";
+    private static final String KEY_TLS_SESSION_CACHE = "tls_session_cache";
+    private static final String KEY_TLS_SESSION_TIMEOUT = "tls_session_timeout";
+    private static final String KEY_TLS_TICKETS = "tls_tickets";
+    private static final String KEY_TLS_PROTOCOLS = "tls_protocols";
+    private static final String KEY_TLS_CIPHERS = "tls_ciphers";
+
+    private static volatile Shnet.Config config;
+    private static volatile Shnet.Handler handler;
+    private static volatile Class<? extends ShnetAndroid.HandlerFactory> factoryClass;
+
+    static void setEphemeral(Context context, Shnet.Config config, Shnet.Handler handler) {
+        ShnetRuntime.config = config;
+        ShnetRuntime.handler = handler;
+        ShnetRuntime.factoryClass = null;
+        clearPersistent(context);
+    }
+
+    static void setPersistent(Context context, Shnet.Config config,
+                              Class<? extends ShnetAndroid.HandlerFactory> factoryClass) {
+        ShnetRuntime.config = config;
+        ShnetRuntime.handler = null;
+        ShnetRuntime.factoryClass = factoryClass;
+        savePersistent(context, config, factoryClass);
+    }
+
+    static Shnet.Config loadConfig(Context context) {
+        if (config != null) {
+            return config;
+        }
+        return readConfig(context);
+    }
+
+    static Shnet.Handler loadHandler(Context context) {
+        if (handler != null) {
+            return handler;
+        }
+        Class<? extends ShnetAndroid.HandlerFactory> factory = factoryClass;
+        if (factory == null) {
+            factory = readFactoryClass(context);
+        }
+        if (factory == null) {
+            return null;
+        }
+        try {
+            ShnetAndroid.HandlerFactory instance = factory.getDeclaredConstructor().newInstance();
+            return instance.create(context.getApplicationContext());
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    static boolean isPersistent(Context context) {
+        if (context == null) {
+            return false;
+        }
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_PERSISTENT, false);
+    }
+
+    static boolean isRunning(Context context) {
+        if (context == null) {
+            return false;
+        }
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(KEY_RUNNING, false);
+    }
+
+    static String getLastError(Context context) {
+        if (context == null) {
+            return "";
+        }
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_ERROR, "");
+    }
+
+    static long getLastStartAttempt(Context context) {
+        if (context == null) {
+            return 0L;
+        }
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_LAST_START, 0L);
+    }
+
+    static void setRunning(Context context, boolean running) {
+        if (context == null) {
+            return;
+        }
+        context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(KEY_RUNNING, running)
+                .apply();
+    }
+
+    static void setLastError(Context context, String message) {
+        if (context == null) {
+            return;
+        }
+        context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString(KEY_ERROR, message == null ? "" : message)
+                .apply();
+    }
+
+    static void setLastStartAttempt(Context context, long timestamp) {
+        if (context == null) {
+            return;
+        }
+        context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putLong(KEY_LAST_START, timestamp)
+                .apply();
+    }
+
+    static void clear(Context context) {
+        config = null;
+        handler = null;
+        factoryClass = null;
+        if (context == null) {
+            return;
+        }
+        context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .clear()
+                .apply();
+    }
+
+    private static void clearPersistent(Context context) {
+        if (context == null) {
+            return;
+        }
+        context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .remove(KEY_PERSISTENT)
+                .remove(KEY_CONFIG_SET)
+                .remove(KEY_PORT)
+                .remove(KEY_ICON)
+                .remove(KEY_TITLE)
+                .remove(KEY_TEXT)
+                .remove(KEY_CHANNEL_ID)
+                .remove(KEY_CHANNEL_NAME)
+                .remove(KEY_CHANNEL_DESC)
+                .remove(KEY_STOP_LABEL)
+                .remove(KEY_BIND_MODE)
+                .remove(KEY_ENGINE)
+                .remove(KEY_READ_TIMEOUT)
+                .remove(KEY_MAX_BODY)
+                .remove(KEY_STREAM_BODIES)
+                .remove(KEY_MAX_STREAMED_BODY)
+                .remove(KEY_WORKERS)
+                .remove(KEY_EXECUTOR)
+                .remove(KEY_KEEP_ALIVE_TIMEOUT)
+                .remove(KEY_MAX_REQUESTS)
+                .remove(KEY_MAX_QUEUED)
+                .remove(KEY_MAX_QUEUE_WAIT)
+                .remove(KEY_RETRY_AFTER)
+                .remove(KEY_ASYNC_TIMEOUT)
+                .remove(KEY_COMPRESS)
+                .remove(KEY_COMPRESS_MIN)
+                .remove(KEY_COMPRESS_LEVEL)
+                .remove(KEY_COMPRESS_TYPES)
+                .remove(KEY_CACHE_CONTROL)
+                .remove(KEY_FILE_CACHE_CONTROL)
+                .remove(KEY_BODY_ETAGS)
+                .remove(KEY_RESPONSE_CACHE_BYTES)
+                .remove(KEY_RESPONSE_CACHE_TTL)
+                .remove(KEY_RESPONSE_CACHE_VARY)
+                .remove(KEY_METRICS_PATH)
+                .remove(KEY_HTTP2)
+                .remove(KEY_MAX_CONNECTION_THREADS)
+                .remove(KEY_WS_MAX_MESSAGE)
+                .remove(KEY_WS_MAX_QUEUED)
+                .remove(KEY_WS_PING_INTERVAL)
+                .remove(KEY_WS_COMPRESSION)
+                .remove(KEY_FACTORY)
+                .remove(KEY_TLS_ENABLED)
+                .remove(KEY_TLS_SOURCE)
+                .remove(KEY_TLS_RES_ID)
+                .remove(KEY_TLS_PATH)
+                .remove(KEY_TLS_STORE_TYPE)
+                .remove(KEY_TLS_STORE_PASS)
+                .remove(KEY_TLS_KEY_PASS)
+                .remove(KEY_TLS_SESSION_CACHE)
+                .remove(KEY_TLS_SESSION_TIMEOUT)
+                .remove(KEY_TLS_TICKETS)
+                .remove(KEY_TLS_PROTOCOLS)
+                .remove(KEY_TLS_CIPHERS)
+                .apply();
+    }
+
+    private static void savePersistent(Context context, Shnet.Config config,
+                                       Class<? extends ShnetAndroid.HandlerFactory> factoryClass) {
+        if (context == null || config == null || factoryClass == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(KEY_PERSISTENT, true)
+                .putBoolean(KEY_CONFIG_SET, true)
+                .putInt(KEY_PORT, config.port)
+                .putInt(KEY_ICON, config.notificationIconRes)
+                .putString(KEY_TITLE, config.notificationTitle)
+                .putString(KEY_TEXT, config.notificationText)
+                .putString(KEY_CHANNEL_ID, config.channelId)
+                .putString(KEY_CHANNEL_NAME, config.channelName)
+                .putString(KEY_CHANNEL_DESC, config.channelDescription)
+                .putString(KEY_STOP_LABEL, config.stopActionLabel)
+                .putString(KEY_BIND_MODE, config.bindMode.name())
+                .putString(KEY_ENGINE, config.engine.name())
+                .putInt(KEY_READ_TIMEOUT, config.readTimeoutMs)
+                .putInt(KEY_MAX_BODY, config.maxBodyBytes)
+                .putBoolean(KEY_STREAM_BODIES, config.streamRequestBodies)
+                .putLong(KEY_MAX_STREAMED_BODY, config.maxStreamedBodyBytes)
+                .putInt(KEY_WORKERS, config.workerThreads)
+                .putString(KEY_EXECUTOR, config.executorFactory instanceof Shnet.WorkerPool
+                        ? ((Shnet.WorkerPool) config.executorFactory).name()
+                        : config.executorFactory.getClass().getName())
+                .putInt(KEY_KEEP_ALIVE_TIMEOUT, config.keepAliveTimeoutMs)
+                .putInt(KEY_MAX_REQUESTS, config.maxRequestsPerConnection)
+                .putInt(KEY_MAX_QUEUED, config.maxQueuedRequests)
+                .putInt(KEY_MAX_QUEUE_WAIT, config.maxQueueWaitMs)
+                .putInt(KEY_RETRY_AFTER, config.retryAfterSeconds)
+                .putInt(KEY_ASYNC_TIMEOUT, config.asyncTimeoutMs)
+                .putBoolean(KEY_COMPRESS, config.compressResponses)
+                .putInt(KEY_COMPRESS_MIN, config.compressionMinBytes)
+                .putInt(KEY_COMPRESS_LEVEL, config.compressionLevel)
+                .putString(KEY_COMPRESS_TYPES, TextUtils.join(",", config.compressibleTypes))
+                .putString(KEY_CACHE_CONTROL, config.cacheControl)
+                .putString(KEY_FILE_CACHE_CONTROL, config.fileCacheControl)
+                .putString(KEY_BODY_ETAGS, config.bodyEtags.name())
+                .putLong(KEY_RESPONSE_CACHE_BYTES, config.responseCacheBytes)
+                .putInt(KEY_RESPONSE_CACHE_TTL, config.responseCacheTtlMs)
+                .putString(KEY_RESPONSE_CACHE_VARY, TextUtils.join(",", config.responseCacheVary))
+                .putString(KEY_METRICS_PATH, config.metricsPath)
+                .putBoolean(KEY_HTTP2, config.http2)
+                .putInt(KEY_MAX_CONNECTION_THREADS, config.maxConnectionThreads)
+                .putInt(KEY_WS_MAX_MESSAGE, config.webSocketMaxMessageBytes)
+                .putInt(KEY_WS_MAX_QUEUED, config.webSocketMaxQueuedBytes)
+                .putInt(KEY_WS_PING_INTERVAL, config.webSocketPingIntervalMs)
+                .putBoolean(KEY_WS_COMPRESSION, config.webSocketCompression)
+                .putString(KEY_FACTORY, factoryClass.getName());
+
+        Shnet.TlsConfig tlsConfig = config.tlsConfig;
+        if (tlsConfig != null) {
+            editor.putBoolean(KEY_TLS_ENABLED, true)
+                    .putString(KEY_TLS_SOURCE, tlsConfig.source.name())
+                    .putInt(KEY_TLS_RES_ID, tlsConfig.keyStoreResourceId)
+                    .putString(KEY_TLS_PATH, tlsConfig.keyStorePath)
+                    .putString(KEY_TLS_STORE_TYPE, tlsConfig.keyStoreType)
+                    .putString(KEY_TLS_STORE_PASS, tlsConfig.keyStorePassword)
+                    .putString(KEY_TLS_KEY_PASS, tlsConfig.keyPassword)
+                    .putInt(KEY_TLS_SESSION_CACHE, tlsConfig.sessionCacheSize)
+                    .putInt(KEY_TLS_SESSION_TIMEOUT, tlsConfig.sessionTimeoutSeconds)
+                    .putBoolean(KEY_TLS_TICKETS, tlsConfig.sessionTickets)
+                    .putString(KEY_TLS_PROTOCOLS, TextUtils.join(",", tlsConfig.protocols))
+                    .putString(KEY_TLS_CIPHERS, TextUtils.join(",", tlsConfig.cipherSuites));
+        } else {
+            editor.remove(KEY_TLS_ENABLED)
+                    .remove(KEY_TLS_SOURCE)
+                    .remove(KEY_TLS_RES_ID)
+                    .remove(KEY_TLS_PATH)
+                    .remove(KEY_TLS_STORE_TYPE)
+                    .remove(KEY_TLS_STORE_PASS)
+                    .remove(KEY_TLS_KEY_PASS)
+                    .remove(KEY_TLS_SESSION_CACHE)
+                    .remove(KEY_TLS_SESSION_TIMEOUT)
+                    .remove(KEY_TLS_TICKETS)
+                    .remove(KEY_TLS_PROTOCOLS)
+                    .remove(KEY_TLS_CIPHERS);
+        }
+
+        editor.apply();
+    }
+
+    private static Shnet.Config readConfig(Context context) {
+        if (context == null) {
+            return null;
+        }
+        SharedPreferences prefs = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.getBoolean(KEY_CONFIG_SET, false)) {
+            return null;
+        }
+        int port = prefs.getInt(KEY_PORT, 0);
+        int icon = prefs.getInt(KEY_ICON, 0);
+        String title = prefs.getString(KEY_TITLE, "");
+        String text = prefs.getString(KEY_TEXT, "");
+        String channelId = prefs.getString(KEY_CHANNEL_ID, "shnet_node");
+        String channelName = prefs.getString(KEY_CHANNEL_NAME, "shnet node");
+        String channelDesc = prefs.getString(KEY_CHANNEL_DESC, "Keeps the shnet node running");
+        String stopLabel = prefs.getString(KEY_STOP_LABEL, "Stop");
+        String bindName = prefs.getString(KEY_BIND_MODE, Shnet.BindMode.IPV6_PREFERRED.name());
+        Shnet.BindMode bindMode;
+        try {
+            bindMode = Shnet.BindMode.valueOf(bindName);
+        } catch (Exception ignored) {
+            bindMode = Shnet.BindMode.IPV6_PREFERRED;
+        }
+        String engineName = prefs.getString(KEY_ENGINE, Shnet.Engine.BLOCKING.name());
+        Shnet.Engine engine;
+        try {
+            engine = Shnet.Engine.valueOf(engineName);
+        } catch (Exception ignored) {
+            engine = Shnet.Engine.BLOCKING;
+        }
+        int readTimeout = prefs.getInt(KEY_READ_TIMEOUT, 4000);
+        int maxBody = prefs.getInt(KEY_MAX_BODY, 256 * 1024);
+        boolean streamBodies = prefs.getBoolean(KEY_STREAM_BODIES, false);
+        long maxStreamedBody = prefs.getLong(KEY_MAX_STREAMED_BODY, 1L << 30);
+        int workers = prefs.getInt(KEY_WORKERS, 4);
+        Shnet.ExecutorFactory executorFactory = readExecutorFactory(
+                prefs.getString(KEY_EXECUTOR, Shnet.WorkerPool.FIXED.name()));
+        int keepAliveTimeout = prefs.getInt(KEY_KEEP_ALIVE_TIMEOUT, 5000);
+        int maxRequests = prefs.getInt(KEY_MAX_REQUESTS, 100);
+        int maxQueued = prefs.getInt(KEY_MAX_QUEUED, 0);
+        int maxQueueWait = prefs.getInt(KEY_MAX_QUEUE_WAIT, 0);
+        int retryAfter = prefs.getInt(KEY_RETRY_AFTER, 1);
+        int asyncTimeout = prefs.getInt(KEY_ASYNC_TIMEOUT, 30 * 1000);
+        boolean compress = prefs.getBoolean(KEY_COMPRESS, false);
+        int compressMin = prefs.getInt(KEY_COMPRESS_MIN, 1024);
+        int compressLevel = prefs.getInt(KEY_COMPRESS_LEVEL, 6);
+        String compressTypes = prefs.getString(KEY_COMPRESS_TYPES, null);
+        String cacheControl = prefs.getString(KEY_CACHE_CONTROL, null);
+        String fileCacheControl = prefs.getString(KEY_FILE_CACHE_CONTROL, null);
+        String bodyEtagsName = prefs.getString(KEY_BODY_ETAGS, Shnet.EtagMode.NONE.name());
+        long responseCacheBytes = prefs.getLong(KEY_RESPONSE_CACHE_BYTES, 0);
+        int responseCacheTtl = prefs.getInt(KEY_RESPONSE_CACHE_TTL, 60 * 1000);
+        String responseCacheVary = prefs.getString(KEY_RESPONSE_CACHE_VARY, "");
+        String metricsPath = prefs.getString(KEY_METRICS_PATH, null);
+        boolean http2 = prefs.getBoolean(KEY_HTTP2, false);
+        int maxConnectionThreads = prefs.getInt(KEY_MAX_CONNECTION_THREADS, 32);
+        int wsMaxMessage = prefs.getInt(KEY_WS_MAX_MESSAGE, 1024 * 1024);
+        int wsMaxQueued = prefs.getInt(KEY_WS_MAX_QUEUED, 256 * 1024);
+        int wsPingInterval = prefs.getInt(KEY_WS_PING_INTERVAL, 30 * 1000);
+        boolean wsCompression = prefs.getBoolean(KEY_WS_COMPRESSION, true);
+        Shnet.EtagMode bodyEtags;
+        try {
+            bodyEtags = Shnet.EtagMode.valueOf(bodyEtagsName);
+        } catch (Exception ignored) {
+            bodyEtags = Shnet.EtagMode.NONE;
+        }
+        Shnet.Config.Builder builder = Shnet.Config.builder(port, icon, title, text)
+                .setChannel(channelId, channelName, channelDesc)
+                .setStopActionLabel(stopLabel)
+                .setBindMode(bindMode)
+                .setEngine(engine)
+                .setReadTimeoutMs(readTimeout)
+                .setMaxBodyBytes(maxBody)
+                .setStreamRequestBodies(streamBodies)
+                .setMaxStreamedBodyBytes(maxStreamedBody)
+                .setWorkerThreads(workers)
+                .setExecutorFactory(executorFactory)
+                .setKeepAliveTimeoutMs(keepAliveTimeout)
+                .setMaxRequestsPerConnection(maxRequests)
+                .setMaxQueuedRequests(maxQueued)
+                .setMaxQueueWaitMs(maxQueueWait)
+                .setRetryAfterSeconds(retryAfter)
+                .setAsyncTimeoutMs(asyncTimeout)
+                .setCompressResponses(compress)
+                .setCompressionMinBytes(compressMin)
+                .setCompressionLevel(compressLevel)
+                .setCacheControl(cacheControl)
+                .setFileCacheControl(fileCacheControl)
+                .setBodyEtags(bodyEtags)
+                .setResponseCacheBytes(responseCacheBytes)
+                .setResponseCacheTtlMs(responseCacheTtl)
+                .setResponseCacheVary(responseCacheVary.split(","))
+                .setMetricsPath(metricsPath)
+                .setHttp2(http2)
+                .setMaxConnectionThreads(maxConnectionThreads)
+                .setWebSocketMaxMessageBytes(wsMaxMessage)
+                .setWebSocketMaxQueuedBytes(wsMaxQueued)
+                .setWebSocketPingIntervalMs(wsPingInterval)
+                .setWebSocketCompression(wsCompression);
+        if (compressTypes != null) {
+            builder.setCompressibleTypes(compressTypes.split(","));
+        }
+
+        Shnet.TlsConfig tlsConfig = readTlsConfig(prefs);
+        if (tlsConfig != null) {
+            builder.setTlsConfig(tlsConfig);
+        }
+
+        return builder.build();
+    }
+
+    private static Shnet.ExecutorFactory readExecutorFactory(String name) {
+        try {
+            return Shnet.WorkerPool.valueOf(name);
+        } catch (Exception ignored) {
+            // Not a built-in pool; try a custom factory class.
+        }
+        try {
+            Class<?> type = Class.forName(name);
+            if (Shnet.ExecutorFactory.class.isAssignableFrom(type)) {
+                return (Shnet.ExecutorFactory) type.getDeclaredConstructor().newInstance();
+            }
+        } catch (Exception ignored) {
+            // Fall back to the default pool.
+        }
+        return Shnet.WorkerPool.FIXED;
+    }
+
+    private static Shnet.TlsConfig readTlsConfig(SharedPreferences prefs) {
+        if (prefs == null || !prefs.getBoolean(KEY_TLS_ENABLED, false)) {
+            return null;
+        }
+        String sourceName = prefs.getString(KEY_TLS_SOURCE, null);
+        Shnet.TlsConfig.Source source;
+        try {
+            source = Shnet.TlsConfig.Source.valueOf(sourceName);
+        } catch (Exception ignored) {
+            return null;
+        }
+        String storeType = prefs.getString(KEY_TLS_STORE_TYPE, KeyStore.getDefaultType());
+        String storePass = prefs.getString(KEY_TLS_STORE_PASS, null);
+        String keyPass = prefs.getString(KEY_TLS_KEY_PASS, null);
+        Shnet.TlsConfig tlsConfig = null;
+        try {
+            if (source == Shnet.TlsConfig.Source.RAW_RESOURCE) {
+                int resId = prefs.getInt(KEY_TLS_RES_ID, 0);
+                if (resId <= 0) {
+                    return null;
+                }
+                tlsConfig = Shnet.TlsConfig.fromRawResource(resId, storePass, keyPass, storeType);
+            } else if (source == Shnet.TlsConfig.Source.FILE) {
+                String path = prefs.getString(KEY_TLS_PATH, null);
+                if (path == null || path.trim().isEmpty()) {
+                    return null;
+                }
+                tlsConfig = Shnet.TlsConfig.fromFile(path, storePass, keyPass, storeType);
+            }
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+        if (tlsConfig == null) {
+            return null;
+        }
+        String protocols = prefs.getString(KEY_TLS_PROTOCOLS, null);
+        String ciphers = prefs.getString(KEY_TLS_CIPHERS, null);
+        tlsConfig = tlsConfig
+                .withSessionCache(prefs.getInt(KEY_TLS_SESSION_CACHE, Shnet.TlsConfig.DEFAULT_SESSION_CACHE_SIZE),
+                        prefs.getInt(KEY_TLS_SESSION_TIMEOUT, Shnet.TlsConfig.DEFAULT_SESSION_TIMEOUT_SECONDS))
+                .withSessionTickets(prefs.getBoolean(KEY_TLS_TICKETS, true));
+        if (protocols != null) {
+            tlsConfig = tlsConfig.withProtocols(protocols.split(","));
+        }
+        if (ciphers != null) {
+            tlsConfig = tlsConfig.withCipherSuites(ciphers.split(","));
+        }
+        return tlsConfig;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends ShnetAndroid.HandlerFactory> readFactoryClass(Context context) {
+        if (context == null) {
+            return null;
+        }
+        String className = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_FACTORY, null);
+        if (className == null || className.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            Class<?> raw = Class.forName(className);
+            if (ShnetAndroid.HandlerFactory.class.isAssignableFrom(raw)) {
+                return (Class<? extends ShnetAndroid.HandlerFactory>) raw;
+            }
+        } catch (Exception ignored) {
+            return null;
+        }
+        return null;
+    }
+}
@@ -12,6 +12,8 @@ import android.os.IBinder;
 import java.io.IOException;
 
 public class ShnetNodeService extends Service {
+    private static volatile Shnet.Node node;
+
     private ShnetServer server;
     private Shnet.Config config;
     private boolean running;
@@ -24,12 +26,12 @@ public class ShnetNodeService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         String action = intent != null ? intent.getAction() : null;
-        if (Shnet.ACTION_STOP.equals(action)) {
+        if (ShnetAndroid.ACTION_STOP.equals(action)) {
             stopNode(true);
             return START_NOT_STICKY;
         }
 
-        if (Shnet.ACTION_START.equals(action) || intent == null) {
+        if (ShnetAndroid.ACTION_START.equals(action) || intent == null) {
             return startNode();
         }
 
@@ -60,11 +62,12 @@ public class ShnetNodeService extends Service {
             stopSelf();
             return START_NOT_STICKY;
         }
-        server = new ShnetServer(this, handler, config);
+        server = new ShnetServer(getApplicationContext().getResources()::openRawResource, handler, config);
         try {
             Notification notification = buildNotification();
             startForeground(notificationId(), notification);
             server.start();
+            node = new Shnet.Node(server);
             running = true;
             ShnetRuntime.setRunning(this, true);
             return startMode();
@@ -89,10 +92,15 @@ public class ShnetNodeService extends Service {
         return ShnetRuntime.isPersistent(this) ? START_STICKY : START_NOT_STICKY;
     }
 
+    static Shnet.Node node() {
+        return node;
+    }
+
     private void stopNode(boolean clearRuntime) {
         if (running && server != null) {
             server.stop();
         }
+        node = null;
         running = false;
         ShnetRuntime.setRunning(this, false);
         if (clearRuntime) {
@@ -116,7 +124,7 @@ public class ShnetNodeService extends Service {
         }
 
         Intent stopIntent = new Intent(this, getClass());
-        stopIntent.setAction(Shnet.ACTION_STOP);
+        stopIntent.setAction(ShnetAndroid.ACTION_STOP);
         PendingIntent stopPending = PendingIntent.getService(
                 this,
                 1,
@@ -0,0 +1,103 @@
+package io.shnet;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// 64 keep-alive clients against 16 workers: half hit a handler that sleeps 20 ms, half a
+// SHA-256 loop. Sampled latencies give p50/p99 per half, so a pool that lets blocking work
+// starve CPU work shows up in the cpu percentiles.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShnetExecutorBenchmark {
+    private static final int WORKERS = 16;
+    private static final int BLOCKING_SLEEP_MS = 20;
+    private static final int CPU_ROUNDS = 2000;
+    private static final byte[] IO = "GET /io HTTP/1.1\r\nHost: bench\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CPU = "GET /cpu HTTP/1.1\r\nHost: bench\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Node {
+        @Param({"NIO", "BLOCKING"})
+        public String engine;
+
+        @Param({"FIXED", "CACHED", "WORK_STEALING", "VIRTUAL"})
+        public String pool;
+
+        int port;
+        private ShnetServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            Shnet.Config config = Shnet.Config.builder(port, 0, "bench", "bench")
+                    .setBindMode(Shnet.BindMode.IPV4_ONLY)
+                    .setEngine(Shnet.Engine.valueOf(engine))
+                    .setWorkerThreads(WORKERS)
+                    .setExecutorFactory(Shnet.WorkerPool.valueOf(pool))
+                    .setMaxRequestsPerConnection(Integer.MAX_VALUE)
+                    .setKeepAliveTimeoutMs(100)
+                    .build();
+            server = new ShnetServer(null, ShnetExecutorBenchmark::handle, config);
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    private static Shnet.Response handle(Shnet.Request request) {
+        if ("/io".equals(request.path)) {
+            try {
+                Thread.sleep(BLOCKING_SLEEP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Shnet.Response.text(200, null, "slept");
+        }
+        byte[] digest = request.path.getBytes(StandardCharsets.UTF_8);
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < CPU_ROUNDS; i++) {
+                digest = sha.digest(digest);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return Shnet.Response.text(200, null, Integer.toHexString(digest[0] & 0xff));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(32)
+    public int io(Node node, ShnetLoopbackBenchmark.Client client) throws IOException {
+        return client.send(node.port, IO);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(32)
+    public int cpu(Node node, ShnetLoopbackBenchmark.Client client) throws IOException {
+        return client.send(node.port, CPU);
+    }
+}
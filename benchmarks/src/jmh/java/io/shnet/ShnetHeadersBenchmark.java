@@ -0,0 +1,98 @@
+package io.shnet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Builds the request header structure from already-split header lines and runs the lookups the
+// server makes for every request, so only the map itself is measured.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShnetHeadersBenchmark {
+    private static final String CURL = "Host: 192.168.1.20:8723\r\n"
+            + "User-Agent: curl/8.4.0\r\n"
+            + "Accept: */*\r\n";
+    private static final String BROWSER = "Host: 192.168.1.20:8723\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/124.0.0.0 Mobile Safari/537.36\r\n"
+            + "Accept: */*\r\n"
+            + "Referer: http://192.168.1.20:8723/\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-None-Match: \"5f3a-18c2b7e4d10\"\r\n"
+            + "Sec-Fetch-Mode: no-cors\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Dest: script\r\n"
+            + "Cookie: session=8c1f2e4a9b7d\r\n"
+            + "Cookie: theme=dark\r\n"
+            + "X-Client-Build: 4127\r\n";
+    private static final String[] LOOKUPS = {
+            "content-length", "transfer-encoding", "connection", "accept-encoding", "if-none-match",
+            "if-modified-since", "cookie"
+    };
+
+    @Param({"curl", "browser"})
+    public String client;
+
+    private byte[] raw;
+    private String[] names;
+    private int[] valueStarts;
+    private int[] valueEnds;
+
+    @Setup
+    public void setUp() {
+        String text = "curl".equals(client) ? CURL : BROWSER;
+        raw = text.getBytes(StandardCharsets.US_ASCII);
+        String[] lines = text.split("\r\n");
+        names = new String[lines.length];
+        valueStarts = new int[lines.length];
+        valueEnds = new int[lines.length];
+        int offset = 0;
+        for (int i = 0; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            // Same names the parser hands over: interned literals for well-known headers.
+            names[i] = lines[i].substring(0, colon).toLowerCase(Locale.US).intern();
+            valueStarts[i] = offset + colon + 2;
+            valueEnds[i] = offset + lines[i].length();
+            offset += lines[i].length() + 2;
+        }
+    }
+
+    @Benchmark
+    public void hashMap(Blackhole blackhole) {
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            headers.put(names[i], new String(raw, valueStarts[i], valueEnds[i] - valueStarts[i],
+                    StandardCharsets.ISO_8859_1));
+        }
+        for (String name : LOOKUPS) {
+            blackhole.consume(headers.get(name));
+        }
+    }
+
+    @Benchmark
+    public void shnetHeaders(Blackhole blackhole) {
+        ShnetHeaders headers = new ShnetHeaders(Arrays.copyOf(raw, raw.length));
+        for (int i = 0; i < names.length; i++) {
+            headers.add(names[i], valueStarts[i], valueEnds[i]);
+        }
+        for (String name : LOOKUPS) {
+            blackhole.consume(headers.get(name));
+        }
+    }
+}
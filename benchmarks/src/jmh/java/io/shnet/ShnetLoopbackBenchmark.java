@@ -0,0 +1,145 @@
+package io.shnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class ShnetLoopbackBenchmark {
+    private static final byte[] REQUEST = "GET /hello HTTP/1.1\r\nHost: bench\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Node {
+        @Param({"BLOCKING", "NIO"})
+        public String engine;
+
+        @Param({"1", "4", "16"})
+        public int workers;
+
+        int port;
+        private ShnetServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            // JMH parks finished threads on a barrier with their connection open, which would
+            // otherwise hold a blocking worker for the whole keep-alive timeout.
+            Shnet.Config config = Shnet.Config.builder(port, 0, "bench", "bench")
+                    .setBindMode(Shnet.BindMode.IPV4_ONLY)
+                    .setEngine(Shnet.Engine.valueOf(engine))
+                    .setWorkerThreads(workers)
+                    .setKeepAliveTimeoutMs(100)
+                    .build();
+            Shnet.Response hello = Shnet.Response.text(200, "text/plain; charset=utf-8", "hello");
+            server = new ShnetServer(null, request -> hello, config);
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final byte[] buffer = new byte[4096];
+        private Socket socket;
+        private InputStream input;
+        private OutputStream output;
+
+        int get(Node node) throws IOException {
+            return send(node.port, REQUEST);
+        }
+
+        int send(int port, byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket("127.0.0.1", port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(10_000);
+                input = socket.getInputStream();
+                output = socket.getOutputStream();
+            }
+            output.write(request);
+            int length = 0;
+            int headEnd = -1;
+            while (headEnd < 0) {
+                int read = input.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-response");
+                }
+                length += read;
+                headEnd = headEnd(length);
+            }
+            String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1);
+            int status = Integer.parseInt(head.substring(9, 12));
+            int remaining = contentLength(head) - (length - headEnd);
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-body");
+                }
+                remaining -= read;
+            }
+            if (head.contains("Connection: close")) {
+                close();
+            }
+            return status;
+        }
+
+        private int headEnd(int length) {
+            for (int i = 3; i < length; i++) {
+                if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static int contentLength(String head) {
+            int at = head.indexOf("Content-Length: ");
+            if (at < 0) {
+                return 0;
+            }
+            return Integer.parseInt(head.substring(at + 16, head.indexOf('\r', at)));
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Ignore close errors.
+                }
+                socket = null;
+            }
+        }
+    }
+
+    @Benchmark
+    public int request(Node node, Client client) throws IOException {
+        return client.get(node);
+    }
+}
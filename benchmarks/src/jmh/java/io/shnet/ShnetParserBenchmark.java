@@ -0,0 +1,61 @@
+package io.shnet;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShnetParserBenchmark {
+    private static final String CURL = "GET /api/items?page=2 HTTP/1.1\r\n"
+            + "Host: 192.168.1.20:8723\r\n"
+            + "User-Agent: curl/8.4.0\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+    private static final String BROWSER = "GET /static/app.js?v=3 HTTP/1.1\r\n"
+            + "Host: 192.168.1.20:8723\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/124.0.0.0 Mobile Safari/537.36\r\n"
+            + "Accept: */*\r\n"
+            + "Referer: http://192.168.1.20:8723/\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-None-Match: \"5f3a-18c2b7e4d10\"\r\n"
+            + "Sec-Fetch-Mode: no-cors\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Dest: script\r\n"
+            + "Cookie: session=8c1f2e4a9b7d; theme=dark\r\n"
+            + "X-Client-Build: 4127\r\n"
+            + "\r\n";
+    private static final byte[] NO_BODY = new byte[0];
+
+    @Param({"curl", "browser"})
+    public String client;
+
+    private byte[] raw;
+    private ShnetRequestParser parser;
+
+    @Setup
+    public void setUp() {
+        raw = ("curl".equals(client) ? CURL : BROWSER).getBytes(StandardCharsets.US_ASCII);
+        parser = new ShnetRequestParser();
+    }
+
+    @Benchmark
+    public Shnet.Request parseRequest() throws ProtocolException {
+        parser.writableBuffer().put(raw);
+        parser.commit(raw.length);
+        return parser.parseHead().toRequest(NO_BODY);
+    }
+}
@@ -0,0 +1,26 @@
+package io.shnet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.zxing.WriterException;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShnetQrBenchmark {
+    @Param({"256", "512"})
+    public int size;
+
+    @Benchmark
+    public int[] qrPixels() throws WriterException {
+        return Shnet.qrPixels("http://[fd00:1234:5678::20]:8723/", size);
+    }
+}
@@ -0,0 +1,63 @@
+package io.shnet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShnetResponseBenchmark {
+    private static final String JSON = "{\"id\":17,\"name\":\"espresso\",\"price\":320,\"stock\":12}";
+
+    private ShnetServer server;
+    private Shnet.Response plain;
+    private Shnet.Response decorated;
+
+    @Setup
+    public void setUp() {
+        Shnet.Config config = Shnet.Config.builder(8723, 0, "bench", "bench").build();
+        server = new ShnetServer(null, request -> null, config);
+        plain = Shnet.Response.text(200, "application/json", JSON);
+        decorated = withHeaders();
+    }
+
+    @Benchmark
+    public Shnet.Response withHeader() {
+        return withHeaders();
+    }
+
+    @Benchmark
+    public Shnet.Response builder() {
+        return Shnet.Response.builder(200)
+                .setContentType("application/json")
+                .setText(JSON)
+                .setHeader("ETag", "\"5f3a-18c2b7e4d10\"")
+                .setHeader("Vary", "Accept-Encoding")
+                .setHeader("X-Request-Id", "c0ffee42")
+                .build();
+    }
+
+    @Benchmark
+    public byte[] encodeHead() {
+        return server.encodeHead(plain, plain.body.length, true);
+    }
+
+    @Benchmark
+    public byte[] encodeHeadWithHeaders() {
+        return server.encodeHead(decorated, decorated.body.length, true);
+    }
+
+    private static Shnet.Response withHeaders() {
+        return Shnet.Response.text(200, "application/json", JSON)
+                .withHeader("ETag", "\"5f3a-18c2b7e4d10\"")
+                .withHeader("Vary", "Accept-Encoding")
+                .withHeader("X-Request-Id", "c0ffee42");
+    }
+}
@@ -0,0 +1,113 @@
+package io.shnet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Dispatches one request through a 200-route trie and through a linear chain of the same routes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShnetRouterBenchmark {
+    private static final int ROUTES = 200;
+    private static final Shnet.Response OK = Shnet.Response.text(200, null, "ok");
+
+    @Param({"first", "middle", "last", "miss"})
+    public String route;
+
+    private Shnet.Router router;
+    private LinearChain chain;
+    private Shnet.Request request;
+
+    @Setup
+    public void setUp() {
+        Shnet.Router.Builder builder = Shnet.Router.builder();
+        chain = new LinearChain();
+        for (int i = 0; i < ROUTES; i++) {
+            String pattern = i % 2 == 0 ? "/api/resource" + i + "/{id}" : "/api/resource" + i + "/{id}/items/{item}";
+            builder.get(pattern, request -> OK);
+            chain.add("GET", pattern, request -> OK);
+        }
+        router = builder.build();
+        String path;
+        switch (route) {
+            case "first":
+                path = "/api/resource0/17";
+                break;
+            case "middle":
+                path = "/api/resource101/17/items/9";
+                break;
+            case "last":
+                path = "/api/resource199/17/items/9";
+                break;
+            default:
+                path = "/api/unknown/17";
+                break;
+        }
+        request = new Shnet.Request("GET", path, "", Collections.<String, String>emptyMap(), new byte[0]);
+    }
+
+    @Benchmark
+    public Shnet.Response trie() {
+        return router.handle(request);
+    }
+
+    @Benchmark
+    public Shnet.Response linear() {
+        return chain.handle(request);
+    }
+
+    private static final class LinearChain implements Shnet.Handler {
+        private final List<String> methods = new ArrayList<>();
+        private final List<String[]> patterns = new ArrayList<>();
+        private final List<Shnet.Handler> handlers = new ArrayList<>();
+
+        void add(String method, String pattern, Shnet.Handler handler) {
+            methods.add(method);
+            patterns.add(pattern.substring(1).split("/", -1));
+            handlers.add(handler);
+        }
+
+        @Override
+        public Shnet.Response handle(Shnet.Request request) {
+            String[] segments = request.path.substring(1).split("/", -1);
+            for (int i = 0; i < patterns.size(); i++) {
+                Map<String, String> params = match(patterns.get(i), segments);
+                if (params != null && methods.get(i).equals(request.method)) {
+                    return handlers.get(i).handle(request.withParams(params));
+                }
+            }
+            return Shnet.Response.text(404, null, "Not Found");
+        }
+
+        private static Map<String, String> match(String[] pattern, String[] segments) {
+            if (pattern.length != segments.length) {
+                return null;
+            }
+            Map<String, String> params = null;
+            for (int i = 0; i < pattern.length; i++) {
+                if (pattern[i].startsWith("{")) {
+                    if (params == null) {
+                        params = new HashMap<>();
+                    }
+                    params.put(pattern[i].substring(1, pattern[i].length() - 1), segments[i]);
+                } else if (!pattern[i].equals(segments[i])) {
+                    return null;
+                }
+            }
+            return params == null ? Collections.<String, String>emptyMap() : params;
+        }
+    }
+}
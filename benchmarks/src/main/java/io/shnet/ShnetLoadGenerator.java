@@ -0,0 +1,571 @@
+package io.shnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+public final class ShnetLoadGenerator {
+    private static final String STORE_PASSWORD = "shnet-load";
+    private static final byte[] LARGE_BODY = new byte[64 * 1024];
+
+    private ShnetLoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        File keyStore = options.tls && options.target == null ? createKeyStore() : null;
+        System.out.println(String.format(Locale.US, "%-7s %-6s %8s %5s %9s %9s %7s %9s %9s %9s %9s %9s %9s",
+                "workers", "mode", "rate", "conns", "sent", "ok", "errors", "req/s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        try {
+            for (int workers : options.workers) {
+                ShnetServer server = null;
+                String host = "127.0.0.1";
+                int port;
+                if (options.target != null) {
+                    host = options.target.getHostString();
+                    port = options.target.getPort();
+                } else {
+                    port = freePort();
+                    server = new ShnetServer(null, demoRoutes(), serverConfig(options, workers, port, keyStore));
+                    server.start();
+                }
+                try {
+                    for (int rate : options.rates) {
+                        Result result = run(options, host, port, rate);
+                        System.out.println(result.format(options.target != null ? 0 : workers, options.openLoop, rate,
+                                options.connections));
+                    }
+                } finally {
+                    if (server != null) {
+                        server.stop();
+                    }
+                }
+            }
+        } finally {
+            if (keyStore != null && !keyStore.delete()) {
+                keyStore.deleteOnExit();
+            }
+        }
+    }
+
+    private static Result run(Options options, String host, int port, int rate) throws InterruptedException {
+        SocketFactory sockets;
+        try {
+            sockets = options.tls ? trustAll().getSocketFactory() : SocketFactory.getDefault();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long interval = options.openLoop ? 1_000_000_000L / Math.max(1, rate) : 0;
+        Client[] clients = new Client[options.connections];
+        Thread[] threads = new Thread[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client(options, sockets, host, port, i, start, measureFrom, end, interval);
+            threads[i] = new Thread(clients[i], "ShnetLoad-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Result result = new Result();
+        for (Client client : clients) {
+            result.add(client);
+        }
+        result.windowNanos = Math.max(end, result.lastCompletion) - measureFrom;
+        return result;
+    }
+
+    private static Shnet.Config serverConfig(Options options, int workers, int port, File keyStore) {
+        Shnet.Config.Builder builder = Shnet.Config.builder(port)
+                .setBindMode(Shnet.BindMode.IPV4_ONLY)
+                .setEngine(options.engine)
+                .setWorkerThreads(workers)
+                .setMaxRequestsPerConnection(Integer.MAX_VALUE);
+        if (keyStore != null) {
+            builder.setTlsConfig(Shnet.TlsConfig.fromFile(keyStore.getPath(), STORE_PASSWORD, null, "PKCS12"));
+        }
+        return builder.build();
+    }
+
+    private static Shnet.Handler demoRoutes() {
+        return Shnet.Router.builder()
+                .get("/small", request -> Shnet.Response.text(200, null, "ok"))
+                .get("/large", request -> Shnet.Response.bytes(200, "application/octet-stream", LARGE_BODY))
+                .get("/slow", request -> {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+                    return Shnet.Response.text(200, null, "slow");
+                })
+                .get("/cpu", request -> Shnet.Response.text(200, null, digest(request.path)))
+                .post("/echo", request -> Shnet.Response.bytes(200, "application/octet-stream", request.body))
+                .build();
+    }
+
+    private static String digest(String seed) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] value = seed.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < 2000; i++) {
+                value = sha.digest(value);
+            }
+            return Integer.toHexString(Arrays.hashCode(value));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static File createKeyStore() throws IOException, InterruptedException {
+        File file = File.createTempFile("shnet-load", ".p12");
+        if (!file.delete()) {
+            throw new IOException("Cannot prepare " + file);
+        }
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "shnet", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", file.getPath(), "-storepass", STORE_PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        byte[] output = process.getInputStream().readAllBytes();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output, StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static SSLContext trustAll() throws GeneralSecurityException {
+        TrustManager[] trust = {new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        return context;
+    }
+
+    private static final class Client implements Runnable {
+        private final Options options;
+        private final SocketFactory sockets;
+        private final String host;
+        private final int port;
+        private final int index;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final long interval;
+        private final byte[] buffer = new byte[16 * 1024];
+        private final byte[][] requests;
+        final long[] counts = new long[ShnetMetrics.BUCKETS];
+        long maxMicros;
+        long lastCompletion;
+        long sent;
+        long ok;
+        long errors;
+        private Socket socket;
+        private InputStream input;
+        private OutputStream output;
+        private long warmupNanos;
+        private long warmupCount;
+
+        Client(Options options, SocketFactory sockets, String host, int port, int index,
+               long start, long measureFrom, long end, long interval) {
+            this.options = options;
+            this.sockets = sockets;
+            this.host = host;
+            this.port = port;
+            this.index = index;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.interval = interval;
+            this.requests = new byte[options.mix.size()][];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = options.mix.get(i).encode(host, options.reuse, options.bodyBytes);
+            }
+        }
+
+        @Override
+        public void run() {
+            long deadline = end + (end - measureFrom);
+            long k = 0;
+            while (true) {
+                long due = interval > 0
+                        ? start + (k * options.connections + index) * interval
+                        : Math.max(start, System.nanoTime());
+                if (due >= end) {
+                    break;
+                }
+                k++;
+                long now = System.nanoTime();
+                if (due > now) {
+                    LockSupport.parkNanos(due - now);
+                } else if (now >= deadline) {
+                    // Give up on a backlog that cannot drain; its latency is at least this long.
+                    for (; due < end; due += options.connections * interval) {
+                        if (due >= measureFrom) {
+                            sent++;
+                            errors++;
+                            record((now - due) / 1000);
+                        }
+                    }
+                    break;
+                }
+                long sentAt = interval > 0 ? due : System.nanoTime();
+                boolean success = exchange(requests[pick()]);
+                long completed = System.nanoTime();
+                long latency = completed - sentAt;
+                if (sentAt < measureFrom) {
+                    warmupNanos += latency;
+                    warmupCount++;
+                    continue;
+                }
+                sent++;
+                lastCompletion = completed;
+                if (success) {
+                    ok++;
+                } else {
+                    errors++;
+                }
+                record(latency / 1000);
+                if (interval == 0 && warmupCount > 0) {
+                    // Back-fill the requests a closed-loop client would have sent during a stall.
+                    long expected = Math.max(1, warmupNanos / warmupCount / 1000);
+                    for (long missed = latency / 1000 - expected; missed >= expected; missed -= expected) {
+                        record(missed);
+                    }
+                }
+            }
+            close();
+        }
+
+        private int pick() {
+            int roll = ThreadLocalRandom.current().nextInt(options.totalWeight);
+            for (int i = 0; i < options.mix.size(); i++) {
+                roll -= options.mix.get(i).weight;
+                if (roll < 0) {
+                    return i;
+                }
+            }
+            return options.mix.size() - 1;
+        }
+
+        private void record(long micros) {
+            counts[ShnetMetrics.bucket(micros)]++;
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        private boolean exchange(byte[] request) {
+            try {
+                if (socket == null) {
+                    socket = sockets.createSocket(host, port);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(30_000);
+                    input = socket.getInputStream();
+                    output = socket.getOutputStream();
+                }
+                output.write(request);
+                output.flush();
+                int status = readResponse();
+                if (!options.reuse) {
+                    close();
+                }
+                return status >= 200 && status < 300;
+            } catch (IOException | RuntimeException e) {
+                close();
+                return false;
+            }
+        }
+
+        private int readResponse() throws IOException {
+            int length = 0;
+            int headEnd = -1;
+            while (headEnd < 0) {
+                if (length == buffer.length) {
+                    throw new IOException("Response head too large");
+                }
+                int read = input.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-response");
+                }
+                length += read;
+                headEnd = headEnd(length);
+            }
+            String head = new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1);
+            int status = Integer.parseInt(head.substring(9, 12));
+            long remaining = contentLength(head) - (length - headEnd);
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Connection closed mid-body");
+                }
+                remaining -= read;
+            }
+            if (head.contains("\r\nConnection: close\r\n")) {
+                close();
+            }
+            return status;
+        }
+
+        private int headEnd(int length) {
+            for (int i = 3; i < length; i++) {
+                if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n' && buffer[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static long contentLength(String head) {
+            int at = head.indexOf("\r\nContent-Length: ");
+            if (at < 0) {
+                throw new IllegalStateException("Response without Content-Length");
+            }
+            return Long.parseLong(head.substring(at + 18, head.indexOf('\r', at + 2)));
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Ignore close errors.
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private static final class Result {
+        private final long[] counts = new long[ShnetMetrics.BUCKETS];
+        private long total;
+        private long maxMicros;
+        private long sent;
+        private long ok;
+        private long errors;
+        long lastCompletion;
+        long windowNanos;
+
+        void add(Client client) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += client.counts[i];
+                total += client.counts[i];
+            }
+            maxMicros = Math.max(maxMicros, client.maxMicros);
+            lastCompletion = Math.max(lastCompletion, client.lastCompletion);
+            sent += client.sent;
+            ok += client.ok;
+            errors += client.errors;
+        }
+
+        String format(int workers, boolean openLoop, int rate, int connections) {
+            double throughput = ok * 1_000_000_000.0 / windowNanos;
+            String saturated = openLoop && throughput < rate * 0.95 ? "  saturated" : "";
+            return String.format(Locale.US, "%-7s %-6s %8s %5d %9d %9d %7d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f%s",
+                    workers > 0 ? Integer.toString(workers) : "-", openLoop ? "open" : "closed",
+                    openLoop ? Integer.toString(rate) : "-", connections, sent, ok, errors, throughput,
+                    millis(0.50), millis(0.90), millis(0.99), millis(0.999), maxMicros / 1000.0, saturated);
+        }
+
+        private double millis(double fraction) {
+            return Math.min(maxMicros, ShnetMetrics.percentile(counts, total, fraction)) / 1000.0;
+        }
+    }
+
+    private static final class MixEntry {
+        final String method;
+        final String path;
+        final int weight;
+
+        MixEntry(String method, String path, int weight) {
+            this.method = method;
+            this.path = path;
+            this.weight = weight;
+        }
+
+        byte[] encode(String host, boolean reuse, int bodyBytes) {
+            boolean body = !"GET".equals(method) && !"HEAD".equals(method);
+            StringBuilder request = new StringBuilder(128)
+                    .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append("\r\n");
+            if (!reuse) {
+                request.append("Connection: close\r\n");
+            }
+            if (body) {
+                request.append("Content-Type: application/octet-stream\r\n")
+                        .append("Content-Length: ").append(bodyBytes).append("\r\n");
+            }
+            request.append("\r\n");
+            byte[] head = request.toString().getBytes(StandardCharsets.US_ASCII);
+            if (!body) {
+                return head;
+            }
+            byte[] encoded = Arrays.copyOf(head, head.length + bodyBytes);
+            Arrays.fill(encoded, head.length, encoded.length, (byte) 'x');
+            return encoded;
+        }
+    }
+
+    private static final class Options {
+        static final String USAGE = "usage: ShnetLoadGenerator [--mode open|closed] [--rates 1000,2000,...]"
+                + " [--connections 32] [--workers 1,4,16] [--engine BLOCKING|NIO]"
+                + " [--mix 'GET /small=80,GET /slow=10,POST /echo=10'] [--body 1024]"
+                + " [--duration 10] [--warmup 3] [--tls] [--no-reuse] [--target host:port]";
+
+        boolean openLoop = true;
+        int[] rates = {1000};
+        int connections = 32;
+        int[] workers = {4};
+        Shnet.Engine engine = Shnet.Engine.NIO;
+        final List<MixEntry> mix = new ArrayList<>();
+        int totalWeight;
+        int bodyBytes = 1024;
+        int durationSeconds = 10;
+        int warmupSeconds = 3;
+        boolean tls;
+        boolean reuse = true;
+        InetSocketAddress target;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            String mix = "GET /small=80,GET /slow=10,POST /echo=10";
+            for (int i = 0; i < args.length; i++) {
+                String flag = args[i];
+                switch (flag) {
+                    case "--tls":
+                        options.tls = true;
+                        continue;
+                    case "--no-reuse":
+                        options.reuse = false;
+                        continue;
+                    default:
+                        break;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + flag);
+                }
+                String value = args[++i];
+                switch (flag) {
+                    case "--mode":
+                        if (!"open".equals(value) && !"closed".equals(value)) {
+                            throw new IllegalArgumentException("Unknown mode: " + value);
+                        }
+                        options.openLoop = "open".equals(value);
+                        break;
+                    case "--rates":
+                        options.rates = positiveList(value);
+                        break;
+                    case "--connections":
+                        options.connections = positive(value);
+                        break;
+                    case "--workers":
+                        options.workers = positiveList(value);
+                        break;
+                    case "--engine":
+                        options.engine = Shnet.Engine.valueOf(value.toUpperCase(Locale.US));
+                        break;
+                    case "--mix":
+                        mix = value;
+                        break;
+                    case "--body":
+                        options.bodyBytes = positive(value);
+                        break;
+                    case "--duration":
+                        options.durationSeconds = positive(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "--target":
+                        int colon = value.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Target must be host:port: " + value);
+                        }
+                        options.target = InetSocketAddress.createUnresolved(value.substring(0, colon),
+                                positive(value.substring(colon + 1)));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + flag);
+                }
+            }
+            for (String entry : mix.split(",")) {
+                int equals = entry.lastIndexOf('=');
+                String[] request = (equals < 0 ? entry : entry.substring(0, equals)).trim().split(" +");
+                if (request.length != 2 || !request[1].startsWith("/")) {
+                    throw new IllegalArgumentException("Mix entries look like 'GET /path=weight': " + entry);
+                }
+                int weight = equals < 0 ? 1 : positive(entry.substring(equals + 1).trim());
+                options.mix.add(new MixEntry(request[0].toUpperCase(Locale.US), request[1], weight));
+                options.totalWeight += weight;
+            }
+            if (!options.openLoop) {
+                options.rates = new int[] {0};
+            }
+            if (options.target != null) {
+                options.workers = new int[] {0};
+            }
+            return options;
+        }
+
+        private static int positive(String value) {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed <= 0) {
+                throw new IllegalArgumentException("Expected a positive number: " + value);
+            }
+            return parsed;
+        }
+
+        private static int[] positiveList(String value) {
+            String[] parts = value.split(",");
+            int[] parsed = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                parsed[i] = positive(parts[i]);
+            }
+            return parsed;
+        }
+    }
+}
@@ -1,38 +1,25 @@
 package io.shnet;
 
-import android.content.Context;
-import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.net.ConnectivityManager;
-import android.net.LinkAddress;
-import android.net.LinkProperties;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.os.Build;
-
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -43,19 +30,18 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.net.ServerSocketFactory;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocket;
 
 public final class Shnet {
-    public static final String ACTION_START = "io.shnet.action.START";
-    public static final String ACTION_STOP = "io.shnet.action.STOP";
+    private static final int QR_BLACK = 0xFF000000;
+    private static final int QR_WHITE = 0xFFFFFFFF;
 
     private Shnet() {
     }
@@ -67,18 +53,141 @@ public final class Shnet {
         IPV4_ONLY
     }
 
+    public enum Engine {
+        BLOCKING,
+        NIO
+    }
+
+    public enum WorkerPool implements ExecutorFactory {
+        FIXED,
+        CACHED,
+        WORK_STEALING,
+        VIRTUAL;
+
+        @Override
+        public ExecutorService create(int workerThreads, ThreadFactory threadFactory) {
+            switch (this) {
+                case CACHED:
+                    return Executors.newCachedThreadPool(threadFactory);
+                case WORK_STEALING:
+                    return new ForkJoinPool(workerThreads, forkJoinThreads(), null, true);
+                case VIRTUAL:
+                    try {
+                        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                        return (ExecutorService) factory.invoke(null);
+                    } catch (ReflectiveOperationException ignored) {
+                        return Executors.newCachedThreadPool(threadFactory);
+                    }
+                default:
+                    return Executors.newFixedThreadPool(workerThreads, threadFactory);
+            }
+        }
+
+        // Named like the other pools' workers; daemon status follows the creating thread, as new Thread does.
+        private static ForkJoinPool.ForkJoinWorkerThreadFactory forkJoinThreads() {
+            final AtomicInteger counter = new AtomicInteger(1);
+            final boolean daemon = Thread.currentThread().isDaemon();
+            return pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("ShnetWorker-" + counter.getAndIncrement());
+                thread.setDaemon(daemon);
+                return thread;
+            };
+        }
+    }
+
+    public enum EtagMode {
+        NONE,
+        WEAK,
+        STRONG
+    }
+
     public enum LinkPreference {
         IPV6_FIRST,
         IPV4_FIRST,
         ALL
     }
 
+    public enum SlowSubscriber {
+        DROP,
+        DISCONNECT
+    }
+
     public interface Handler {
         Response handle(Request request);
     }
 
-    public interface HandlerFactory {
-        Handler create(Context context);
+    public interface AsyncHandler extends Handler {
+        void handle(Request request, Responder responder);
+
+        // Blocks the calling thread until the responder completes, answering 503 after the default timeout.
+        // The blocking engine (and so every TLS connection) serves async handlers this way and holds a worker.
+        @Override
+        default Response handle(Request request) {
+            return ShnetServer.await(this, request, Config.Builder.DEFAULT_ASYNC_TIMEOUT_MS);
+        }
+    }
+
+    public interface Responder {
+        boolean complete(Response response);
+
+        boolean fail(Throwable error);
+
+        boolean isDone();
+
+        boolean isCancelled();
+
+        void onCancel(Runnable callback);
+    }
+
+    public interface BodyWriter {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    public interface Validator {
+        // A quoted entity tag, or null when unknown.
+        String etag(Request request);
+
+        // Milliseconds since the epoch, or -1 when unknown.
+        default long lastModified(Request request) {
+            return -1;
+        }
+    }
+
+    public interface WebSocketHandler {
+        default void onOpen(WebSocket socket) {
+        }
+
+        default void onText(WebSocket socket, String text) {
+        }
+
+        default void onBinary(WebSocket socket, byte[] data) {
+        }
+
+        default void onClose(WebSocket socket, int code, String reason) {
+        }
+    }
+
+    public interface WebSocket {
+        Request request();
+
+        boolean sendText(String text);
+
+        boolean sendBinary(byte[] data);
+
+        void close(int code, String reason);
+
+        boolean isOpen();
+
+        long queuedBytes();
+    }
+
+    public interface ExecutorFactory {
+        ExecutorService create(int workerThreads, ThreadFactory threadFactory);
+
+        default void release(ExecutorService executor) {
+            executor.shutdownNow();
+        }
     }
 
     public static final class Config {
@@ -91,10 +200,37 @@ public final class Shnet {
         public final String channelDescription;
         public final String stopActionLabel;
         public final BindMode bindMode;
+        public final Engine engine;
         public final int readTimeoutMs;
         public final int maxBodyBytes;
+        public final boolean streamRequestBodies;
+        public final long maxStreamedBodyBytes;
         public final int workerThreads;
+        public final ExecutorFactory executorFactory;
+        public final int keepAliveTimeoutMs;
+        public final int maxRequestsPerConnection;
+        public final int maxQueuedRequests;
+        public final int maxQueueWaitMs;
+        public final int retryAfterSeconds;
+        public final int asyncTimeoutMs;
+        public final boolean compressResponses;
+        public final int compressionMinBytes;
+        public final int compressionLevel;
+        public final List<String> compressibleTypes;
+        public final String cacheControl;
+        public final String fileCacheControl;
+        public final EtagMode bodyEtags;
+        public final long responseCacheBytes;
+        public final int responseCacheTtlMs;
+        public final List<String> responseCacheVary;
+        public final String metricsPath;
         public final TlsConfig tlsConfig;
+        public final boolean http2;
+        public final int maxConnectionThreads;
+        public final int webSocketMaxMessageBytes;
+        public final int webSocketMaxQueuedBytes;
+        public final int webSocketPingIntervalMs;
+        public final boolean webSocketCompression;
 
         private Config(Builder builder) {
             this.port = builder.port;
@@ -106,10 +242,41 @@ public final class Shnet {
             this.channelDescription = builder.channelDescription;
             this.stopActionLabel = builder.stopActionLabel;
             this.bindMode = builder.bindMode;
+            this.engine = builder.engine;
             this.readTimeoutMs = builder.readTimeoutMs;
             this.maxBodyBytes = builder.maxBodyBytes;
+            this.streamRequestBodies = builder.streamRequestBodies;
+            this.maxStreamedBodyBytes = builder.maxStreamedBodyBytes;
             this.workerThreads = builder.workerThreads;
+            this.executorFactory = builder.executorFactory;
+            this.keepAliveTimeoutMs = builder.keepAliveTimeoutMs;
+            this.maxRequestsPerConnection = builder.maxRequestsPerConnection;
+            this.maxQueuedRequests = builder.maxQueuedRequests;
+            this.maxQueueWaitMs = builder.maxQueueWaitMs;
+            this.retryAfterSeconds = builder.retryAfterSeconds;
+            this.asyncTimeoutMs = builder.asyncTimeoutMs;
+            this.compressResponses = builder.compressResponses;
+            this.compressionMinBytes = builder.compressionMinBytes;
+            this.compressionLevel = builder.compressionLevel;
+            this.compressibleTypes = builder.compressibleTypes;
+            this.cacheControl = builder.cacheControl;
+            this.fileCacheControl = builder.fileCacheControl;
+            this.bodyEtags = builder.bodyEtags;
+            this.responseCacheBytes = builder.responseCacheBytes;
+            this.responseCacheTtlMs = builder.responseCacheTtlMs;
+            this.responseCacheVary = builder.responseCacheVary;
+            this.metricsPath = builder.metricsPath;
             this.tlsConfig = builder.tlsConfig;
+            this.http2 = builder.http2;
+            this.maxConnectionThreads = builder.maxConnectionThreads;
+            this.webSocketMaxMessageBytes = builder.webSocketMaxMessageBytes;
+            this.webSocketMaxQueuedBytes = builder.webSocketMaxQueuedBytes;
+            this.webSocketPingIntervalMs = builder.webSocketPingIntervalMs;
+            this.webSocketCompression = builder.webSocketCompression;
+        }
+
+        public static Builder builder(int port) {
+            return new Builder(port, 0, null, null);
         }
 
         public static Builder builder(int port, int notificationIconRes, String title, String text) {
@@ -123,7 +290,22 @@ public final class Shnet {
         public static final class Builder {
             private static final int DEFAULT_READ_TIMEOUT_MS = 4000;
             private static final int DEFAULT_MAX_BODY_BYTES = 256 * 1024;
+            private static final long DEFAULT_MAX_STREAMED_BODY_BYTES = 1L << 30;
             private static final int DEFAULT_WORKER_THREADS = 4;
+            private static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 5000;
+            private static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+            private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+            static final int DEFAULT_ASYNC_TIMEOUT_MS = 30 * 1000;
+            private static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+            private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+            private static final int DEFAULT_RESPONSE_CACHE_TTL_MS = 60 * 1000;
+            private static final int DEFAULT_MAX_CONNECTION_THREADS = 32;
+            private static final int DEFAULT_WEB_SOCKET_MAX_MESSAGE_BYTES = 1024 * 1024;
+            private static final int DEFAULT_WEB_SOCKET_MAX_QUEUED_BYTES = 256 * 1024;
+            private static final int DEFAULT_WEB_SOCKET_PING_INTERVAL_MS = 30 * 1000;
+            private static final List<String> DEFAULT_COMPRESSIBLE_TYPES = Collections.unmodifiableList(Arrays.asList(
+                    "text/*", "application/json", "application/javascript", "application/xml",
+                    "image/svg+xml"));
 
             private final int port;
             private final int notificationIconRes;
@@ -134,10 +316,37 @@ public final class Shnet {
             private String channelDescription = "Keeps the shnet node running";
             private String stopActionLabel = "Stop";
             private BindMode bindMode = BindMode.IPV6_PREFERRED;
+            private Engine engine = Engine.BLOCKING;
             private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
             private int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+            private boolean streamRequestBodies;
+            private long maxStreamedBodyBytes = DEFAULT_MAX_STREAMED_BODY_BYTES;
             private int workerThreads = DEFAULT_WORKER_THREADS;
+            private ExecutorFactory executorFactory = WorkerPool.FIXED;
+            private int keepAliveTimeoutMs = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+            private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+            private int maxQueuedRequests;
+            private int maxQueueWaitMs;
+            private int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+            private int asyncTimeoutMs = DEFAULT_ASYNC_TIMEOUT_MS;
+            private boolean compressResponses;
+            private int compressionMinBytes = DEFAULT_COMPRESSION_MIN_BYTES;
+            private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+            private List<String> compressibleTypes = DEFAULT_COMPRESSIBLE_TYPES;
+            private String cacheControl = "no-store";
+            private String fileCacheControl = "no-cache";
+            private EtagMode bodyEtags = EtagMode.NONE;
+            private long responseCacheBytes;
+            private int responseCacheTtlMs = DEFAULT_RESPONSE_CACHE_TTL_MS;
+            private List<String> responseCacheVary = Collections.emptyList();
+            private String metricsPath;
             private TlsConfig tlsConfig;
+            private boolean http2;
+            private int maxConnectionThreads = DEFAULT_MAX_CONNECTION_THREADS;
+            private int webSocketMaxMessageBytes = DEFAULT_WEB_SOCKET_MAX_MESSAGE_BYTES;
+            private int webSocketMaxQueuedBytes = DEFAULT_WEB_SOCKET_MAX_QUEUED_BYTES;
+            private int webSocketPingIntervalMs = DEFAULT_WEB_SOCKET_PING_INTERVAL_MS;
+            private boolean webSocketCompression = true;
 
             private Builder(int port, int notificationIconRes, String title, String text) {
                 this.port = port;
@@ -173,6 +382,13 @@ public final class Shnet {
                 return this;
             }
 
+            public Builder setEngine(Engine engine) {
+                if (engine != null) {
+                    this.engine = engine;
+                }
+                return this;
+            }
+
             public Builder setReadTimeoutMs(int readTimeoutMs) {
                 if (readTimeoutMs > 0) {
                     this.readTimeoutMs = readTimeoutMs;
@@ -187,6 +403,18 @@ public final class Shnet {
                 return this;
             }
 
+            public Builder setStreamRequestBodies(boolean streamRequestBodies) {
+                this.streamRequestBodies = streamRequestBodies;
+                return this;
+            }
+
+            public Builder setMaxStreamedBodyBytes(long maxStreamedBodyBytes) {
+                if (maxStreamedBodyBytes > 0) {
+                    this.maxStreamedBodyBytes = maxStreamedBodyBytes;
+                }
+                return this;
+            }
+
             public Builder setWorkerThreads(int workerThreads) {
                 if (workerThreads > 0) {
                     this.workerThreads = workerThreads;
@@ -194,6 +422,146 @@ public final class Shnet {
                 return this;
             }
 
+            public Builder setExecutorFactory(ExecutorFactory executorFactory) {
+                if (executorFactory != null) {
+                    this.executorFactory = executorFactory;
+                }
+                return this;
+            }
+
+            public Builder setKeepAliveTimeoutMs(int keepAliveTimeoutMs) {
+                if (keepAliveTimeoutMs > 0) {
+                    this.keepAliveTimeoutMs = keepAliveTimeoutMs;
+                }
+                return this;
+            }
+
+            public Builder setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+                if (maxRequestsPerConnection > 0) {
+                    this.maxRequestsPerConnection = maxRequestsPerConnection;
+                }
+                return this;
+            }
+
+            public Builder setMaxQueuedRequests(int maxQueuedRequests) {
+                if (maxQueuedRequests >= 0) {
+                    this.maxQueuedRequests = maxQueuedRequests;
+                }
+                return this;
+            }
+
+            public Builder setMaxQueueWaitMs(int maxQueueWaitMs) {
+                if (maxQueueWaitMs >= 0) {
+                    this.maxQueueWaitMs = maxQueueWaitMs;
+                }
+                return this;
+            }
+
+            public Builder setRetryAfterSeconds(int retryAfterSeconds) {
+                if (retryAfterSeconds > 0) {
+                    this.retryAfterSeconds = retryAfterSeconds;
+                }
+                return this;
+            }
+
+            public Builder setAsyncTimeoutMs(int asyncTimeoutMs) {
+                if (asyncTimeoutMs > 0) {
+                    this.asyncTimeoutMs = asyncTimeoutMs;
+                }
+                return this;
+            }
+
+            public Builder setCompressResponses(boolean compressResponses) {
+                this.compressResponses = compressResponses;
+                return this;
+            }
+
+            public Builder setCompressionMinBytes(int compressionMinBytes) {
+                if (compressionMinBytes >= 0) {
+                    this.compressionMinBytes = compressionMinBytes;
+                }
+                return this;
+            }
+
+            public Builder setCompressionLevel(int compressionLevel) {
+                if (compressionLevel >= 1 && compressionLevel <= 9) {
+                    this.compressionLevel = compressionLevel;
+                }
+                return this;
+            }
+
+            public Builder setCompressibleTypes(String... types) {
+                if (types == null || types.length == 0) {
+                    return this;
+                }
+                List<String> normalized = new ArrayList<>(types.length);
+                for (String type : types) {
+                    if (type != null && !type.trim().isEmpty()) {
+                        normalized.add(type.trim().toLowerCase(Locale.US));
+                    }
+                }
+                if (!normalized.isEmpty()) {
+                    this.compressibleTypes = Collections.unmodifiableList(normalized);
+                }
+                return this;
+            }
+
+            public Builder setCacheControl(String cacheControl) {
+                if (cacheControl != null && !cacheControl.trim().isEmpty()) {
+                    this.cacheControl = cacheControl.trim();
+                }
+                return this;
+            }
+
+            public Builder setFileCacheControl(String fileCacheControl) {
+                if (fileCacheControl != null && !fileCacheControl.trim().isEmpty()) {
+                    this.fileCacheControl = fileCacheControl.trim();
+                }
+                return this;
+            }
+
+            public Builder setBodyEtags(EtagMode bodyEtags) {
+                if (bodyEtags != null) {
+                    this.bodyEtags = bodyEtags;
+                }
+                return this;
+            }
+
+            public Builder setResponseCacheBytes(long responseCacheBytes) {
+                if (responseCacheBytes >= 0) {
+                    this.responseCacheBytes = responseCacheBytes;
+                }
+                return this;
+            }
+
+            public Builder setResponseCacheTtlMs(int responseCacheTtlMs) {
+                if (responseCacheTtlMs > 0) {
+                    this.responseCacheTtlMs = responseCacheTtlMs;
+                }
+                return this;
+            }
+
+            public Builder setResponseCacheVary(String... headerNames) {
+                if (headerNames == null) {
+                    return this;
+                }
+                List<String> normalized = new ArrayList<>(headerNames.length);
+                for (String name : headerNames) {
+                    if (name != null && !name.trim().isEmpty()) {
+                        normalized.add(name.trim().toLowerCase(Locale.US));
+                    }
+                }
+                this.responseCacheVary = Collections.unmodifiableList(normalized);
+                return this;
+            }
+
+            public Builder setMetricsPath(String metricsPath) {
+                if (metricsPath == null || metricsPath.startsWith("/")) {
+                    this.metricsPath = metricsPath;
+                }
+                return this;
+            }
+
             public Builder setTlsConfig(TlsConfig tlsConfig) {
                 this.tlsConfig = tlsConfig;
                 return this;
@@ -204,6 +572,44 @@ public final class Shnet {
                 return this;
             }
 
+            public Builder setHttp2(boolean http2) {
+                this.http2 = http2;
+                return this;
+            }
+
+            public Builder setMaxConnectionThreads(int maxConnectionThreads) {
+                if (maxConnectionThreads > 0) {
+                    this.maxConnectionThreads = maxConnectionThreads;
+                }
+                return this;
+            }
+
+            public Builder setWebSocketMaxMessageBytes(int webSocketMaxMessageBytes) {
+                if (webSocketMaxMessageBytes > 0) {
+                    this.webSocketMaxMessageBytes = webSocketMaxMessageBytes;
+                }
+                return this;
+            }
+
+            public Builder setWebSocketMaxQueuedBytes(int webSocketMaxQueuedBytes) {
+                if (webSocketMaxQueuedBytes > 0) {
+                    this.webSocketMaxQueuedBytes = webSocketMaxQueuedBytes;
+                }
+                return this;
+            }
+
+            public Builder setWebSocketPingIntervalMs(int webSocketPingIntervalMs) {
+                if (webSocketPingIntervalMs >= 0) {
+                    this.webSocketPingIntervalMs = webSocketPingIntervalMs;
+                }
+                return this;
+            }
+
+            public Builder setWebSocketCompression(boolean webSocketCompression) {
+                this.webSocketCompression = webSocketCompression;
+                return this;
+            }
+
             public Config build() {
                 return new Config(this);
             }
@@ -216,12 +622,33 @@ public final class Shnet {
             FILE
         }
 
+        public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+        public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+        public static final List<String> DEFAULT_PROTOCOLS =
+                Collections.unmodifiableList(Arrays.asList("TLSv1.3", "TLSv1.2"));
+        // ECDSA suites first: an EC key signs far cheaper than RSA on phone CPUs.
+        public static final List<String> DEFAULT_CIPHER_SUITES = Collections.unmodifiableList(Arrays.asList(
+                "TLS_AES_128_GCM_SHA256",
+                "TLS_CHACHA20_POLY1305_SHA256",
+                "TLS_AES_256_GCM_SHA384",
+                "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+                "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+                "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"));
+
         public final Source source;
         public final int keyStoreResourceId;
         public final String keyStorePath;
         public final String keyStoreType;
         public final String keyStorePassword;
         public final String keyPassword;
+        public final int sessionCacheSize;
+        public final int sessionTimeoutSeconds;
+        public final boolean sessionTickets;
+        public final List<String> protocols;
+        public final List<String> cipherSuites;
 
         private TlsConfig(Source source,
                           int keyStoreResourceId,
@@ -229,12 +656,33 @@ public final class Shnet {
                           String keyStoreType,
                           String keyStorePassword,
                           String keyPassword) {
+            this(source, keyStoreResourceId, keyStorePath, normalizeType(keyStoreType), keyStorePassword, keyPassword,
+                    DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS, true,
+                    DEFAULT_PROTOCOLS, DEFAULT_CIPHER_SUITES);
+        }
+
+        private TlsConfig(Source source,
+                          int keyStoreResourceId,
+                          String keyStorePath,
+                          String keyStoreType,
+                          String keyStorePassword,
+                          String keyPassword,
+                          int sessionCacheSize,
+                          int sessionTimeoutSeconds,
+                          boolean sessionTickets,
+                          List<String> protocols,
+                          List<String> cipherSuites) {
             this.source = source;
             this.keyStoreResourceId = keyStoreResourceId;
             this.keyStorePath = keyStorePath;
-            this.keyStoreType = normalizeType(keyStoreType);
+            this.keyStoreType = keyStoreType;
             this.keyStorePassword = keyStorePassword;
             this.keyPassword = keyPassword;
+            this.sessionCacheSize = sessionCacheSize;
+            this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+            this.sessionTickets = sessionTickets;
+            this.protocols = protocols;
+            this.cipherSuites = cipherSuites;
         }
 
         public static TlsConfig fromRawResource(int resourceId, String keyStorePassword) {
@@ -267,6 +715,78 @@ public final class Shnet {
                     keyStoreType, keyStorePassword, keyPassword);
         }
 
+        public TlsConfig withSessionCache(int size, int timeoutSeconds) {
+            if (size < 0 || timeoutSeconds < 0) {
+                return this;
+            }
+            return new TlsConfig(source, keyStoreResourceId, keyStorePath, keyStoreType, keyStorePassword,
+                    keyPassword, size, timeoutSeconds, sessionTickets, protocols, cipherSuites);
+        }
+
+        public TlsConfig withSessionTickets(boolean enabled) {
+            return new TlsConfig(source, keyStoreResourceId, keyStorePath, keyStoreType, keyStorePassword,
+                    keyPassword, sessionCacheSize, sessionTimeoutSeconds, enabled, protocols, cipherSuites);
+        }
+
+        public TlsConfig withProtocols(String... protocols) {
+            List<String> normalized = normalizeNames(protocols);
+            if (normalized == null) {
+                return this;
+            }
+            return new TlsConfig(source, keyStoreResourceId, keyStorePath, keyStoreType, keyStorePassword,
+                    keyPassword, sessionCacheSize, sessionTimeoutSeconds, sessionTickets, normalized, cipherSuites);
+        }
+
+        public TlsConfig withCipherSuites(String... cipherSuites) {
+            List<String> normalized = normalizeNames(cipherSuites);
+            if (normalized == null) {
+                return this;
+            }
+            return new TlsConfig(source, keyStoreResourceId, keyStorePath, keyStoreType, keyStorePassword,
+                    keyPassword, sessionCacheSize, sessionTimeoutSeconds, sessionTickets, protocols, normalized);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof TlsConfig)) {
+                return false;
+            }
+            TlsConfig that = (TlsConfig) other;
+            return source == that.source
+                    && keyStoreResourceId == that.keyStoreResourceId
+                    && Objects.equals(keyStorePath, that.keyStorePath)
+                    && keyStoreType.equals(that.keyStoreType)
+                    && Objects.equals(keyStorePassword, that.keyStorePassword)
+                    && Objects.equals(keyPassword, that.keyPassword)
+                    && sessionCacheSize == that.sessionCacheSize
+                    && sessionTimeoutSeconds == that.sessionTimeoutSeconds
+                    && sessionTickets == that.sessionTickets
+                    && protocols.equals(that.protocols)
+                    && cipherSuites.equals(that.cipherSuites);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, keyStoreResourceId, keyStorePath, keyStoreType, sessionCacheSize,
+                    sessionTimeoutSeconds, sessionTickets, protocols, cipherSuites);
+        }
+
+        private static List<String> normalizeNames(String... names) {
+            if (names == null || names.length == 0) {
+                return null;
+            }
+            List<String> normalized = new ArrayList<>(names.length);
+            for (String name : names) {
+                if (name != null && !name.trim().isEmpty() && !normalized.contains(name.trim())) {
+                    normalized.add(name.trim());
+                }
+            }
+            return normalized.isEmpty() ? null : Collections.unmodifiableList(normalized);
+        }
+
         private static String normalizeType(String keyStoreType) {
             if (keyStoreType == null || keyStoreType.isEmpty()) {
                 return KeyStore.getDefaultType();
@@ -281,13 +801,68 @@ public final class Shnet {
         public final String query;
         public final Map<String, String> headers;
         public final byte[] body;
+        public final long contentLength;
+        public final Map<String, String> params;
+        private final InputStream bodyStream;
+        private volatile String route;
 
         Request(String method, String path, String query, Map<String, String> headers, byte[] body) {
+            this(method, path, query, headers, body, body.length, null, Collections.emptyMap());
+        }
+
+        Request(String method, String path, String query, Map<String, String> headers,
+                InputStream bodyStream, long contentLength) {
+            this(method, path, query, headers, new byte[0], contentLength, bodyStream, Collections.emptyMap());
+        }
+
+        private Request(String method, String path, String query, Map<String, String> headers,
+                        byte[] body, long contentLength, InputStream bodyStream, Map<String, String> params) {
             this.method = method;
             this.path = path;
             this.query = query;
             this.headers = headers;
             this.body = body;
+            this.contentLength = contentLength;
+            this.bodyStream = bodyStream;
+            this.params = params;
+        }
+
+        public String param(String name) {
+            return params.get(name);
+        }
+
+        public List<String> headerValues(String name) {
+            if (headers instanceof ShnetHeaders) {
+                return ((ShnetHeaders) headers).values(name);
+            }
+            String value = headers.get(name.toLowerCase(Locale.US));
+            return value == null ? Collections.emptyList() : Collections.singletonList(value);
+        }
+
+        public boolean isBodyStreamed() {
+            return bodyStream != null;
+        }
+
+        public InputStream bodyStream() {
+            return bodyStream != null ? bodyStream : new ByteArrayInputStream(body);
+        }
+
+        public ReadableByteChannel bodyChannel() {
+            return Channels.newChannel(bodyStream());
+        }
+
+        Request withParams(Map<String, String> params) {
+            Request routed = new Request(method, path, query, headers, body, contentLength, bodyStream, params);
+            routed.route = route;
+            return routed;
+        }
+
+        String route() {
+            return route;
+        }
+
+        void route(String route) {
+            this.route = route;
         }
     }
 
@@ -298,7 +873,11 @@ public final class Shnet {
         public final byte[] body;
         public final File file;
         public final String downloadName;
+        public final BodyWriter writer;
+        public final long cacheTtlMs;
         public final Map<String, String> headers;
+        public final WebSocketHandler webSocket;
+        public final Broadcaster events;
 
         private Response(int statusCode,
                          String statusMessage,
@@ -306,1000 +885,710 @@ public final class Shnet {
                          byte[] body,
                          File file,
                          String downloadName,
-                         Map<String, String> headers) {
+                         BodyWriter writer,
+                         long cacheTtlMs,
+                         Map<String, String> headers,
+                         WebSocketHandler webSocket,
+                         Broadcaster events) {
             this.statusCode = statusCode;
             this.statusMessage = statusMessage;
             this.contentType = contentType;
             this.body = body;
             this.file = file;
             this.downloadName = downloadName;
+            this.writer = writer;
+            this.cacheTtlMs = cacheTtlMs;
             this.headers = headers == null ? Collections.emptyMap() : headers;
+            this.webSocket = webSocket;
+            this.events = events;
         }
 
         public static Response text(int statusCode, String contentType, String text) {
             String safeType = contentType == null ? "text/plain; charset=utf-8" : contentType;
             byte[] payload = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
-            return new Response(statusCode, statusMessageFor(statusCode), safeType, payload, null, null, null);
+            return new Response(statusCode, statusMessageFor(statusCode), safeType, payload, null, null, null, -1, null, null, null);
         }
 
         public static Response bytes(int statusCode, String contentType, byte[] body) {
             String safeType = contentType == null ? "application/octet-stream" : contentType;
-            return new Response(statusCode, statusMessageFor(statusCode), safeType, body, null, null, null);
+            return new Response(statusCode, statusMessageFor(statusCode), safeType, body, null, null, null, -1, null, null, null);
         }
 
         public static Response file(File file, String contentType, String downloadName) {
-            return new Response(200, "OK", contentType, null, file, downloadName, null);
+            return new Response(200, "OK", contentType, null, file, downloadName, null, -1, null, null, null);
         }
 
-        public Response withHeader(String key, String value) {
-            Map<String, String> merged = new HashMap<>(headers);
-            merged.put(key, value);
-            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, merged);
+        public static Response stream(int statusCode, String contentType, BodyWriter writer) {
+            if (writer == null) {
+                throw new IllegalArgumentException("Missing writer");
+            }
+            String safeType = contentType == null ? "application/octet-stream" : contentType;
+            return new Response(statusCode, statusMessageFor(statusCode), safeType, null, null, null, writer, -1, null, null, null);
         }
 
-        static String statusMessageFor(int code) {
-            switch (code) {
-                case 200:
-                    return "OK";
-                case 400:
-                    return "Bad Request";
-                case 401:
-                    return "Unauthorized";
-                case 403:
-                    return "Forbidden";
-                case 404:
-                    return "Not Found";
-                case 405:
-                    return "Method Not Allowed";
-                case 413:
-                    return "Payload Too Large";
-                case 500:
-                    return "Internal Server Error";
-                default:
-                    return "";
+        public static Response webSocket(WebSocketHandler handler) {
+            if (handler == null) {
+                throw new IllegalArgumentException("Missing handler");
             }
+            return new Response(101, statusMessageFor(101), null, null, null, null, null, -1, null, handler, null);
         }
-    }
 
-    public static final class Link {
-        public final String label;
-        public final String url;
-        public final boolean isIpv6;
+        public static Response events(Broadcaster broadcaster) {
+            if (broadcaster == null) {
+                throw new IllegalArgumentException("Missing broadcaster");
+            }
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Cache-Control", "no-cache");
+            return new Response(200, "OK", "text/event-stream", null, null, null, null, -1, headers, null, broadcaster);
+        }
 
-        public Link(String label, String url, boolean isIpv6) {
-            this.label = label;
-            this.url = url;
-            this.isIpv6 = isIpv6;
+        public static Builder builder(int statusCode) {
+            return new Builder(statusCode);
         }
-    }
 
-    public static void start(Context context, Config config, Handler handler) {
-        if (context == null || config == null || handler == null) {
-            throw new IllegalArgumentException("Missing context/config/handler");
+        public Response withHeader(String key, String value) {
+            Map<String, String> merged = new HashMap<>(headers);
+            merged.put(key, value);
+            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, writer, cacheTtlMs, merged, webSocket, events);
         }
-        Context appContext = context.getApplicationContext();
-        ShnetRuntime.setEphemeral(appContext, config, handler);
-        Intent intent = new Intent(appContext, ShnetNodeService.class);
-        intent.setAction(ACTION_START);
-        startServiceCompat(appContext, intent);
-    }
 
-    public static void startPersistent(Context context, Config config, Class<? extends HandlerFactory> factoryClass) {
-        if (context == null || config == null || factoryClass == null) {
-            throw new IllegalArgumentException("Missing context/config/factory");
+        public Response withCacheTtl(long cacheTtlMs) {
+            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, writer,
+                    Math.max(0, cacheTtlMs), headers, webSocket, events);
         }
-        Context appContext = context.getApplicationContext();
-        ShnetRuntime.setPersistent(appContext, config, factoryClass);
-        Intent intent = new Intent(appContext, ShnetNodeService.class);
-        intent.setAction(ACTION_START);
-        startServiceCompat(appContext, intent);
-    }
 
-    public static void stop(Context context) {
-        if (context == null) {
-            return;
+        Response withStatus(int statusCode, String contentType) {
+            return new Response(statusCode, statusMessageFor(statusCode), contentType, body, file, downloadName, writer, cacheTtlMs, headers, webSocket, events);
         }
-        Context appContext = context.getApplicationContext();
-        Intent intent = new Intent(appContext, ShnetNodeService.class);
-        intent.setAction(ACTION_STOP);
-        appContext.startService(intent);
-    }
-
-    public static boolean isRunning(Context context) {
-        return ShnetRuntime.isRunning(context);
-    }
 
-    public static String lastError(Context context) {
-        return ShnetRuntime.getLastError(context);
-    }
-
-    public static long lastStartAttempt(Context context) {
-        return ShnetRuntime.getLastStartAttempt(context);
-    }
+        Response withBody(byte[] body) {
+            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, writer, cacheTtlMs, headers, webSocket, events);
+        }
 
-    public static List<Link> links(Context context, int port, LinkPreference preference) {
-        return links(context, port, preference, false);
-    }
+        Response withFile(File file) {
+            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, writer, cacheTtlMs, headers, webSocket, events);
+        }
 
-    public static List<Link> links(Context context, Config config, LinkPreference preference) {
-        if (config == null) {
-            return Collections.emptyList();
+        Response withWriter(BodyWriter writer) {
+            return new Response(statusCode, statusMessage, contentType, body, file, downloadName, writer, cacheTtlMs, headers, webSocket, events);
         }
-        return links(context, config.port, preference, config.tlsConfig != null);
-    }
 
-    private static List<Link> links(Context context, int port, LinkPreference preference, boolean tls) {
-        String scheme = tls ? "https" : "http";
-        List<Link> results = new ArrayList<>();
-        Set<String> seen = new HashSet<>();
-        if (context != null) {
-            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            if (cm != null) {
-                Network[] networks = cm.getAllNetworks();
-                if (networks != null) {
-                    for (Network network : networks) {
-                        NetworkCapabilities caps = cm.getNetworkCapabilities(network);
-                        if (caps != null && (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
-                                || caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET))) {
-                            collectActiveLinks(cm, network, port, scheme, results, seen);
-                        }
-                    }
-                }
-                if (results.isEmpty()) {
-                    Network active = cm.getActiveNetwork();
-                    if (active != null) {
-                        collectActiveLinks(cm, active, port, scheme, results, seen);
-                    }
+        String header(String name) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name)) {
+                    return entry.getValue();
                 }
             }
+            return null;
         }
 
-        if (results.isEmpty()) {
-            collectLocalLinks(port, scheme, results, seen);
-        }
-
-        if (results.isEmpty()) {
-            results.add(new Link("localhost IPv4", scheme + "://127.0.0.1:" + port + "/", false));
-            results.add(new Link("localhost IPv6", scheme + "://[::1]:" + port + "/", true));
-        }
+        public static final class Builder {
+            private final int statusCode;
+            private String contentType;
+            private byte[] body;
+            private File file;
+            private String downloadName;
+            private BodyWriter writer;
+            private long cacheTtlMs = -1;
+            private Map<String, String> headers = new HashMap<>();
+            // Set once build() hands the map to a Response; the next header change copies it.
+            private boolean shared;
+
+            private Builder(int statusCode) {
+                this.statusCode = statusCode;
+            }
 
-        return orderLinks(results, preference);
-    }
+            public Builder setContentType(String contentType) {
+                if (contentType != null) {
+                    this.contentType = contentType;
+                }
+                return this;
+            }
 
-    public static Bitmap qr(String text, int size) throws WriterException {
-        QRCodeWriter writer = new QRCodeWriter();
-        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
-        hints.put(EncodeHintType.MARGIN, 1);
-        BitMatrix matrix = writer.encode(text, BarcodeFormat.QR_CODE, size, size, hints);
-        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
-        for (int x = 0; x < size; x++) {
-            for (int y = 0; y < size; y++) {
-                bitmap.setPixel(x, y, matrix.get(x, y) ? Color.BLACK : Color.WHITE);
+            public Builder setBody(byte[] body) {
+                if (body != null) {
+                    this.body = body;
+                    this.file = null;
+                    this.writer = null;
+                }
+                return this;
             }
-        }
-        return bitmap;
-    }
 
-    private static void startServiceCompat(Context context, Intent intent) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            context.startForegroundService(intent);
-        } else {
-            context.startService(intent);
-        }
-    }
+            public Builder setText(String text) {
+                if (text != null) {
+                    setBody(text.getBytes(StandardCharsets.UTF_8));
+                    if (contentType == null) {
+                        contentType = "text/plain; charset=utf-8";
+                    }
+                }
+                return this;
+            }
 
-    private static void collectActiveLinks(ConnectivityManager cm, Network network, int port,
-                                           String scheme,
-                                           List<Link> results, Set<String> seen) {
-        LinkProperties props = cm.getLinkProperties(network);
-        if (props == null) {
-            return;
-        }
-        String ifaceName = props.getInterfaceName();
-        for (LinkAddress link : props.getLinkAddresses()) {
-            InetAddress address = link.getAddress();
-            if (address == null || address.isLoopbackAddress() || address.isAnyLocalAddress()
-                    || address.isMulticastAddress() || address.isLinkLocalAddress()) {
-                continue;
+            public Builder setFile(File file, String downloadName) {
+                if (file != null) {
+                    this.file = file;
+                    this.downloadName = downloadName;
+                    this.body = null;
+                    this.writer = null;
+                }
+                return this;
             }
-            addLink(address, ifaceName, port, scheme, results, seen);
-        }
-    }
 
-    private static void collectLocalLinks(int port, String scheme, List<Link> results, Set<String> seen) {
-        try {
-            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                if (!iface.isUp() || iface.isLoopback()) {
-                    continue;
+            public Builder setWriter(BodyWriter writer) {
+                if (writer != null) {
+                    this.writer = writer;
+                    this.body = null;
+                    this.file = null;
                 }
-                for (InetAddress address : Collections.list(iface.getInetAddresses())) {
-                    if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
-                        continue;
+                return this;
+            }
+
+            public Builder setHeader(String key, String value) {
+                if (key != null && value != null) {
+                    if (shared) {
+                        headers = new HashMap<>(headers);
+                        shared = false;
                     }
-                    addLink(address, iface.getName(), port, scheme, results, seen);
+                    headers.put(key, value);
                 }
+                return this;
             }
-        } catch (SocketException ignored) {
-            // Ignore network enumeration failures.
-        }
-    }
 
-    private static void addLink(InetAddress address, String ifaceName, int port, String scheme,
-                                List<Link> results, Set<String> seen) {
-        if (address instanceof Inet4Address) {
-            String host = address.getHostAddress();
-            String url = scheme + "://" + host + ":" + port + "/";
-            String key = "v4-" + host;
-            if (seen.add(key)) {
-                results.add(new Link(labelForInterface(ifaceName, "IPv4"), url, false));
+            public Builder setCacheTtl(long cacheTtlMs) {
+                if (cacheTtlMs >= 0) {
+                    this.cacheTtlMs = cacheTtlMs;
+                }
+                return this;
             }
-        } else if (address instanceof Inet6Address) {
-            String host = address.getHostAddress();
-            int zoneIndex = host.indexOf('%');
-            if (zoneIndex >= 0) {
-                host = host.substring(0, zoneIndex) + "%25" + host.substring(zoneIndex + 1);
+
+            public Response build() {
+                shared = true;
+                byte[] payload = body == null && file == null && writer == null ? new byte[0] : body;
+                return new Response(statusCode, statusMessageFor(statusCode), contentType, payload, file, downloadName,
+                        writer, cacheTtlMs, headers, null, null);
             }
-            String url = scheme + "://[" + host + "]:" + port + "/";
-            String key = "v6-" + host;
-            if (seen.add(key)) {
-                results.add(new Link(labelForInterface(ifaceName, "IPv6"), url, true));
+        }
+
+        static String statusMessageFor(int code) {
+            switch (code) {
+                case 101:
+                    return "Switching Protocols";
+                case 200:
+                    return "OK";
+                case 206:
+                    return "Partial Content";
+                case 304:
+                    return "Not Modified";
+                case 400:
+                    return "Bad Request";
+                case 401:
+                    return "Unauthorized";
+                case 403:
+                    return "Forbidden";
+                case 404:
+                    return "Not Found";
+                case 405:
+                    return "Method Not Allowed";
+                case 413:
+                    return "Payload Too Large";
+                case 416:
+                    return "Range Not Satisfiable";
+                case 426:
+                    return "Upgrade Required";
+                case 500:
+                    return "Internal Server Error";
+                case 503:
+                    return "Service Unavailable";
+                default:
+                    return "";
             }
         }
     }
 
-    private static String labelForInterface(String ifaceName, String suffix) {
-        if (ifaceName == null || ifaceName.trim().isEmpty()) {
-            return "Active " + suffix;
+    public static final class Router implements AsyncHandler {
+        private final ShnetRouteTrie trie;
+        private final Handler notFound;
+
+        private Router(Builder builder) {
+            this.trie = new ShnetRouteTrie();
+            for (Builder.Route route : builder.routes) {
+                trie.add(route.method, route.pattern, route.handler);
+            }
+            this.notFound = builder.notFound;
         }
-        return ifaceName + " " + suffix;
-    }
 
-    private static List<Link> orderLinks(List<Link> links, LinkPreference preference) {
-        if (preference == null || preference == LinkPreference.ALL) {
-            return links;
+        public static Builder builder() {
+            return new Builder();
         }
-        List<Link> v6 = new ArrayList<>();
-        List<Link> v4 = new ArrayList<>();
-        for (Link link : links) {
-            if (link.isIpv6) {
-                v6.add(link);
+
+        @Override
+        public Response handle(Request request) {
+            ShnetRouteTrie.Match match = trie.match(request.method, request.path);
+            if (match == null) {
+                return notFound.handle(request);
+            }
+            if (match.handler == null) {
+                return methodNotAllowed(match);
+            }
+            request.route(match.route);
+            return match.handler.handle(match.params.isEmpty() ? request : request.withParams(match.params));
+        }
+
+        @Override
+        public void handle(Request request, Responder responder) {
+            ShnetRouteTrie.Match match = trie.match(request.method, request.path);
+            if (match != null && match.handler == null) {
+                responder.complete(methodNotAllowed(match));
+                return;
+            }
+            Handler target = match == null ? notFound : match.handler;
+            if (match != null) {
+                request.route(match.route);
+            }
+            Request routed = match == null || match.params.isEmpty() ? request : request.withParams(match.params);
+            if (target instanceof AsyncHandler) {
+                ((AsyncHandler) target).handle(routed, responder);
             } else {
-                v4.add(link);
+                responder.complete(target.handle(routed));
             }
         }
-        List<Link> ordered = new ArrayList<>(links.size());
-        if (preference == LinkPreference.IPV6_FIRST) {
-            ordered.addAll(v6);
-            ordered.addAll(v4);
-        } else {
-            ordered.addAll(v4);
-            ordered.addAll(v6);
+
+        private static Response methodNotAllowed(ShnetRouteTrie.Match match) {
+            return Response.text(405, "text/plain; charset=utf-8", "Method Not Allowed")
+                    .withHeader("Allow", match.allow);
         }
-        return ordered;
-    }
-}
 
-final class ShnetRuntime {
-    private static final String PREFS_NAME = "shnet_runtime";
-    private static final String KEY_PERSISTENT = "persistent";
-    private static final String KEY_RUNNING = "running";
-    private static final String KEY_ERROR = "error";
-    private static final String KEY_LAST_START = "last_start";
-    private static final String KEY_CONFIG_SET = "config_set";
-    private static final String KEY_PORT = "port";
-    private static final String KEY_ICON = "icon";
-    private static final String KEY_TITLE = "title";
-    private static final String KEY_TEXT = "text";
-    private static final String KEY_CHANNEL_ID = "channel_id";
-    private static final String KEY_CHANNEL_NAME = "channel_name";
-    private static final String KEY_CHANNEL_DESC = "channel_desc";
-    private static final String KEY_STOP_LABEL = "stop_label";
-    private static final String KEY_BIND_MODE = "bind_mode";
-    private static final String KEY_READ_TIMEOUT = "read_timeout";
-    private static final String KEY_MAX_BODY = "max_body";
-    private static final String KEY_WORKERS = "workers";
-    private static final String KEY_FACTORY = "factory";
-    private static final String KEY_TLS_ENABLED = "tls_enabled";
-    private static final String KEY_TLS_SOURCE = "tls_source";
-    private static final String KEY_TLS_RES_ID = "tls_res_id";
-    private static final String KEY_TLS_PATH = "tls_path";
-    private static final String KEY_TLS_STORE_TYPE = "tls_store_type";
-    private static final String KEY_TLS_STORE_PASS = "tls_store_pass";
-    private static final String KEY_TLS_KEY_PASS = "tls_key_pass";
-
-    private static volatile Shnet.Config config;
-    private static volatile Shnet.Handler handler;
-    private static volatile Class<? extends Shnet.HandlerFactory> factoryClass;
-
-    static void setEphemeral(Context context, Shnet.Config config, Shnet.Handler handler) {
-        ShnetRuntime.config = config;
-        ShnetRuntime.handler = handler;
-        ShnetRuntime.factoryClass = null;
-        clearPersistent(context);
-    }
+        public static final class Builder {
+            private final List<Route> routes = new ArrayList<>();
+            private Handler notFound = request -> Response.text(404, "text/plain; charset=utf-8", "Not Found");
 
-    static void setPersistent(Context context, Shnet.Config config,
-                              Class<? extends Shnet.HandlerFactory> factoryClass) {
-        ShnetRuntime.config = config;
-        ShnetRuntime.handler = null;
-        ShnetRuntime.factoryClass = factoryClass;
-        savePersistent(context, config, factoryClass);
-    }
+            private Builder() {
+            }
 
-    static Shnet.Config loadConfig(Context context) {
-        if (config != null) {
-            return config;
-        }
-        return readConfig(context);
-    }
+            public Builder get(String pattern, Handler handler) {
+                return route("GET", pattern, handler);
+            }
 
-    static Shnet.Handler loadHandler(Context context) {
-        if (handler != null) {
-            return handler;
-        }
-        Class<? extends Shnet.HandlerFactory> factory = factoryClass;
-        if (factory == null) {
-            factory = readFactoryClass(context);
-        }
-        if (factory == null) {
-            return null;
-        }
-        try {
-            Shnet.HandlerFactory instance = factory.getDeclaredConstructor().newInstance();
-            return instance.create(context.getApplicationContext());
-        } catch (Exception ignored) {
-            return null;
-        }
-    }
+            public Builder post(String pattern, Handler handler) {
+                return route("POST", pattern, handler);
+            }
 
-    static boolean isPersistent(Context context) {
-        if (context == null) {
-            return false;
-        }
-        return context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getBoolean(KEY_PERSISTENT, false);
-    }
+            public Builder put(String pattern, Handler handler) {
+                return route("PUT", pattern, handler);
+            }
 
-    static boolean isRunning(Context context) {
-        if (context == null) {
-            return false;
-        }
-        return context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getBoolean(KEY_RUNNING, false);
-    }
+            public Builder delete(String pattern, Handler handler) {
+                return route("DELETE", pattern, handler);
+            }
 
-    static String getLastError(Context context) {
-        if (context == null) {
-            return "";
-        }
-        return context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getString(KEY_ERROR, "");
-    }
+            public Builder any(String pattern, Handler handler) {
+                return route(ShnetRouteTrie.ANY_METHOD, pattern, handler);
+            }
 
-    static long getLastStartAttempt(Context context) {
-        if (context == null) {
-            return 0L;
-        }
-        return context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getLong(KEY_LAST_START, 0L);
-    }
+            public Builder webSocket(String pattern, WebSocketHandler handler) {
+                if (handler == null) {
+                    throw new IllegalArgumentException("Missing method/pattern/handler");
+                }
+                return route("GET", pattern, request -> Response.webSocket(handler));
+            }
 
-    static void setRunning(Context context, boolean running) {
-        if (context == null) {
-            return;
-        }
-        context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putBoolean(KEY_RUNNING, running)
-                .apply();
-    }
+            public Builder events(String pattern, Broadcaster broadcaster) {
+                if (broadcaster == null) {
+                    throw new IllegalArgumentException("Missing method/pattern/handler");
+                }
+                return route("GET", pattern, request -> Response.events(broadcaster));
+            }
 
-    static void setLastError(Context context, String message) {
-        if (context == null) {
-            return;
-        }
-        context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putString(KEY_ERROR, message == null ? "" : message)
-                .apply();
-    }
+            public Builder route(String method, String pattern, Handler handler) {
+                if (method == null || pattern == null || handler == null) {
+                    throw new IllegalArgumentException("Missing method/pattern/handler");
+                }
+                routes.add(new Route(method.toUpperCase(Locale.US), pattern, handler));
+                return this;
+            }
 
-    static void setLastStartAttempt(Context context, long timestamp) {
-        if (context == null) {
-            return;
-        }
-        context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putLong(KEY_LAST_START, timestamp)
-                .apply();
-    }
+            public Builder setNotFound(Handler notFound) {
+                if (notFound != null) {
+                    this.notFound = notFound;
+                }
+                return this;
+            }
 
-    static void clear(Context context) {
-        config = null;
-        handler = null;
-        factoryClass = null;
-        if (context == null) {
-            return;
-        }
-        context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .clear()
-                .apply();
-    }
+            public Router build() {
+                return new Router(this);
+            }
+
+            private static final class Route {
+                final String method;
+                final String pattern;
+                final Handler handler;
 
-    private static void clearPersistent(Context context) {
-        if (context == null) {
-            return;
-        }
-        context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .remove(KEY_PERSISTENT)
-                .remove(KEY_CONFIG_SET)
-                .remove(KEY_PORT)
-                .remove(KEY_ICON)
-                .remove(KEY_TITLE)
-                .remove(KEY_TEXT)
-                .remove(KEY_CHANNEL_ID)
-                .remove(KEY_CHANNEL_NAME)
-                .remove(KEY_CHANNEL_DESC)
-                .remove(KEY_STOP_LABEL)
-                .remove(KEY_BIND_MODE)
-                .remove(KEY_READ_TIMEOUT)
-                .remove(KEY_MAX_BODY)
-                .remove(KEY_WORKERS)
-                .remove(KEY_FACTORY)
-                .remove(KEY_TLS_ENABLED)
-                .remove(KEY_TLS_SOURCE)
-                .remove(KEY_TLS_RES_ID)
-                .remove(KEY_TLS_PATH)
-                .remove(KEY_TLS_STORE_TYPE)
-                .remove(KEY_TLS_STORE_PASS)
-                .remove(KEY_TLS_KEY_PASS)
-                .apply();
+                Route(String method, String pattern, Handler handler) {
+                    this.method = method;
+                    this.pattern = pattern;
+                    this.handler = handler;
+                }
+            }
+        }
     }
 
-    private static void savePersistent(Context context, Shnet.Config config,
-                                       Class<? extends Shnet.HandlerFactory> factoryClass) {
-        if (context == null || config == null || factoryClass == null) {
-            return;
-        }
-        android.content.SharedPreferences.Editor editor = context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putBoolean(KEY_PERSISTENT, true)
-                .putBoolean(KEY_CONFIG_SET, true)
-                .putInt(KEY_PORT, config.port)
-                .putInt(KEY_ICON, config.notificationIconRes)
-                .putString(KEY_TITLE, config.notificationTitle)
-                .putString(KEY_TEXT, config.notificationText)
-                .putString(KEY_CHANNEL_ID, config.channelId)
-                .putString(KEY_CHANNEL_NAME, config.channelName)
-                .putString(KEY_CHANNEL_DESC, config.channelDescription)
-                .putString(KEY_STOP_LABEL, config.stopActionLabel)
-                .putString(KEY_BIND_MODE, config.bindMode.name())
-                .putInt(KEY_READ_TIMEOUT, config.readTimeoutMs)
-                .putInt(KEY_MAX_BODY, config.maxBodyBytes)
-                .putInt(KEY_WORKERS, config.workerThreads)
-                .putString(KEY_FACTORY, factoryClass.getName());
-
-        Shnet.TlsConfig tlsConfig = config.tlsConfig;
-        if (tlsConfig != null) {
-            editor.putBoolean(KEY_TLS_ENABLED, true)
-                    .putString(KEY_TLS_SOURCE, tlsConfig.source.name())
-                    .putInt(KEY_TLS_RES_ID, tlsConfig.keyStoreResourceId)
-                    .putString(KEY_TLS_PATH, tlsConfig.keyStorePath)
-                    .putString(KEY_TLS_STORE_TYPE, tlsConfig.keyStoreType)
-                    .putString(KEY_TLS_STORE_PASS, tlsConfig.keyStorePassword)
-                    .putString(KEY_TLS_KEY_PASS, tlsConfig.keyPassword);
-        } else {
-            editor.remove(KEY_TLS_ENABLED)
-                    .remove(KEY_TLS_SOURCE)
-                    .remove(KEY_TLS_RES_ID)
-                    .remove(KEY_TLS_PATH)
-                    .remove(KEY_TLS_STORE_TYPE)
-                    .remove(KEY_TLS_STORE_PASS)
-                    .remove(KEY_TLS_KEY_PASS);
+    public static final class Broadcaster {
+        final ShnetBroadcaster core;
+
+        private Broadcaster(Builder builder) {
+            this.core = new ShnetBroadcaster(builder.replayEvents, builder.maxBacklogBytes, builder.heartbeatMs,
+                    builder.slowSubscriber);
         }
 
-        editor.apply();
-    }
+        public static Builder builder() {
+            return new Builder();
+        }
 
-    private static Shnet.Config readConfig(Context context) {
-        if (context == null) {
-            return null;
+        public long send(String data) {
+            return core.send(null, data);
         }
-        android.content.SharedPreferences prefs = context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        if (!prefs.getBoolean(KEY_CONFIG_SET, false)) {
-            return null;
+
+        public long send(String event, String data) {
+            return core.send(event, data);
         }
-        int port = prefs.getInt(KEY_PORT, 0);
-        int icon = prefs.getInt(KEY_ICON, 0);
-        String title = prefs.getString(KEY_TITLE, "");
-        String text = prefs.getString(KEY_TEXT, "");
-        String channelId = prefs.getString(KEY_CHANNEL_ID, "shnet_node");
-        String channelName = prefs.getString(KEY_CHANNEL_NAME, "shnet node");
-        String channelDesc = prefs.getString(KEY_CHANNEL_DESC, "Keeps the shnet node running");
-        String stopLabel = prefs.getString(KEY_STOP_LABEL, "Stop");
-        String bindName = prefs.getString(KEY_BIND_MODE, Shnet.BindMode.IPV6_PREFERRED.name());
-        Shnet.BindMode bindMode;
-        try {
-            bindMode = Shnet.BindMode.valueOf(bindName);
-        } catch (Exception ignored) {
-            bindMode = Shnet.BindMode.IPV6_PREFERRED;
-        }
-        int readTimeout = prefs.getInt(KEY_READ_TIMEOUT, 4000);
-        int maxBody = prefs.getInt(KEY_MAX_BODY, 256 * 1024);
-        int workers = prefs.getInt(KEY_WORKERS, 4);
-        Shnet.Config.Builder builder = Shnet.Config.builder(port, icon, title, text)
-                .setChannel(channelId, channelName, channelDesc)
-                .setStopActionLabel(stopLabel)
-                .setBindMode(bindMode)
-                .setReadTimeoutMs(readTimeout)
-                .setMaxBodyBytes(maxBody)
-                .setWorkerThreads(workers);
-
-        Shnet.TlsConfig tlsConfig = readTlsConfig(prefs);
-        if (tlsConfig != null) {
-            builder.setTlsConfig(tlsConfig);
-        }
-
-        return builder.build();
-    }
 
-    private static Shnet.TlsConfig readTlsConfig(android.content.SharedPreferences prefs) {
-        if (prefs == null || !prefs.getBoolean(KEY_TLS_ENABLED, false)) {
-            return null;
+        public int subscribers() {
+            return core.subscribers();
         }
-        String sourceName = prefs.getString(KEY_TLS_SOURCE, null);
-        Shnet.TlsConfig.Source source;
-        try {
-            source = Shnet.TlsConfig.Source.valueOf(sourceName);
-        } catch (Exception ignored) {
-            return null;
+
+        public void close() {
+            core.close();
         }
-        String storeType = prefs.getString(KEY_TLS_STORE_TYPE, KeyStore.getDefaultType());
-        String storePass = prefs.getString(KEY_TLS_STORE_PASS, null);
-        String keyPass = prefs.getString(KEY_TLS_KEY_PASS, null);
-        try {
-            if (source == Shnet.TlsConfig.Source.RAW_RESOURCE) {
-                int resId = prefs.getInt(KEY_TLS_RES_ID, 0);
-                if (resId <= 0) {
-                    return null;
-                }
-                return Shnet.TlsConfig.fromRawResource(resId, storePass, keyPass, storeType);
+
+        public static final class Builder {
+            private static final int DEFAULT_REPLAY_EVENTS = 64;
+            private static final int DEFAULT_MAX_BACKLOG_BYTES = 64 * 1024;
+            private static final int DEFAULT_HEARTBEAT_MS = 15 * 1000;
+
+            private int replayEvents = DEFAULT_REPLAY_EVENTS;
+            private int maxBacklogBytes = DEFAULT_MAX_BACKLOG_BYTES;
+            private int heartbeatMs = DEFAULT_HEARTBEAT_MS;
+            private SlowSubscriber slowSubscriber = SlowSubscriber.DISCONNECT;
+
+            private Builder() {
             }
-            if (source == Shnet.TlsConfig.Source.FILE) {
-                String path = prefs.getString(KEY_TLS_PATH, null);
-                if (path == null || path.trim().isEmpty()) {
-                    return null;
+
+            public Builder setReplayEvents(int replayEvents) {
+                if (replayEvents >= 0) {
+                    this.replayEvents = replayEvents;
                 }
-                return Shnet.TlsConfig.fromFile(path, storePass, keyPass, storeType);
+                return this;
             }
-        } catch (IllegalArgumentException ignored) {
-            return null;
-        }
-        return null;
-    }
 
-    @SuppressWarnings("unchecked")
-    private static Class<? extends Shnet.HandlerFactory> readFactoryClass(Context context) {
-        if (context == null) {
-            return null;
-        }
-        String className = context.getApplicationContext()
-                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getString(KEY_FACTORY, null);
-        if (className == null || className.trim().isEmpty()) {
-            return null;
-        }
-        try {
-            Class<?> raw = Class.forName(className);
-            if (Shnet.HandlerFactory.class.isAssignableFrom(raw)) {
-                return (Class<? extends Shnet.HandlerFactory>) raw;
+            public Builder setMaxBacklogBytes(int maxBacklogBytes) {
+                if (maxBacklogBytes > 0) {
+                    this.maxBacklogBytes = maxBacklogBytes;
+                }
+                return this;
             }
-        } catch (Exception ignored) {
-            return null;
-        }
-        return null;
-    }
-}
 
-final class ShnetServer {
-    private static final int MAX_HEADER_BYTES = 32 * 1024;
-    private static final int MAX_LINE_BYTES = 8192;
-
-    private final Context context;
-    private final Shnet.Handler handler;
-    private final Shnet.Config config;
-    private ServerSocket ipv6Socket;
-    private ServerSocket ipv4Socket;
-    private Thread ipv6Thread;
-    private Thread ipv4Thread;
-    private ExecutorService workers;
-    private volatile boolean running;
-    private String bindHost = "";
-
-    ShnetServer(Context context, Shnet.Handler handler, Shnet.Config config) {
-        this.context = context == null ? null : context.getApplicationContext();
-        this.handler = handler;
-        this.config = config;
-    }
+            public Builder setHeartbeatMs(int heartbeatMs) {
+                if (heartbeatMs >= 0) {
+                    this.heartbeatMs = heartbeatMs;
+                }
+                return this;
+            }
 
-    synchronized void start() throws IOException {
-        if (running) {
-            return;
-        }
-        running = true;
-        ServerSocketFactory socketFactory = null;
-        if (config.tlsConfig != null) {
-            try {
-                socketFactory = buildTlsSocketFactory();
-            } catch (IOException e) {
-                running = false;
-                throw e;
-            }
-        }
-        workers = Executors.newFixedThreadPool(Math.max(1, config.workerThreads),
-                new ShnetThreadFactory());
-        ipv6Socket = null;
-        ipv4Socket = null;
-        IOException lastException = null;
-
-        if (config.bindMode == Shnet.BindMode.IPV6_ONLY || config.bindMode == Shnet.BindMode.DUAL
-                || config.bindMode == Shnet.BindMode.IPV6_PREFERRED) {
-            try {
-                ipv6Socket = bindSocket("::", config.port, socketFactory);
-            } catch (IOException ex) {
-                lastException = ex;
-                ipv6Socket = null;
-            }
-        }
-
-        if (config.bindMode == Shnet.BindMode.IPV4_ONLY || config.bindMode == Shnet.BindMode.DUAL
-                || (config.bindMode == Shnet.BindMode.IPV6_PREFERRED && ipv6Socket == null)) {
-            try {
-                ipv4Socket = bindSocket("0.0.0.0", config.port, socketFactory);
-            } catch (IOException ex) {
-                if (lastException == null) {
-                    lastException = ex;
+            public Builder setSlowSubscriber(SlowSubscriber slowSubscriber) {
+                if (slowSubscriber != null) {
+                    this.slowSubscriber = slowSubscriber;
                 }
-                ipv4Socket = null;
+                return this;
             }
-        }
 
-        if (ipv6Socket == null && ipv4Socket == null) {
-            running = false;
-            shutdownWorkers();
-            if (lastException != null) {
-                throw lastException;
+            public Broadcaster build() {
+                return new Broadcaster(this);
             }
-            throw new IOException("Unable to bind shnet server");
         }
+    }
 
-        if (ipv6Socket != null) {
-            ipv6Thread = new Thread(() -> runLoop(ipv6Socket), "ShnetServer-v6");
-            ipv6Thread.start();
-        }
-        if (ipv4Socket != null) {
-            ipv4Thread = new Thread(() -> runLoop(ipv4Socket), "ShnetServer-v4");
-            ipv4Thread.start();
-        }
+    public static final class Link {
+        public final String label;
+        public final String url;
+        public final boolean isIpv6;
 
-        if (ipv6Socket != null && ipv4Socket != null) {
-            bindHost = "dual";
-        } else if (ipv6Socket != null) {
-            bindHost = "::";
-        } else {
-            bindHost = "0.0.0.0";
+        public Link(String label, String url, boolean isIpv6) {
+            this.label = label;
+            this.url = url;
+            this.isIpv6 = isIpv6;
         }
     }
 
-    synchronized void stop() {
-        running = false;
-        closeQuietly(ipv6Socket);
-        closeQuietly(ipv4Socket);
-        ipv6Socket = null;
-        ipv4Socket = null;
-        if (ipv6Thread != null) {
-            ipv6Thread.interrupt();
-        }
-        if (ipv4Thread != null) {
-            ipv4Thread.interrupt();
-        }
-        shutdownWorkers();
+    public static final class CacheStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int entries;
+        public final long bytes;
+
+        CacheStats(long hits, long misses, long evictions, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
     }
 
-    boolean isRunning() {
-        return running;
-    }
+    public static final class LoadStats {
+        public final int queued;
+        public final long admitted;
+        public final long shedQueueFull;
+        public final long shedQueueWait;
+        public final int connectionThreads;
+        public final long shedConnectionThreads;
 
-    int getPort() {
-        return config.port;
+        LoadStats(int queued, long admitted, long shedQueueFull, long shedQueueWait, int connectionThreads,
+                  long shedConnectionThreads) {
+            this.queued = queued;
+            this.admitted = admitted;
+            this.shedQueueFull = shedQueueFull;
+            this.shedQueueWait = shedQueueWait;
+            this.connectionThreads = connectionThreads;
+            this.shedConnectionThreads = shedConnectionThreads;
+        }
     }
 
-    String getBindHost() {
-        return bindHost;
-    }
+    public static final class Metrics {
+        public final long uptimeMs;
+        public final long connections;
+        public final long reusedRequests;
+        public final long requests;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long status1xx;
+        public final long status2xx;
+        public final long status3xx;
+        public final long status4xx;
+        public final long status5xx;
+        public final Map<String, RouteMetrics> routes;
+        public final long tlsFullHandshakes;
+        public final long tlsResumedHandshakes;
+        public final long tlsFailedHandshakes;
+        public final RouteMetrics tlsHandshakes;
 
-    private ServerSocket bindSocket(String host, int port, ServerSocketFactory factory) throws IOException {
-        ServerSocket socket = factory == null ? new ServerSocket() : factory.createServerSocket();
-        socket.setReuseAddress(true);
-        socket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
-        if (socket instanceof SSLServerSocket) {
-            ((SSLServerSocket) socket).setUseClientMode(false);
+        Metrics(long uptimeMs, long connections, long reusedRequests, long requests, long bytesIn, long bytesOut,
+                long[] statusClasses, Map<String, RouteMetrics> routes, long tlsFullHandshakes,
+                long tlsResumedHandshakes, long tlsFailedHandshakes, RouteMetrics tlsHandshakes) {
+            this.uptimeMs = uptimeMs;
+            this.connections = connections;
+            this.reusedRequests = reusedRequests;
+            this.requests = requests;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.status1xx = statusClasses[1];
+            this.status2xx = statusClasses[2];
+            this.status3xx = statusClasses[3];
+            this.status4xx = statusClasses[4];
+            this.status5xx = statusClasses[5];
+            this.routes = routes;
+            this.tlsFullHandshakes = tlsFullHandshakes;
+            this.tlsResumedHandshakes = tlsResumedHandshakes;
+            this.tlsFailedHandshakes = tlsFailedHandshakes;
+            this.tlsHandshakes = tlsHandshakes;
         }
-        return socket;
     }
 
-    private ServerSocketFactory buildTlsSocketFactory() throws IOException {
-        Shnet.TlsConfig tlsConfig = config.tlsConfig;
-        if (tlsConfig == null) {
-            return null;
-        }
-        try {
-            SSLContext sslContext = buildSslContext(tlsConfig);
-            return sslContext.getServerSocketFactory();
-        } catch (GeneralSecurityException e) {
-            throw new IOException("TLS init failed", e);
+    public static final class RouteMetrics {
+        public final long count;
+        public final long totalMicros;
+        public final long maxMicros;
+        public final long p50Micros;
+        public final long p90Micros;
+        public final long p99Micros;
+
+        RouteMetrics(long count, long totalMicros, long maxMicros, long p50Micros, long p90Micros, long p99Micros) {
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
         }
     }
 
-    private SSLContext buildSslContext(Shnet.TlsConfig tlsConfig)
-            throws IOException, GeneralSecurityException {
-        KeyStore keyStore = KeyStore.getInstance(tlsConfig.keyStoreType);
-        char[] storePassword = passwordChars(tlsConfig.keyStorePassword);
-        try (InputStream input = openKeyStoreInputStream(tlsConfig)) {
-            keyStore.load(input, storePassword);
-        }
-        KeyManagerFactory keyManagerFactory =
-                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        char[] keyPassword = passwordChars(selectKeyPassword(tlsConfig));
-        keyManagerFactory.init(keyStore, keyPassword);
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
-        return sslContext;
-    }
+    public static final class Node {
+        private final ShnetServer server;
 
-    private InputStream openKeyStoreInputStream(Shnet.TlsConfig tlsConfig) throws IOException {
-        if (tlsConfig.source == Shnet.TlsConfig.Source.RAW_RESOURCE) {
-            if (context == null) {
-                throw new IOException("Missing context for TLS keystore");
-            }
-            return context.getResources().openRawResource(tlsConfig.keyStoreResourceId);
+        Node(ShnetServer server) {
+            this.server = server;
         }
-        if (tlsConfig.source == Shnet.TlsConfig.Source.FILE) {
-            return new FileInputStream(tlsConfig.keyStorePath);
+
+        public int port() {
+            return server.getPort();
         }
-        throw new IOException("Unknown TLS keystore source");
-    }
 
-    private String selectKeyPassword(Shnet.TlsConfig tlsConfig) {
-        if (tlsConfig.keyPassword != null) {
-            return tlsConfig.keyPassword;
+        public boolean isRunning() {
+            return server.isRunning();
         }
-        return tlsConfig.keyStorePassword;
-    }
 
-    private char[] passwordChars(String password) {
-        if (password == null) {
-            return null;
+        public void stop() {
+            server.stop();
         }
-        return password.toCharArray();
-    }
 
-    private void runLoop(ServerSocket socket) {
-        while (running && socket != null) {
-            try {
-                Socket clientSocket = socket.accept();
-                if (workers != null) {
-                    workers.execute(() -> handleClient(clientSocket));
-                } else {
-                    handleClient(clientSocket);
-                }
-            } catch (IOException ignored) {
-                if (!running) {
-                    return;
-                }
-            }
+        public Metrics metrics() {
+            return server.metrics().snapshot();
         }
-    }
 
-    private void handleClient(Socket socket) {
-        try (Socket client = socket) {
-            client.setSoTimeout(config.readTimeoutMs);
-            InputStream input = client.getInputStream();
-            OutputStream output = client.getOutputStream();
+        public LoadStats loadStats() {
+            return server.loadShedder().stats();
+        }
 
-            String requestLine = readLine(input, MAX_LINE_BYTES);
-            if (requestLine == null || requestLine.isEmpty()) {
-                return;
-            }
-            String[] parts = requestLine.split(" ");
-            if (parts.length < 2) {
-                sendResponse(output, Shnet.Response.text(400, "text/plain; charset=utf-8", "Bad Request"));
-                return;
-            }
-            String method = parts[0].trim();
-            String rawPath = parts[1].trim();
-            String path = rawPath;
-            String query = "";
-            int queryIndex = rawPath.indexOf('?');
-            if (queryIndex >= 0) {
-                path = rawPath.substring(0, queryIndex);
-                query = rawPath.substring(queryIndex + 1);
-            }
+        public void invalidateCache() {
+            invalidateCache(null);
+        }
 
-            Map<String, String> headers = new HashMap<>();
-            int headerBytes = 0;
-            String headerLine;
-            while ((headerLine = readLine(input, MAX_LINE_BYTES)) != null && !headerLine.isEmpty()) {
-                headerBytes += headerLine.length();
-                if (headerBytes > MAX_HEADER_BYTES) {
-                    sendResponse(output, Shnet.Response.text(400, "text/plain; charset=utf-8", "Bad Request"));
-                    return;
-                }
-                int idx = headerLine.indexOf(':');
-                if (idx > 0) {
-                    String key = headerLine.substring(0, idx).trim().toLowerCase(Locale.US);
-                    String value = headerLine.substring(idx + 1).trim();
-                    headers.put(key, value);
-                }
+        public void invalidateCache(String pathPrefix) {
+            ShnetResponseCache cache = server.responseCache();
+            if (cache != null) {
+                cache.invalidate(pathPrefix);
             }
+        }
 
-            int contentLength = 0;
-            String lengthHeader = headers.get("content-length");
-            if (lengthHeader != null) {
-                try {
-                    contentLength = Integer.parseInt(lengthHeader);
-                } catch (NumberFormatException ignored) {
-                    contentLength = 0;
-                }
-            }
-            if (contentLength > config.maxBodyBytes) {
-                sendResponse(output, Shnet.Response.text(413, "text/plain; charset=utf-8", "Payload Too Large"));
-                return;
-            }
-            byte[] body = contentLength > 0 ? readBody(input, contentLength) : new byte[0];
+        public CacheStats cacheStats() {
+            ShnetResponseCache cache = server.responseCache();
+            return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0);
+        }
 
-            Shnet.Request request = new Shnet.Request(method, path, query, headers, body);
-            Shnet.Response response;
-            try {
-                response = handler != null ? handler.handle(request) : null;
-            } catch (Exception ex) {
-                response = Shnet.Response.text(500, "text/plain; charset=utf-8", "Internal Server Error");
-            }
-            if (response == null) {
-                response = Shnet.Response.text(404, "text/plain; charset=utf-8", "Not Found");
-            }
+        public boolean reloadTls() {
+            TlsConfig tls = server.config().tlsConfig;
+            return tls != null && ShnetTlsContexts.reload(tls);
+        }
+    }
 
-            if (response.file != null) {
-                sendFileResponse(output, response);
-            } else {
-                sendResponse(output, response);
-            }
-        } catch (IOException ignored) {
-            // Ignore socket errors.
+    // Answers GET and HEAD with 304 from the validator alone when the client's copy is current, so the
+    // handler never runs; other requests, and stale copies, go to the handler.
+    public static Handler conditional(Validator validator, Handler handler) {
+        if (validator == null || handler == null) {
+            throw new IllegalArgumentException("Missing validator/handler");
         }
+        return new ShnetConditionalHandler(validator, handler);
     }
 
-    private byte[] readBody(InputStream input, int length) throws IOException {
-        byte[] data = new byte[length];
-        int total = 0;
-        while (total < length) {
-            int read = input.read(data, total, length - total);
-            if (read == -1) {
-                break;
-            }
-            total += read;
+    public static Node serve(Config config, Handler handler) throws IOException {
+        if (config == null || handler == null) {
+            throw new IllegalArgumentException("Missing config/handler");
         }
-        if (total == length) {
-            return data;
+        ShnetServer server = new ShnetServer(null, handler, config);
+        server.start();
+        return new Node(server);
+    }
+
+    public static List<Link> links(int port, LinkPreference preference) {
+        return completeLinks(port, "http", new ArrayList<>(), new HashSet<>(), preference);
+    }
+
+    public static List<Link> links(Config config, LinkPreference preference) {
+        if (config == null) {
+            return Collections.emptyList();
         }
-        return Arrays.copyOf(data, total);
+        return completeLinks(config.port, config.tlsConfig != null ? "https" : "http",
+                new ArrayList<>(), new HashSet<>(), preference);
     }
 
-    private String readLine(InputStream input, int limit) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int b;
-        while ((b = input.read()) != -1) {
-            if (b == '\n') {
-                break;
-            }
-            if (b != '\r') {
-                buffer.write(b);
-                if (buffer.size() > limit) {
-                    throw new IOException("Line too long");
-                }
-            }
+    static List<Link> completeLinks(int port, String scheme, List<Link> results, Set<String> seen,
+                                    LinkPreference preference) {
+        if (results.isEmpty()) {
+            collectLocalLinks(port, scheme, results, seen);
         }
-        if (b == -1 && buffer.size() == 0) {
-            return null;
+
+        if (results.isEmpty()) {
+            results.add(new Link("localhost IPv4", scheme + "://127.0.0.1:" + port + "/", false));
+            results.add(new Link("localhost IPv6", scheme + "://[::1]:" + port + "/", true));
         }
-        return buffer.toString(StandardCharsets.US_ASCII.name());
-    }
 
-    private void sendResponse(OutputStream output, Shnet.Response response) throws IOException {
-        byte[] body = response.body == null ? new byte[0] : response.body;
-        String contentType = response.contentType == null ? "text/plain; charset=utf-8" : response.contentType;
-        StringBuilder header = new StringBuilder();
-        header.append("HTTP/1.1 ").append(response.statusCode).append(" ").append(response.statusMessage).append("\r\n");
-        header.append("Content-Type: ").append(contentType).append("\r\n");
-        header.append("Content-Length: ").append(body.length).append("\r\n");
-        header.append("Cache-Control: no-store\r\n");
-        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
-            header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
-        }
-        header.append("Connection: close\r\n\r\n");
-        output.write(header.toString().getBytes(StandardCharsets.UTF_8));
-        output.write(body);
+        return orderLinks(results, preference);
     }
 
-    private void sendFileResponse(OutputStream output, Shnet.Response response) throws IOException {
-        File file = response.file;
-        if (file == null || !file.exists()) {
-            sendResponse(output, Shnet.Response.text(404, "text/plain; charset=utf-8", "Not Found"));
-            return;
-        }
-        String contentType = response.contentType == null ? "application/octet-stream" : response.contentType;
-        long length = file.length();
-        StringBuilder header = new StringBuilder();
-        header.append("HTTP/1.1 ").append(response.statusCode).append(" ").append(response.statusMessage).append("\r\n");
-        header.append("Content-Type: ").append(contentType).append("\r\n");
-        header.append("Content-Length: ").append(length).append("\r\n");
-        if (response.downloadName != null && !response.downloadName.isEmpty()) {
-            header.append("Content-Disposition: attachment; filename=\"")
-                    .append(response.downloadName)
-                    .append("\"\r\n");
-        }
-        header.append("Cache-Control: no-store\r\n");
-        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
-            header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
-        }
-        header.append("Connection: close\r\n\r\n");
-        output.write(header.toString().getBytes(StandardCharsets.UTF_8));
-        try (java.io.FileInputStream input = new java.io.FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = input.read(buffer)) != -1) {
-                output.write(buffer, 0, read);
+    static int[] qrPixels(String text, int size) throws WriterException {
+        QRCodeWriter writer = new QRCodeWriter();
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 1);
+        BitMatrix matrix = writer.encode(text, BarcodeFormat.QR_CODE, size, size, hints);
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            int row = y * size;
+            for (int x = 0; x < size; x++) {
+                pixels[row + x] = matrix.get(x, y) ? QR_BLACK : QR_WHITE;
             }
         }
+        return pixels;
     }
 
-    private void closeQuietly(ServerSocket socket) {
-        if (socket == null) {
-            return;
-        }
+    private static void collectLocalLinks(int port, String scheme, List<Link> results, Set<String> seen) {
         try {
-            socket.close();
-        } catch (IOException ignored) {
-            // Ignore close errors.
+            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!iface.isUp() || iface.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(iface.getInetAddresses())) {
+                    if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
+                        continue;
+                    }
+                    addLink(address, iface.getName(), port, scheme, results, seen);
+                }
+            }
+        } catch (SocketException ignored) {
+            // Ignore network enumeration failures.
         }
     }
 
-    private void shutdownWorkers() {
-        if (workers != null) {
-            workers.shutdownNow();
-            workers = null;
+    static void addLink(InetAddress address, String ifaceName, int port, String scheme,
+                                List<Link> results, Set<String> seen) {
+        if (address instanceof Inet4Address) {
+            String host = address.getHostAddress();
+            String url = scheme + "://" + host + ":" + port + "/";
+            String key = "v4-" + host;
+            if (seen.add(key)) {
+                results.add(new Link(labelForInterface(ifaceName, "IPv4"), url, false));
+            }
+        } else if (address instanceof Inet6Address) {
+            String host = address.getHostAddress();
+            int zoneIndex = host.indexOf('%');
+            if (zoneIndex >= 0) {
+                host = host.substring(0, zoneIndex) + "%25" + host.substring(zoneIndex + 1);
+            }
+            String url = scheme + "://[" + host + "]:" + port + "/";
+            String key = "v6-" + host;
+            if (seen.add(key)) {
+                results.add(new Link(labelForInterface(ifaceName, "IPv6"), url, true));
+            }
         }
     }
 
-    private static final class ShnetThreadFactory implements ThreadFactory {
-        private final AtomicInteger counter = new AtomicInteger(1);
+    private static String labelForInterface(String ifaceName, String suffix) {
+        if (ifaceName == null || ifaceName.trim().isEmpty()) {
+            return "Active " + suffix;
+        }
+        return ifaceName + " " + suffix;
+    }
 
-        @Override
-        public Thread newThread(Runnable runnable) {
-            return new Thread(runnable, "ShnetWorker-" + counter.getAndIncrement());
+    private static List<Link> orderLinks(List<Link> links, LinkPreference preference) {
+        if (preference == null || preference == LinkPreference.ALL) {
+            return links;
         }
+        List<Link> v6 = new ArrayList<>();
+        List<Link> v4 = new ArrayList<>();
+        for (Link link : links) {
+            if (link.isIpv6) {
+                v6.add(link);
+            } else {
+                v4.add(link);
+            }
+        }
+        List<Link> ordered = new ArrayList<>(links.size());
+        if (preference == LinkPreference.IPV6_FIRST) {
+            ordered.addAll(v6);
+            ordered.addAll(v4);
+        } else {
+            ordered.addAll(v4);
+            ordered.addAll(v6);
+        }
+        return ordered;
     }
 }
@@ -0,0 +1,102 @@
+package io.shnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+final class ShnetBodyOutputStream extends OutputStream {
+    private static final int CHUNK_BYTES = 8192;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream output;
+    private final boolean chunked;
+    private final byte[] buffer = new byte[CHUNK_BYTES];
+    private int count;
+    private boolean finished;
+
+    ShnetBodyOutputStream(OutputStream output, boolean chunked) {
+        this.output = output;
+        this.chunked = chunked;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            emit();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (count == 0 && length >= buffer.length) {
+                writeChunk(source, offset, length);
+                output.flush();
+                return;
+            }
+            int copied = Math.min(length, buffer.length - count);
+            System.arraycopy(source, offset, buffer, count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+            if (count == buffer.length) {
+                emit();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        emit();
+    }
+
+    @Override
+    public void close() {
+        // The connection owns the socket; finish() ends the body once the writer returns.
+    }
+
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+        if (chunked) {
+            output.write(LAST_CHUNK);
+        }
+        output.flush();
+        finished = true;
+    }
+
+    private void emit() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+        output.flush();
+    }
+
+    private void writeChunk(byte[] source, int offset, int length) throws IOException {
+        if (chunked) {
+            output.write(Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII));
+            output.write(CRLF);
+            output.write(source, offset, length);
+            output.write(CRLF);
+        } else {
+            output.write(source, offset, length);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Response body already finished");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.shnet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+final class ShnetBodyStream extends InputStream {
+    private final ShnetRequestParser parser;
+    private final InputStream input;
+    private long remaining;
+    private boolean truncated;
+
+    ShnetBodyStream(ShnetRequestParser parser, InputStream input, long length) {
+        this.parser = parser;
+        this.input = input;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] target, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (truncated) {
+            throw new EOFException("Request body truncated");
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int wanted = (int) Math.min(length, remaining);
+        int read = parser.take(target, offset, wanted);
+        if (read == 0) {
+            read = input.read(target, offset, wanted);
+            if (read < 0) {
+                truncated = true;
+                throw new EOFException("Request body truncated");
+            }
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, parser.buffered());
+    }
+
+    @Override
+    public void close() {
+        // The socket belongs to the connection; unread bytes are drained after the handler returns.
+    }
+
+    // A timed-out or reset socket just ends keep-alive; the response still goes out with Connection: close.
+    boolean drain(long limit) {
+        if (remaining > limit || truncated) {
+            return false;
+        }
+        byte[] scratch = new byte[(int) Math.min(8192, Math.max(1, remaining))];
+        try {
+            while (remaining > 0) {
+                read(scratch, 0, scratch.length);
+            }
+        } catch (IOException ignored) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,330 @@
+package io.shnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+final class ShnetBroadcaster {
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static ScheduledThreadPoolExecutor timer;
+
+    interface Sink {
+        void flush(Subscriber subscriber);
+
+        void close();
+    }
+
+    private final int replayEvents;
+    private final int maxBacklogBytes;
+    private final int heartbeatMs;
+    private final Shnet.SlowSubscriber slowSubscriber;
+    private final Object lock = new Object();
+    // Guarded by lock.
+    private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+    private final ArrayDeque<byte[]> replay = new ArrayDeque<>();
+    private long lastId;
+    private boolean closed;
+    private ScheduledFuture<?> heartbeat;
+
+    ShnetBroadcaster(int replayEvents, int maxBacklogBytes, int heartbeatMs, Shnet.SlowSubscriber slowSubscriber) {
+        this.replayEvents = replayEvents;
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.heartbeatMs = heartbeatMs;
+        this.slowSubscriber = slowSubscriber;
+    }
+
+    // Returns null once the broadcaster is closed; the caller then ends the response.
+    Subscriber subscribe(String lastEventId, Sink sink) {
+        Subscriber subscriber = new Subscriber(sink);
+        synchronized (lock) {
+            if (closed) {
+                return null;
+            }
+            int skip = replayStart(lastEventId);
+            int index = 0;
+            for (byte[] event : replay) {
+                if (index++ >= skip) {
+                    subscriber.add(event);
+                }
+            }
+            subscribers.add(subscriber);
+            if (heartbeat == null && heartbeatMs > 0) {
+                heartbeat = timer().scheduleAtFixedRate(this::beat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return subscriber;
+    }
+
+    // Ids are consecutive, so the ring holds ids lastId - size + 1 through lastId.
+    private int replayStart(String lastEventId) {
+        if (lastEventId == null) {
+            return replay.size();
+        }
+        long after;
+        try {
+            after = Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException ignored) {
+            return 0;
+        }
+        long before = lastId - replay.size();
+        if (after >= before && after <= lastId) {
+            return (int) (after - before);
+        }
+        // An id from before a restart or older than the ring: send everything still held.
+        return 0;
+    }
+
+    long send(String event, String data) {
+        synchronized (lock) {
+            if (closed) {
+                return -1;
+            }
+            long id = ++lastId;
+            byte[] encoded = encode(id, event, data);
+            if (replayEvents > 0) {
+                replay.addLast(encoded);
+                if (replay.size() > replayEvents) {
+                    replay.pollFirst();
+                }
+            }
+            // Offering under the lock keeps every subscriber's queue in id order.
+            for (Subscriber subscriber : subscribers.toArray(new Subscriber[0])) {
+                subscriber.offer(encoded);
+            }
+            return id;
+        }
+    }
+
+    int subscribers() {
+        synchronized (lock) {
+            return subscribers.size();
+        }
+    }
+
+    void close() {
+        Subscriber[] remaining;
+        synchronized (lock) {
+            closed = true;
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                heartbeat = null;
+            }
+            remaining = subscribers.toArray(new Subscriber[0]);
+        }
+        for (Subscriber subscriber : remaining) {
+            subscriber.close();
+        }
+    }
+
+    // Keeps idle connections alive through proxies, surfaces dead peers and drops subscribers that stopped reading.
+    private void beat() {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            for (Subscriber subscriber : subscribers.toArray(new Subscriber[0])) {
+                if (subscriber.stalled(now)) {
+                    subscriber.close();
+                } else if (subscriber.isIdle()) {
+                    subscriber.offer(HEARTBEAT);
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(long id, String event, String data) {
+        StringBuilder text = new StringBuilder(64 + (data != null ? data.length() : 0));
+        text.append("id: ").append(id).append('\n');
+        if (event != null && !event.isEmpty()) {
+            text.append("event: ").append(event.replace('\r', ' ').replace('\n', ' ')).append('\n');
+        }
+        String body = data != null ? data : "";
+        int from = 0;
+        int length = body.length();
+        while (true) {
+            int end = from;
+            while (end < length && body.charAt(end) != '\n' && body.charAt(end) != '\r') {
+                end++;
+            }
+            text.append("data: ").append(body, from, end).append('\n');
+            if (end >= length) {
+                break;
+            }
+            from = body.charAt(end) == '\r' && end + 1 < length && body.charAt(end + 1) == '\n' ? end + 2 : end + 1;
+        }
+        text.append('\n');
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "ShnetHeartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    final class Subscriber {
+        private final Sink sink;
+        // Guarded by this. Every subscriber queues the same encoded arrays.
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private long queued;
+        private boolean writing;
+        private boolean closed;
+        private long lastTaken = System.currentTimeMillis();
+
+        private Subscriber(Sink sink) {
+            this.sink = sink;
+        }
+
+        byte[] poll() {
+            synchronized (this) {
+                lastTaken = System.currentTimeMillis();
+                byte[] event = queue.poll();
+                if (event == null) {
+                    writing = false;
+                    return null;
+                }
+                queued -= event.length;
+                return event;
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                queue.clear();
+                queued = 0;
+            }
+            synchronized (lock) {
+                subscribers.remove(this);
+            }
+            sink.close();
+        }
+
+        private synchronized boolean isIdle() {
+            return queue.isEmpty() && !writing;
+        }
+
+        private synchronized boolean stalled(long now) {
+            return !queue.isEmpty() && now - lastTaken > 2L * heartbeatMs;
+        }
+
+        // Replayed events skip the backlog bound: refusing them would only make the client reconnect again.
+        private void add(byte[] event) {
+            boolean wake;
+            synchronized (this) {
+                queue.add(event);
+                queued += event.length;
+                wake = !writing;
+                if (wake) {
+                    // The stall clock starts when there is something to take.
+                    lastTaken = System.currentTimeMillis();
+                    writing = true;
+                }
+            }
+            if (wake) {
+                sink.flush(this);
+            }
+        }
+
+        private void offer(byte[] event) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (queued > 0 && queued + event.length > maxBacklogBytes) {
+                    if (slowSubscriber == Shnet.SlowSubscriber.DROP) {
+                        return;
+                    }
+                    event = null;
+                }
+            }
+            if (event == null) {
+                close();
+            } else {
+                add(event);
+            }
+        }
+    }
+
+    // Blocking and TLS sockets need no reader: writes drain on the worker pool and a failed write ends the subscription.
+    static final class StreamSink implements Sink {
+        private final ShnetServer server;
+        private final ExecutorService workers;
+        private final Socket socket;
+        private final OutputStream output;
+        private boolean closed;
+
+        StreamSink(ShnetServer server, ExecutorService workers, Socket socket, OutputStream output) {
+            this.server = server;
+            this.workers = workers;
+            this.socket = socket;
+            this.output = output;
+        }
+
+        @Override
+        public void flush(Subscriber subscriber) {
+            try {
+                workers.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException ignored) {
+                subscriber.close();
+            }
+        }
+
+        private void drain(Subscriber subscriber) {
+            try {
+                byte[] event;
+                while ((event = subscriber.poll()) != null) {
+                    synchronized (output) {
+                        output.write(event);
+                    }
+                }
+                synchronized (output) {
+                    output.flush();
+                }
+            } catch (IOException ignored) {
+                subscriber.close();
+            }
+        }
+
+        // TLS close can block on a full socket, so it never runs on the broadcasting thread.
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            try {
+                workers.execute(this::end);
+            } catch (RejectedExecutionException ignored) {
+                end();
+            }
+        }
+
+        private void end() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Ignore close errors.
+            }
+            server.connectionClosed(socket);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.shnet;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+final class ShnetCachePolicy {
+    private static final byte[] NO_BODY = new byte[0];
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ShnetCachePolicy() {
+    }
+
+    static Shnet.Response apply(Shnet.Config config, Shnet.Request request, Shnet.Response response) {
+        if (response.statusCode != 200) {
+            return response;
+        }
+        Shnet.Response tagged = response;
+        if (response.header("Cache-Control") == null) {
+            tagged = tagged.withHeader("Cache-Control",
+                    response.file != null ? config.fileCacheControl : config.cacheControl);
+        }
+        if (response.file != null) {
+            if (response.header("ETag") == null) {
+                tagged = tagged.withHeader("ETag",
+                        ShnetFileResponse.etag(response.file.length(), response.file.lastModified()));
+            }
+            if (response.header("Last-Modified") == null) {
+                tagged = tagged.withHeader("Last-Modified", ShnetServer.formatHttpDate(response.file.lastModified()));
+            }
+        } else if (response.body != null && config.bodyEtags != Shnet.EtagMode.NONE
+                && response.header("ETag") == null) {
+            String etag = bodyEtag(response.body);
+            tagged = tagged.withHeader("ETag", config.bodyEtags == Shnet.EtagMode.WEAK ? "W/" + etag : etag);
+        }
+        if (!isNotModified(request, tagged)) {
+            return tagged;
+        }
+        return notModified(ShnetCompression.notModified(config, request.headers, tagged));
+    }
+
+    static Shnet.Response notModified(Shnet.Response response) {
+        return response.withStatus(304, response.contentType)
+                .withBody(NO_BODY)
+                .withFile(null)
+                .withWriter(null);
+    }
+
+    static boolean isNotModified(Shnet.Request request, Shnet.Response response) {
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            return false;
+        }
+        String ifNoneMatch = request.headers.get("if-none-match");
+        if (ifNoneMatch != null) {
+            String etag = response.header("ETag");
+            return etag != null && matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = request.headers.get("if-modified-since");
+        String lastModified = response.header("Last-Modified");
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        long since = ShnetServer.parseHttpDate(ifModifiedSince);
+        long modified = ShnetServer.parseHttpDate(lastModified);
+        return since >= 0 && modified >= 0 && modified <= since;
+    }
+
+    static String weaken(String etag) {
+        return etag.startsWith("W/") ? etag : "W/" + etag;
+    }
+
+    private static boolean matchesAny(String ifNoneMatch, String etag) {
+        String opaque = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || opaque(trimmed).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String bodyEtag(byte[] body) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder etag = new StringBuilder(36);
+        etag.append('"').append(Integer.toHexString(body.length)).append('-');
+        for (int i = 0; i < 10; i++) {
+            etag.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+        }
+        return etag.append('"').toString();
+    }
+}
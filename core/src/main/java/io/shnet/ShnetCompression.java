@@ -0,0 +1,244 @@
+package io.shnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+final class ShnetCompression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    private static final int ENCODER_BUFFER_BYTES = 8192;
+
+    private ShnetCompression() {
+    }
+
+    static Shnet.Response apply(Shnet.Config config, Map<String, String> requestHeaders, Shnet.Response response) {
+        if (!varies(config, response)) {
+            return response;
+        }
+        Shnet.Response varied = vary(response);
+        String encoding = choose(config, requestHeaders, response);
+        if (encoding == null) {
+            return varied;
+        }
+        if (response.file != null) {
+            return encoded(varied.withFile(sibling(response.file)), encoding);
+        }
+        if (response.writer != null) {
+            final Shnet.BodyWriter writer = response.writer;
+            final int level = config.compressionLevel;
+            return encoded(varied.withWriter(output -> {
+                DeflaterOutputStream encoder = encoder(output, encoding, level);
+                try {
+                    writer.writeTo(encoder);
+                    encoder.finish();
+                } finally {
+                    // A writer that throws never reaches finish(), so release the native zlib state here.
+                    end(encoder);
+                }
+            }), encoding);
+        }
+        byte[] compressed = compress(response.body, encoding, config.compressionLevel);
+        if (compressed.length >= response.body.length) {
+            return varied;
+        }
+        return encoded(varied.withBody(compressed), encoding);
+    }
+
+    static Shnet.Response notModified(Shnet.Config config, Map<String, String> requestHeaders,
+                                      Shnet.Response response) {
+        if (!varies(config, response)) {
+            return response;
+        }
+        Shnet.Response varied = vary(response);
+        String etag = response.header("ETag");
+        if (etag == null || choose(config, requestHeaders, response) == null) {
+            return varied;
+        }
+        return varied.withHeader("ETag", ShnetCachePolicy.weaken(etag));
+    }
+
+    private static String choose(Shnet.Config config, Map<String, String> requestHeaders, Shnet.Response response) {
+        String acceptEncoding = requestHeaders.get("accept-encoding");
+        if (response.file != null) {
+            return quality(acceptEncoding, GZIP) > 0 ? GZIP : null;
+        }
+        if (response.writer == null && response.body.length < config.compressionMinBytes) {
+            return null;
+        }
+        return negotiate(acceptEncoding);
+    }
+
+    private static boolean varies(Shnet.Config config, Shnet.Response response) {
+        if (!config.compressResponses || response.statusCode < 200 || response.statusCode == 204
+                || response.statusCode == 206 || response.statusCode == 304
+                || response.header("Content-Encoding") != null) {
+            return false;
+        }
+        if (response.file != null) {
+            return sibling(response.file).isFile();
+        }
+        return (response.writer != null || response.body != null)
+                && isCompressible(config.compressibleTypes, response.contentType);
+    }
+
+    private static File sibling(File file) {
+        return new File(file.getPath() + ".gz");
+    }
+
+    private static Shnet.Response encoded(Shnet.Response response, String encoding) {
+        Shnet.Response result = response.withHeader("Content-Encoding", encoding);
+        String etag = response.header("ETag");
+        return etag == null ? result : result.withHeader("ETag", ShnetCachePolicy.weaken(etag));
+    }
+
+    static String negotiate(String acceptEncoding) {
+        float gzip = quality(acceptEncoding, GZIP);
+        float deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    static float quality(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return 0;
+        }
+        float wildcard = 0;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] params = entry.split(";");
+            String name = params[0].trim();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException ignored) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return q;
+            }
+            if (name.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    static boolean isCompressible(List<String> types, String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mime = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+                .trim().toLowerCase(Locale.US);
+        for (String type : types) {
+            if (type.endsWith("/*") ? mime.startsWith(type.substring(0, type.length() - 1)) : mime.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static byte[] compress(byte[] body, String encoding, int level) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, body.length / 3));
+        DeflaterOutputStream encoder = null;
+        try {
+            encoder = encoder(buffer, encoding, level);
+            encoder.write(body);
+            encoder.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (encoder != null) {
+                end(encoder);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    static DeflaterOutputStream encoder(OutputStream output, String encoding, int level) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GzipEncoder(output, level);
+        }
+        return new DeflateEncoder(output, level);
+    }
+
+    static void end(DeflaterOutputStream encoder) {
+        if (encoder instanceof GzipEncoder) {
+            ((GzipEncoder) encoder).end();
+        } else if (encoder instanceof DeflateEncoder) {
+            ((DeflateEncoder) encoder).end();
+        }
+    }
+
+    private static Shnet.Response vary(Shnet.Response response) {
+        String vary = response.header("Vary");
+        if (vary == null) {
+            return response.withHeader("Vary", "Accept-Encoding");
+        }
+        if (vary.toLowerCase(Locale.US).contains("accept-encoding")) {
+            return response;
+        }
+        return response.withHeader("Vary", vary + ", Accept-Encoding");
+    }
+
+    private static final class GzipEncoder extends GZIPOutputStream {
+        private boolean finished;
+
+        GzipEncoder(OutputStream output, int level) throws IOException {
+            super(output, ENCODER_BUFFER_BYTES, true);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            super.finish();
+            def.end();
+        }
+
+        void end() {
+            finished = true;
+            def.end();
+        }
+    }
+
+    private static final class DeflateEncoder extends DeflaterOutputStream {
+        private boolean finished;
+
+        DeflateEncoder(OutputStream output, int level) {
+            super(output, new Deflater(level), ENCODER_BUFFER_BYTES, true);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            super.finish();
+            def.end();
+        }
+
+        void end() {
+            finished = true;
+            def.end();
+        }
+    }
+}
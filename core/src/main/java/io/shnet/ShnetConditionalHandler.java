@@ -0,0 +1,107 @@
+package io.shnet;
+
+final class ShnetConditionalHandler implements Shnet.AsyncHandler {
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final Shnet.Validator validator;
+    private final Shnet.Handler handler;
+
+    ShnetConditionalHandler(Shnet.Validator validator, Shnet.Handler handler) {
+        this.validator = validator;
+        this.handler = handler;
+    }
+
+    @Override
+    public Shnet.Response handle(Shnet.Request request) {
+        Shnet.Response validators = validators(request);
+        if (validators != null && ShnetCachePolicy.isNotModified(request, validators)) {
+            return ShnetCachePolicy.notModified(validators);
+        }
+        return tag(handler.handle(request), validators);
+    }
+
+    @Override
+    public void handle(Shnet.Request request, Shnet.Responder responder) {
+        Shnet.Response validators = validators(request);
+        if (validators != null && ShnetCachePolicy.isNotModified(request, validators)) {
+            responder.complete(ShnetCachePolicy.notModified(validators));
+        } else if (handler instanceof Shnet.AsyncHandler) {
+            ((Shnet.AsyncHandler) handler).handle(request,
+                    validators == null ? responder : new Tagging(responder, validators));
+        } else {
+            responder.complete(tag(handler.handle(request), validators));
+        }
+    }
+
+    // A bodiless 200 that carries only the validators, or null when the validator knows neither.
+    private Shnet.Response validators(Shnet.Request request) {
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            return null;
+        }
+        String etag = validator.etag(request);
+        long lastModified = validator.lastModified(request);
+        if (etag == null && lastModified < 0) {
+            return null;
+        }
+        Shnet.Response response = Shnet.Response.bytes(200, null, NO_BODY);
+        if (etag != null) {
+            response = response.withHeader("ETag", etag);
+        }
+        if (lastModified >= 0) {
+            response = response.withHeader("Last-Modified", ShnetServer.formatHttpDate(lastModified));
+        }
+        return response;
+    }
+
+    // The handler's own validators win; otherwise a 200 gets the ones it was checked against.
+    private static Shnet.Response tag(Shnet.Response response, Shnet.Response validators) {
+        if (response == null || validators == null || response.statusCode != 200) {
+            return response;
+        }
+        Shnet.Response tagged = response;
+        String etag = validators.header("ETag");
+        if (etag != null && response.header("ETag") == null) {
+            tagged = tagged.withHeader("ETag", etag);
+        }
+        String lastModified = validators.header("Last-Modified");
+        if (lastModified != null && response.header("Last-Modified") == null) {
+            tagged = tagged.withHeader("Last-Modified", lastModified);
+        }
+        return tagged;
+    }
+
+    private static final class Tagging implements Shnet.Responder {
+        private final Shnet.Responder responder;
+        private final Shnet.Response validators;
+
+        Tagging(Shnet.Responder responder, Shnet.Response validators) {
+            this.responder = responder;
+            this.validators = validators;
+        }
+
+        @Override
+        public boolean complete(Shnet.Response response) {
+            return responder.complete(tag(response, validators));
+        }
+
+        @Override
+        public boolean fail(Throwable error) {
+            return responder.fail(error);
+        }
+
+        @Override
+        public boolean isDone() {
+            return responder.isDone();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return responder.isCancelled();
+        }
+
+        @Override
+        public void onCancel(Runnable callback) {
+            responder.onCancel(callback);
+        }
+    }
+}
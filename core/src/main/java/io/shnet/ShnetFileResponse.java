@@ -0,0 +1,219 @@
+package io.shnet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+final class ShnetFileResponse {
+    private static final int MAX_RANGES = 16;
+
+    final Shnet.Response response;
+    final long contentLength;
+    final List<Part> parts;
+
+    private ShnetFileResponse(Shnet.Response response, long contentLength, List<Part> parts) {
+        this.response = response;
+        this.contentLength = contentLength;
+        this.parts = parts;
+    }
+
+    static ShnetFileResponse plan(Map<String, String> requestHeaders, Shnet.Response response,
+                                  long length, long lastModified) {
+        String etag = response.header("ETag");
+        Shnet.Response full = response.withHeader("Accept-Ranges", "bytes");
+        if (etag == null) {
+            etag = etag(length, lastModified);
+            full = full.withHeader("ETag", etag);
+        }
+        if (response.header("Last-Modified") == null) {
+            full = full.withHeader("Last-Modified", ShnetServer.formatHttpDate(lastModified));
+        }
+        String range = requestHeaders.get("range");
+        if (response.statusCode != 200 || range == null
+                || !ifRangeMatches(requestHeaders.get("if-range"), etag, lastModified)) {
+            return whole(full, length);
+        }
+        List<long[]> ranges = parseRanges(range, length);
+        if (ranges == null) {
+            return whole(full, length);
+        }
+        if (ranges.isEmpty()) {
+            Shnet.Response rejected = Shnet.Response.text(416, "text/plain; charset=utf-8", "Range Not Satisfiable")
+                    .withHeader("Content-Range", "bytes */" + length);
+            return new ShnetFileResponse(rejected, rejected.body.length,
+                    Collections.singletonList(Part.bytes(rejected.body)));
+        }
+        if (ranges.size() == 1) {
+            long[] only = ranges.get(0);
+            Shnet.Response partial = full.withStatus(206, response.contentType)
+                    .withHeader("Content-Range", contentRange(only, length));
+            return new ShnetFileResponse(partial, only[1] - only[0] + 1,
+                    Collections.singletonList(Part.region(only[0], only[1] - only[0] + 1)));
+        }
+        return multipart(full, response.contentType, ranges, length);
+    }
+
+    private static ShnetFileResponse whole(Shnet.Response response, long length) {
+        return new ShnetFileResponse(response, length, Collections.singletonList(Part.region(0, length)));
+    }
+
+    private static ShnetFileResponse multipart(Shnet.Response full, String contentType,
+                                               List<long[]> ranges, long length) {
+        String boundary = "shnet" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String partType = contentType == null ? "application/octet-stream" : contentType;
+        List<Part> parts = new ArrayList<>(ranges.size() * 2 + 1);
+        long total = 0;
+        for (long[] range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + partType + "\r\n"
+                    + "Content-Range: " + contentRange(range, length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            parts.add(Part.bytes(header));
+            parts.add(Part.region(range[0], range[1] - range[0] + 1));
+            total += header.length + range[1] - range[0] + 1;
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        parts.add(Part.bytes(trailer));
+        total += trailer.length;
+        Shnet.Response partial = full.withStatus(206, "multipart/byteranges; boundary=" + boundary);
+        return new ShnetFileResponse(partial, total, parts);
+    }
+
+    static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        long date = ShnetServer.parseHttpDate(ifRange);
+        return date >= 0 && date == lastModified / 1000 * 1000;
+    }
+
+    static List<long[]> parseRanges(String header, long length) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = digits(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0) {
+                    continue;
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = digits(spec.substring(0, dash));
+                if (first < 0) {
+                    return null;
+                }
+                String tail = spec.substring(dash + 1);
+                if (tail.isEmpty()) {
+                    last = length - 1;
+                } else {
+                    long end = digits(tail);
+                    if (end < first) {
+                        return null;
+                    }
+                    last = Math.min(end, length - 1);
+                }
+            }
+            if (first < length && first <= last) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    // Returns -1 unless the value is all digits; Long.parseLong alone would also take a sign. Positions
+    // too large for a long are still valid, and no file reaches them.
+    private static long digits(String value) {
+        if (value.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ignored) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // Overlapping or adjacent ranges are merged so no byte is sent twice; other ranges keep the requested order.
+    private static List<long[]> coalesce(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<long[]> sorted = new ArrayList<>(ranges);
+        Collections.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>(sorted.size());
+        long[] current = sorted.get(0).clone();
+        for (int i = 1; i < sorted.size(); i++) {
+            long[] next = sorted.get(i);
+            if (next[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], next[1]);
+            } else {
+                merged.add(current);
+                current = next.clone();
+            }
+        }
+        merged.add(current);
+        return merged.size() == ranges.size() ? ranges : merged;
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return String.format(Locale.US, "bytes %d-%d/%d", range[0], range[1], length);
+    }
+
+    static final class Part {
+        final byte[] bytes;
+        final long position;
+        final long count;
+
+        private Part(byte[] bytes, long position, long count) {
+            this.bytes = bytes;
+            this.position = position;
+            this.count = count;
+        }
+
+        static Part bytes(byte[] bytes) {
+            return new Part(bytes, 0, bytes.length);
+        }
+
+        static Part region(long position, long count) {
+            return new Part(null, position, count);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package io.shnet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Encodes HTTP/1.1 response heads from pre-encoded status lines and standard header lines, so a
+// typical response copies a few cached arrays instead of building and re-encoding a String.
+final class ShnetHeadWriter {
+    private static final int FIRST_STATUS = 100;
+    private static final int LAST_STATUS = 599;
+    private static final int MAX_CACHED_TYPES = 64;
+    private static final int SCRATCH_BYTES = 1024;
+    private static final int MAX_RETAINED_SCRATCH_BYTES = 16 * 1024;
+
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1 ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] SEPARATOR = ascii(": ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] DISPOSITION = ascii("Content-Disposition: attachment; filename=\"");
+    private static final byte[] DISPOSITION_END = ascii("\"\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n\r\n");
+    private static final byte[][] STATUS_LINES = new byte[LAST_STATUS + 1][];
+    private static final Map<String, byte[]> TYPE_LINES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    static {
+        for (int code = FIRST_STATUS; code <= LAST_STATUS; code++) {
+            String message = Shnet.Response.statusMessageFor(code);
+            if (!message.isEmpty()) {
+                STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + message + "\r\n");
+            }
+        }
+    }
+
+    private final byte[] cacheControlLine;
+    private final byte[] keepAliveLines;
+
+    ShnetHeadWriter(String cacheControl, int keepAliveTimeoutSeconds) {
+        this.cacheControlLine = utf8("Cache-Control: " + cacheControl + "\r\n");
+        this.keepAliveLines = ascii("Connection: keep-alive\r\nKeep-Alive: timeout=" + keepAliveTimeoutSeconds
+                + "\r\n\r\n");
+    }
+
+    // With a body, returns head and body in one array so the socket sees a single write.
+    byte[] encode(Shnet.Response response, long contentLength, boolean keepAlive, byte[] body) {
+        String contentType = response.contentType;
+        if (contentType == null) {
+            contentType = response.file != null ? "application/octet-stream" : "text/plain; charset=utf-8";
+        }
+        boolean upgrade = response.statusCode == 101;
+        boolean bodiless = upgrade || response.statusCode == 204 || response.statusCode == 304;
+        Scratch head = SCRATCH.get();
+        head.length = 0;
+        statusLine(head, response.statusCode, response.statusMessage);
+        if (!bodiless) {
+            head.write(typeLine(contentType));
+            if (contentLength >= 0) {
+                head.write(CONTENT_LENGTH);
+                head.writeNumber(contentLength);
+                head.write(CRLF);
+            } else if (contentLength == ShnetServer.CHUNKED_LENGTH) {
+                head.write(CHUNKED);
+            }
+        }
+        if (response.file != null && response.downloadName != null && !response.downloadName.isEmpty()) {
+            head.write(DISPOSITION);
+            head.writeText(response.downloadName);
+            head.write(DISPOSITION_END);
+        }
+        if (!upgrade && response.header("Cache-Control") == null) {
+            head.write(cacheControlLine);
+        }
+        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
+            head.writeText(entry.getKey());
+            head.write(SEPARATOR);
+            head.writeText(entry.getValue());
+            head.write(CRLF);
+        }
+        if (upgrade) {
+            head.write(CRLF);
+        } else if (keepAlive) {
+            head.write(keepAliveLines);
+        } else {
+            head.write(CLOSE);
+        }
+        int bodyLength = body != null ? body.length : 0;
+        byte[] encoded = new byte[head.length + bodyLength];
+        System.arraycopy(head.bytes, 0, encoded, 0, head.length);
+        if (bodyLength > 0) {
+            System.arraycopy(body, 0, encoded, head.length, bodyLength);
+        }
+        head.release();
+        return encoded;
+    }
+
+    private static void statusLine(Scratch head, int statusCode, String statusMessage) {
+        byte[] cached = statusCode >= FIRST_STATUS && statusCode <= LAST_STATUS ? STATUS_LINES[statusCode] : null;
+        if (cached != null && Shnet.Response.statusMessageFor(statusCode).equals(statusMessage)) {
+            head.write(cached);
+            return;
+        }
+        head.write(HTTP_1_1);
+        head.writeNumber(statusCode);
+        head.writeText(" ");
+        head.writeText(statusMessage);
+        head.write(CRLF);
+    }
+
+    private static byte[] typeLine(String contentType) {
+        byte[] line = TYPE_LINES.get(contentType);
+        if (line == null) {
+            line = utf8("Content-Type: " + contentType + "\r\n");
+            // Content types come from a handful of handlers and file extensions; the bound only guards odd apps.
+            if (TYPE_LINES.size() < MAX_CACHED_TYPES) {
+                TYPE_LINES.put(contentType, line);
+            }
+        }
+        return line;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Scratch {
+        byte[] bytes = new byte[SCRATCH_BYTES];
+        int length;
+
+        void write(byte[] source) {
+            ensure(source.length);
+            System.arraycopy(source, 0, bytes, length, source.length);
+            length += source.length;
+        }
+
+        // Header text is almost always ASCII; anything else keeps the previous UTF-8 encoding.
+        void writeText(String text) {
+            int count = text.length();
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    write(utf8(text.substring(i)));
+                    return;
+                }
+                bytes[length++] = (byte) c;
+            }
+        }
+
+        void writeNumber(long value) {
+            if (value == 0) {
+                ensure(1);
+                bytes[length++] = '0';
+                return;
+            }
+            int digits = 0;
+            for (long rest = value; rest > 0; rest /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+
+        void release() {
+            if (bytes.length > MAX_RETAINED_SCRATCH_BYTES) {
+                bytes = new byte[SCRATCH_BYTES];
+            }
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
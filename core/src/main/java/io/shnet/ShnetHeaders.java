@@ -0,0 +1,281 @@
+package io.shnet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Request headers in arrival order. Names are lowercase and, for well-known headers, the parser's
+// interned constants, so lookups with a literal usually match by identity. Repeated fields stay
+// separate; the Map view joins them the way HTTP allows.
+final class ShnetHeaders extends AbstractMap<String, String> {
+    private static final int INITIAL_FIELDS = 16;
+    private static final int SLOT = 3;
+
+    private final byte[] block;
+    private String[] names = new String[INITIAL_FIELDS];
+    private String[] values = new String[INITIAL_FIELDS];
+    // Per field: name hash, then the offsets of a still-undecoded value in block.
+    private int[] slots = new int[INITIAL_FIELDS * SLOT];
+    private int count;
+    // One bit per name hash: most lookups are for headers the request does not have.
+    private long present;
+    private boolean repeated;
+    private Set<Map.Entry<String, String>> entries;
+
+    ShnetHeaders() {
+        this(null);
+    }
+
+    ShnetHeaders(byte[] block) {
+        this.block = block;
+    }
+
+    void add(String name, String value) {
+        int index = append(lowerName(name));
+        values[index] = value;
+    }
+
+    // The value stays in the copied header block until someone reads it.
+    void add(String name, int valueStart, int valueEnd) {
+        int index = append(name);
+        slots[index * SLOT + 1] = valueStart;
+        slots[index * SLOT + 2] = valueEnd;
+    }
+
+    List<String> values(String name) {
+        String key = lowerName(name);
+        int index = indexOf(key, 0);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        int next = repeated ? indexOf(key, index + 1) : -1;
+        if (next < 0) {
+            return Collections.singletonList(value(index));
+        }
+        List<String> result = new ArrayList<>(4);
+        result.add(value(index));
+        for (int i = next; i >= 0; i = indexOf(key, i + 1)) {
+            result.add(value(i));
+        }
+        return result;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        return joined(lowerName((String) key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf(lowerName((String) key), 0) >= 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        String previous = remove(key);
+        add(key, value);
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String name = lowerName((String) key);
+        String previous = joined(name);
+        if (previous == null) {
+            return null;
+        }
+        int hash = name.hashCode();
+        int kept = 0;
+        present = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches(i, name, hash)) {
+                continue;
+            }
+            names[kept] = names[i];
+            values[kept] = values[i];
+            System.arraycopy(slots, i * SLOT, slots, kept * SLOT, SLOT);
+            present |= bit(slots[kept * SLOT]);
+            kept++;
+        }
+        Arrays.fill(names, kept, count, null);
+        Arrays.fill(values, kept, count, null);
+        count = kept;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (isFirst(i)) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        present = 0;
+        repeated = false;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entries == null) {
+            entries = new EntrySet();
+        }
+        return entries;
+    }
+
+    private int append(String name) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            slots = Arrays.copyOf(slots, count * 2 * SLOT);
+        }
+        int hash = name.hashCode();
+        if (!repeated && indexOf(name, 0) >= 0) {
+            repeated = true;
+        }
+        present |= bit(hash);
+        names[count] = name;
+        slots[count * SLOT] = hash;
+        return count++;
+    }
+
+    private String joined(String name) {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return null;
+        }
+        int next = repeated ? indexOf(name, index + 1) : -1;
+        if (next < 0) {
+            return value(index);
+        }
+        // Cookie pairs are joined with "; ", every other list header with ", ".
+        String separator = "cookie".equals(name) ? "; " : ", ";
+        StringBuilder joined = new StringBuilder(value(index));
+        for (int i = next; i >= 0; i = indexOf(name, i + 1)) {
+            joined.append(separator).append(value(i));
+        }
+        return joined.toString();
+    }
+
+    private String value(int index) {
+        String value = values[index];
+        if (value == null && block != null) {
+            int start = slots[index * SLOT + 1];
+            value = new String(block, start, slots[index * SLOT + 2] - start, StandardCharsets.US_ASCII);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    // String caches its hash, and the interned well-known names are hashed once per process.
+    private int indexOf(String name, int from) {
+        int hash = name.hashCode();
+        if ((present & bit(hash)) == 0) {
+            return -1;
+        }
+        for (int i = from; i < count; i++) {
+            if (matches(i, name, hash)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int index, String name, int hash) {
+        if (slots[index * SLOT] != hash) {
+            return false;
+        }
+        String candidate = names[index];
+        return candidate == name || candidate.equals(name);
+    }
+
+    private boolean isFirst(int index) {
+        if (!repeated) {
+            return true;
+        }
+        for (int i = 0; i < index; i++) {
+            if (matches(i, names[index], slots[index * SLOT])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long bit(int hash) {
+        return 1L << (hash & 63);
+    }
+
+    private static String lowerName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return name.toLowerCase(Locale.US);
+            }
+        }
+        return name;
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+                private int next = advance(0);
+
+                private int advance(int from) {
+                    while (from < count && !isFirst(from)) {
+                        from++;
+                    }
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next >= count) {
+                        throw new NoSuchElementException();
+                    }
+                    String name = names[next];
+                    next = advance(next + 1);
+                    return new AbstractMap.SimpleImmutableEntry<>(name, joined(name));
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ShnetHeaders.this.size();
+        }
+    }
+}
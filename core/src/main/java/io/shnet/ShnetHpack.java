@@ -0,0 +1,473 @@
+package io.shnet;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class ShnetHpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int HUFFMAN_EOS = 256;
+
+    private static final String[] STATIC_TABLE = {
+            null, null,
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", ""
+    };
+    private static final int STATIC_ENTRIES = STATIC_TABLE.length / 2 - 1;
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    // Huffman decoding tree: node n has children at TREE[2n] and TREE[2n+1]; leaves hold ~symbol.
+    private static final int[] HUFFMAN_TREE = new int[2 * 512];
+
+    static {
+        for (int i = STATIC_ENTRIES; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[2 * i], i);
+            STATIC_FIELDS.put(STATIC_TABLE[2 * i] + '\0' + STATIC_TABLE[2 * i + 1], i);
+        }
+        int nodes = 1;
+        for (int symbol = 0; symbol <= HUFFMAN_EOS; symbol++) {
+            int code = symbol == HUFFMAN_EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+            int length = symbol == HUFFMAN_EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[slot] == 0) {
+                    HUFFMAN_TREE[slot] = nodes++;
+                }
+                node = HUFFMAN_TREE[slot];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = ~symbol;
+        }
+    }
+
+    private ShnetHpack() {
+    }
+
+    static final class Decoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+        }
+
+        // Returns alternating names and values.
+        List<String> decode(byte[] block, int length) throws ProtocolException {
+            List<String> fields = new ArrayList<>(32);
+            int[] position = {0};
+            boolean fieldSeen = false;
+            while (position[0] < length) {
+                int b = block[position[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInt(block, length, position, 7);
+                    fields.add(name(index));
+                    fields.add(value(index));
+                } else if ((b & 0x40) != 0) {
+                    String name = readName(block, length, position, 6);
+                    String value = readString(block, length, position);
+                    table.add(name, value);
+                    fields.add(name);
+                    fields.add(value);
+                } else if ((b & 0x20) != 0) {
+                    if (fieldSeen) {
+                        throw new ProtocolException("Table size update after a header field");
+                    }
+                    int size = readInt(block, length, position, 5);
+                    if (size > maxTableSize) {
+                        throw new ProtocolException("Table size update too large");
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    String name = readName(block, length, position, 4);
+                    fields.add(name);
+                    fields.add(readString(block, length, position));
+                }
+                fieldSeen = true;
+            }
+            return fields;
+        }
+
+        private String readName(byte[] block, int length, int[] position, int prefix) throws ProtocolException {
+            int index = readInt(block, length, position, prefix);
+            return index == 0 ? readString(block, length, position) : name(index);
+        }
+
+        private String name(int index) throws ProtocolException {
+            if (index >= 1 && index <= STATIC_ENTRIES) {
+                return STATIC_TABLE[2 * index];
+            }
+            return table.entry(index - STATIC_ENTRIES, 0);
+        }
+
+        private String value(int index) throws ProtocolException {
+            if (index >= 1 && index <= STATIC_ENTRIES) {
+                return STATIC_TABLE[2 * index + 1];
+            }
+            return table.entry(index - STATIC_ENTRIES, 1);
+        }
+    }
+
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int pendingMinSize = -1;
+        private int pendingSize = -1;
+
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            pendingMinSize = pendingMinSize < 0 ? size : Math.min(pendingMinSize, size);
+            pendingSize = size;
+            table.resize(size);
+        }
+
+        // Takes alternating lower-case names and values.
+        byte[] encode(List<String> fields) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            if (pendingSize >= 0) {
+                if (pendingMinSize < pendingSize) {
+                    writeInt(out, 0x20, 5, pendingMinSize);
+                }
+                writeInt(out, 0x20, 5, pendingSize);
+                pendingMinSize = -1;
+                pendingSize = -1;
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                encode(out, fields.get(i), fields.get(i + 1));
+            }
+            return out.toByteArray();
+        }
+
+        private void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(out, 0x80, 7, exact);
+                return;
+            }
+            int dynamic = table.find(name, value);
+            if (dynamic > 0) {
+                writeInt(out, 0x80, 7, STATIC_ENTRIES + dynamic);
+                return;
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = staticName != null ? staticName : 0;
+            if (nameIndex == 0) {
+                int dynamicName = table.find(name, null);
+                nameIndex = dynamicName > 0 ? STATIC_ENTRIES + dynamicName : 0;
+            }
+            if (isSensitive(name)) {
+                writeInt(out, 0x10, 4, nameIndex);
+            } else if (isVolatile(name)) {
+                writeInt(out, 0x00, 4, nameIndex);
+            } else {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private static boolean isSensitive(String name) {
+            return "set-cookie".equals(name) || "authorization".equals(name) || "cookie".equals(name);
+        }
+
+        // Values that change on every response would only churn the dynamic table.
+        private static boolean isVolatile(String name) {
+            return "content-length".equals(name) || "date".equals(name) || "etag".equals(name)
+                    || "last-modified".equals(name) || "content-range".equals(name) || "expires".equals(name)
+                    || "age".equals(name) || "location".equals(name);
+        }
+    }
+
+    private static final class Table {
+        private final List<String> entries = new ArrayList<>();
+        private int capacity;
+        private int size;
+
+        Table(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            if (entrySize > capacity) {
+                entries.clear();
+                size = 0;
+                return;
+            }
+            evict(capacity - entrySize);
+            entries.add(name);
+            entries.add(value);
+            size += entrySize;
+        }
+
+        void resize(int capacity) {
+            this.capacity = capacity;
+            evict(capacity);
+        }
+
+        // Index 1 is the newest entry.
+        String entry(int index, int part) throws ProtocolException {
+            int count = entries.size() / 2;
+            if (index < 1 || index > count) {
+                throw new ProtocolException("Header index out of range");
+            }
+            return entries.get(2 * (count - index) + part);
+        }
+
+        int find(String name, String value) {
+            int count = entries.size() / 2;
+            for (int index = 1; index <= count; index++) {
+                int at = 2 * (count - index);
+                if (entries.get(at).equals(name) && (value == null || entries.get(at + 1).equals(value))) {
+                    return index;
+                }
+            }
+            return 0;
+        }
+
+        private void evict(int limit) {
+            while (size > limit && !entries.isEmpty()) {
+                size -= entrySize(entries.remove(0), entries.remove(0));
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    static int readInt(byte[] block, int length, int[] position, int prefix) throws ProtocolException {
+        int mask = (1 << prefix) - 1;
+        int value = block[position[0]++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (position[0] >= length || shift > 21) {
+                throw new ProtocolException("Bad header integer");
+            }
+            int b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static String readString(byte[] block, int length, int[] position) throws ProtocolException {
+        if (position[0] >= length) {
+            throw new ProtocolException("Truncated header string");
+        }
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int count = readInt(block, length, position, 7);
+        if (count > length - position[0]) {
+            throw new ProtocolException("Truncated header string");
+        }
+        int from = position[0];
+        position[0] += count;
+        if (!huffman) {
+            return new String(block, from, count, StandardCharsets.ISO_8859_1);
+        }
+        return huffmanDecode(block, from, count);
+    }
+
+    private static String huffmanDecode(byte[] block, int from, int count) throws ProtocolException {
+        StringBuilder decoded = new StringBuilder(count * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = from; i < from + count; i++) {
+            int b = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                depth++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    if (~next == HUFFMAN_EOS) {
+                        throw new ProtocolException("Huffman EOS in header string");
+                    }
+                    decoded.append((char) ~next);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new ProtocolException("Bad Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) {
+            throw new ProtocolException("Bad Huffman padding");
+        }
+        return decoded.toString();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            writeInt(out, 0x00, 7, value.length());
+            for (int i = 0; i < value.length(); i++) {
+                out.write(value.charAt(i));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, huffmanLength);
+        long buffer = 0;
+        int pending = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xff;
+            buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pending += HUFFMAN_LENGTHS[symbol];
+            while (pending >= 8) {
+                pending -= 8;
+                out.write((int) (buffer >>> pending));
+            }
+        }
+        if (pending > 0) {
+            out.write((int) ((buffer << (8 - pending)) | (0xff >>> pending)));
+        }
+    }
+}
@@ -0,0 +1,1196 @@
+package io.shnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+final class ShnetHttp2 implements Runnable {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // What is left of the preface once the HTTP/1.1 parser has read "PRI * HTTP/2.0" as a request head.
+    static final byte[] PREFACE_TAIL = "SM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final String ALPN = "h2";
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_BYTES = 9;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = (1 << 24) - 1;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_RESETS_PER_WINDOW = 100;
+    private static final long RESET_WINDOW_MS = 1000;
+    private static final int MAX_HEADER_BLOCK_BYTES = 2 * ShnetRequestParser.MAX_HEAD_BYTES;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ShnetServer server;
+    private final Shnet.Config config;
+    private final ExecutorService workers;
+    private final ShnetLoadShedder loadShedder;
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final byte[] preface;
+    private final Object writeLock = new Object();
+    private final ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+    private final ShnetHpack.Encoder encoder = new ShnetHpack.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final byte[] frameHeader = new byte[FRAME_HEADER_BYTES];
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+    private int lastStreamId;
+    private int served;
+    private boolean goingAway;
+    private long resetWindowStart;
+    private int resetsInWindow;
+    // Guarded by this. Frames are never written while holding this, only writeLock.
+    private int sendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private volatile int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private boolean closed;
+
+    ShnetHttp2(ShnetServer server, Shnet.Config config, ExecutorService workers, Socket socket,
+               InputStream input, OutputStream output, byte[] preface) {
+        this.server = server;
+        this.config = config;
+        this.workers = workers;
+        this.loadShedder = server.loadShedder();
+        this.socket = socket;
+        this.input = input;
+        this.output = output;
+        this.preface = preface;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout(Math.max(100, Math.min(config.readTimeoutMs, config.keepAliveTimeoutMs)));
+            byte[] received = new byte[preface.length];
+            if (!readFully(received, received.length, false) || !Arrays.equals(received, preface)) {
+                return;
+            }
+            writeSettings();
+            int headerStream = 0;
+            ByteArrayOutputStream headerBlock = null;
+            int headerFlags = 0;
+            while (readFully(frameHeader, FRAME_HEADER_BYTES, true)) {
+                int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | (frameHeader[2] & 0xff);
+                int type = frameHeader[3] & 0xff;
+                int flags = frameHeader[4] & 0xff;
+                int streamId = readInt31(frameHeader, 5);
+                if (length > DEFAULT_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame too large");
+                }
+                if (!readFully(payload, length, false)) {
+                    return;
+                }
+                if (headerBlock != null && (type != CONTINUATION || streamId != headerStream)) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION");
+                }
+                switch (type) {
+                    case DATA:
+                        onData(streamId, flags, length);
+                        break;
+                    case HEADERS:
+                    case CONTINUATION:
+                        if (type == CONTINUATION && headerBlock == null) {
+                            throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                        }
+                        if (type == HEADERS) {
+                            if (streamId == 0 || (streamId & 1) == 0) {
+                                throw new Http2Exception(PROTOCOL_ERROR, "Bad stream id");
+                            }
+                            headerStream = streamId;
+                            headerFlags = flags;
+                            headerBlock = new ByteArrayOutputStream(length);
+                            appendHeaderBlock(headerBlock, flags, length);
+                        } else {
+                            headerBlock.write(payload, 0, length);
+                        }
+                        if (headerBlock.size() > MAX_HEADER_BLOCK_BYTES) {
+                            throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+                        }
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            onHeaders(headerStream, headerFlags, headerBlock.toByteArray());
+                            headerBlock = null;
+                        }
+                        break;
+                    case PRIORITY:
+                        if (length != 5) {
+                            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad PRIORITY frame");
+                        }
+                        break;
+                    case RST_STREAM:
+                        onReset(streamId, length);
+                        break;
+                    case SETTINGS:
+                        onSettings(streamId, flags, length);
+                        break;
+                    case PUSH_PROMISE:
+                        throw new Http2Exception(PROTOCOL_ERROR, "Clients cannot push");
+                    case PING:
+                        if (length != 8 || streamId != 0) {
+                            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad PING frame");
+                        }
+                        if ((flags & FLAG_ACK) == 0) {
+                            writeFrame(PING, FLAG_ACK, 0, payload, 0, 8, true);
+                        }
+                        break;
+                    case GOAWAY:
+                        goingAway = true;
+                        break;
+                    case WINDOW_UPDATE:
+                        onWindowUpdate(streamId, length);
+                        break;
+                    default:
+                        // Unknown frame types are ignored.
+                        break;
+                }
+            }
+        } catch (Http2Exception e) {
+            goAway(e.code);
+        } catch (ProtocolException e) {
+            goAway(COMPRESSION_ERROR);
+        } catch (IOException ignored) {
+            // The connection is gone.
+        } finally {
+            close();
+        }
+    }
+
+    private void appendHeaderBlock(ByteArrayOutputStream block, int flags, int length) throws Http2Exception {
+        int from = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = length > 0 ? payload[0] & 0xff : length + 1;
+            from = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            from += 5;
+        }
+        if (from + padding > length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Bad padding");
+        }
+        block.write(payload, from, length - from - padding);
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] block) throws IOException {
+        // Decode every block, even for refused streams, to keep the HPACK table in step.
+        List<String> fields = decoder.decode(block, block.length);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            if (stream.reset) {
+                return;
+            }
+            if (stream.remoteClosed || !endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Unexpected HEADERS");
+            }
+            // Trailers end the request body.
+            stream.endOfBody();
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            // Trailers for a stream that was already answered and reset.
+            return;
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+        stream = new Stream(streamId, peerWindow());
+        streams.put(streamId, stream);
+        ShnetServer.RequestHead head = requestHead(fields);
+        if (head == null) {
+            stream.reset = true;
+            streams.remove(streamId);
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        stream.head = head;
+        stream.remoteClosed = endStream;
+        if (listSize(fields) > ShnetRequestParser.MAX_HEAD_BYTES) {
+            respondInline(stream, Shnet.Response.text(431, "text/plain; charset=utf-8",
+                    "Request Header Fields Too Large"));
+            return;
+        }
+        long contentLength = head.contentLength();
+        if (contentLength < -1 || (contentLength > 0 && endStream)) {
+            respondInline(stream, Shnet.Response.text(400, "text/plain; charset=utf-8", "Bad Request"));
+            return;
+        }
+        boolean streamBody = config.streamRequestBodies && !endStream;
+        if (contentLength > (streamBody ? config.maxStreamedBodyBytes : config.maxBodyBytes)) {
+            respondInline(stream, Shnet.Response.text(413, "text/plain; charset=utf-8", "Payload Too Large"));
+            return;
+        }
+        if (endStream) {
+            dispatch(stream, head.toRequest(EMPTY));
+        } else if (streamBody) {
+            stream.pipe = new RequestBody(stream);
+            dispatch(stream, head.toRequest(stream.pipe, Math.max(-1, contentLength)));
+        } else {
+            stream.body = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 1024);
+        }
+    }
+
+    private ShnetServer.RequestHead requestHead(List<String> fields) {
+        String method = null;
+        String target = null;
+        String authority = null;
+        boolean regular = false;
+        List<String> headers = new ArrayList<>(fields.size());
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (name.startsWith(":")) {
+                if (regular) {
+                    return null;
+                }
+                if (":method".equals(name)) {
+                    method = value;
+                } else if (":path".equals(name)) {
+                    target = value;
+                } else if (":authority".equals(name)) {
+                    authority = value;
+                } else if (!":scheme".equals(name)) {
+                    return null;
+                }
+                continue;
+            }
+            regular = true;
+            if (!name.equals(name.toLowerCase(Locale.US)) || "connection".equals(name)) {
+                return null;
+            }
+            headers.add(name);
+            headers.add(value);
+        }
+        if (method == null || target == null || target.isEmpty()) {
+            return null;
+        }
+        int queryIndex = target.indexOf('?');
+        ShnetServer.RequestHead head = new ShnetServer.RequestHead(method,
+                queryIndex >= 0 ? target.substring(0, queryIndex) : target,
+                queryIndex >= 0 ? target.substring(queryIndex + 1) : "", "HTTP/2.0");
+        if (authority != null) {
+            head.headers.put("host", authority);
+        }
+        for (int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            if ("host".equals(name)) {
+                head.headers.put(name, headers.get(i + 1));
+            } else {
+                // Split cookie fields and repeated headers are joined on lookup.
+                head.headers.add(name, headers.get(i + 1));
+            }
+        }
+        return head;
+    }
+
+    private static int listSize(List<String> fields) {
+        int size = 0;
+        for (String field : fields) {
+            size += field.length() + 16;
+        }
+        return size;
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int from = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = length > 0 ? payload[0] & 0xff : length + 1;
+            from = 1;
+        }
+        if (from + padding > length) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Bad padding");
+        }
+        // The whole frame counts against the connection window; hand it straight back.
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.reset) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            return;
+        }
+        if (stream.remoteClosed) {
+            writeReset(streamId, STREAM_CLOSED);
+            return;
+        }
+        if (!consumeReceiveWindow(stream, length)) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window exceeded");
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        int count = length - from - padding;
+        stream.received += count;
+        if (stream.pipe != null) {
+            if (stream.received > config.maxStreamedBodyBytes) {
+                stream.pipe.fail();
+                respondInline(stream, Shnet.Response.text(413, "text/plain; charset=utf-8", "Payload Too Large"));
+                return;
+            }
+            stream.pipe.offer(Arrays.copyOfRange(payload, from, from + count), length - count, endStream);
+        } else if (stream.body != null) {
+            if (stream.received > config.maxBodyBytes) {
+                stream.body = null;
+                respondInline(stream, Shnet.Response.text(413, "text/plain; charset=utf-8", "Payload Too Large"));
+                return;
+            }
+            stream.body.write(payload, from, count);
+            if (!endStream && length > 0) {
+                consumeReceiveWindow(stream, -length);
+                writeWindowUpdate(streamId, length);
+            }
+        }
+        if (endStream) {
+            stream.endOfBody();
+        }
+    }
+
+    private synchronized boolean consumeReceiveWindow(Stream stream, int length) {
+        if (length > stream.receiveWindow) {
+            return false;
+        }
+        stream.receiveWindow -= length;
+        return true;
+    }
+
+    private void onReset(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad RST_STREAM frame");
+        }
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        // Cancelling is cheap for the client but not for the server: a connection resetting streams
+        // faster than any browser would is sent away.
+        long now = System.currentTimeMillis();
+        if (now - resetWindowStart >= RESET_WINDOW_MS) {
+            resetWindowStart = now;
+            resetsInWindow = 0;
+        }
+        if (++resetsInWindow > MAX_RESETS_PER_WINDOW) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many stream resets");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.cancel();
+            // A dispatched stream keeps its concurrency slot until its handler returns.
+            if (!stream.dispatched) {
+                streams.remove(streamId);
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad SETTINGS frame");
+        }
+        for (int at = 0; at < length; at += 6) {
+            int id = (payload[at] & 0xff) << 8 | (payload[at + 1] & 0xff);
+            long value = readInt32(payload, at + 2) & 0xffffffffL;
+            if (id == SETTINGS_HEADER_TABLE_SIZE) {
+                synchronized (writeLock) {
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                }
+            } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Window too large");
+                }
+                updateInitialWindow((int) value);
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "Bad frame size");
+                }
+                peerMaxFrameSize = (int) value;
+            }
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, EMPTY, 0, 0, true);
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE frame");
+        }
+        int increment = readInt31(payload, 0);
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Zero window increment");
+            }
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        boolean overflow = false;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (sendWindow + (long) increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (stream.sendWindow + (long) increment > Integer.MAX_VALUE) {
+                    stream.reset = true;
+                    overflow = true;
+                } else {
+                    stream.sendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+        if (overflow) {
+            writeReset(streamId, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private synchronized void updateInitialWindow(int value) throws Http2Exception {
+        int delta = value - peerInitialWindow;
+        peerInitialWindow = value;
+        for (Stream stream : streams.values()) {
+            if (stream.sendWindow + (long) delta > Integer.MAX_VALUE) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+            }
+            stream.sendWindow += delta;
+        }
+        notifyAll();
+    }
+
+    private synchronized int peerWindow() {
+        return peerInitialWindow;
+    }
+
+    private void dispatch(Stream stream, Shnet.Request request) {
+        if (served++ > 0) {
+            server.requestReused();
+        }
+        stream.dispatched = true;
+        if (!loadShedder.admit()) {
+            respondInline(stream, server.overloadResponse());
+            return;
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                if (loadShedder.start(queuedAt)) {
+                    serve(stream, request);
+                } else {
+                    respondInline(stream, server.overloadResponse());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loadShedder.cancel();
+            respondInline(stream, server.overloadResponse());
+        }
+    }
+
+    private void serve(Stream stream, Shnet.Request request) {
+        try {
+            if (stream.reset) {
+                // Cancelled while queued: the handler never runs.
+                return;
+            }
+            Shnet.Response response = server.respond(request);
+            send(stream, response);
+        } catch (StreamResetException ignored) {
+            // The client cancelled the stream.
+        } catch (IOException e) {
+            close();
+        } finally {
+            // An event stream stays open until its subscriber ends it.
+            if (stream.subscriber == null) {
+                finish(stream);
+            }
+        }
+    }
+
+    // Used on the reader thread: never waits for window, resets the stream instead.
+    private void respondInline(Stream stream, Shnet.Response response) {
+        try {
+            byte[] body = response.body;
+            boolean headOnly = stream.head != null && stream.head.isHead();
+            boolean empty = headOnly || body.length == 0;
+            writeHeaders(stream, server.http2Head(response, body.length), empty);
+            if (!empty) {
+                synchronized (this) {
+                    if (Math.min(sendWindow, stream.sendWindow) < body.length || body.length > peerMaxFrameSize) {
+                        stream.reset = true;
+                    } else {
+                        sendWindow -= body.length;
+                        stream.sendWindow -= body.length;
+                    }
+                }
+                if (stream.reset) {
+                    writeReset(stream.id, CANCEL);
+                } else {
+                    writeFrame(DATA, FLAG_END_STREAM, stream.id, body, 0, body.length, true);
+                }
+            }
+        } catch (IOException ignored) {
+            // The stream or connection is gone.
+        } finally {
+            finish(stream);
+        }
+    }
+
+    private void finish(Stream stream) {
+        streams.remove(stream.id);
+        if (stream.pipe != null) {
+            stream.pipe.fail();
+        }
+        if (!stream.remoteClosed && !stream.reset) {
+            // The response is complete; tell the client to stop sending the body.
+            stream.reset = true;
+            try {
+                writeReset(stream.id, NO_ERROR);
+            } catch (IOException ignored) {
+                // The connection is gone.
+            }
+        }
+        if (goingAway && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    private void send(Stream stream, Shnet.Response response) throws IOException {
+        boolean headOnly = stream.head.isHead();
+        if (response.file != null) {
+            try (FileInputStream input = new FileInputStream(response.file)) {
+                FileChannel file = input.getChannel();
+                ShnetFileResponse plan = ShnetFileResponse.plan(stream.head.headers, response,
+                        file.size(), response.file.lastModified());
+                boolean empty = headOnly || plan.contentLength == 0;
+                writeHeaders(stream, server.http2Head(plan.response, plan.contentLength), empty);
+                if (empty) {
+                    return;
+                }
+                DataOutput body = new DataOutput(stream);
+                for (ShnetFileResponse.Part part : plan.parts) {
+                    if (part.bytes != null) {
+                        body.write(part.bytes, 0, part.bytes.length);
+                    } else {
+                        body.copy(file, part.position, part.count);
+                    }
+                }
+                body.close();
+            }
+        } else if (response.writer != null) {
+            writeHeaders(stream, server.http2Head(response, ShnetServer.UNKNOWN_LENGTH), headOnly);
+            if (headOnly) {
+                return;
+            }
+            DataOutput body = new DataOutput(stream);
+            try {
+                response.writer.writeTo(body);
+            } catch (RuntimeException e) {
+                writeReset(stream.id, INTERNAL_ERROR);
+                stream.reset = true;
+                return;
+            }
+            body.close();
+        } else if (response.events != null) {
+            writeHeaders(stream, server.http2Head(response, ShnetServer.UNKNOWN_LENGTH), headOnly);
+            if (headOnly) {
+                return;
+            }
+            ShnetBroadcaster.Subscriber subscriber = response.events.core.subscribe(
+                    stream.head.headers.get("last-event-id"), new EventsSink(stream));
+            if (subscriber == null) {
+                writeData(stream, EMPTY, 0, 0, true);
+                return;
+            }
+            stream.subscriber = subscriber;
+            if (stream.reset) {
+                subscriber.close();
+            }
+        } else {
+            byte[] body = response.body == null ? EMPTY : response.body;
+            boolean empty = headOnly || body.length == 0 || response.statusCode == 204 || response.statusCode == 304;
+            writeHeaders(stream, server.http2Head(response, body.length), empty);
+            if (!empty) {
+                writeData(stream, body, 0, body.length, true);
+            }
+        }
+    }
+
+    private void writeHeaders(Stream stream, List<String> fields, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            if (stream.reset) {
+                throw new StreamResetException();
+            }
+            byte[] block = encoder.encode(fields);
+            int frameSize = peerMaxFrameSize;
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int count = Math.min(frameSize, block.length - offset);
+                int flags = offset + count == block.length ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrame(type, flags, stream.id, block, offset, count, offset + count == block.length && endStream);
+                offset += count;
+                type = CONTINUATION;
+            } while (offset < block.length);
+        }
+    }
+
+    private void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream)
+            throws IOException {
+        if (length == 0 && endStream) {
+            writeFrame(DATA, FLAG_END_STREAM, stream.id, EMPTY, 0, 0, true);
+        }
+        while (length > 0) {
+            int count = reserve(stream, length);
+            boolean last = endStream && count == length;
+            writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data, offset, count, true);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private int reserve(Stream stream, int wanted) throws IOException {
+        int count = awaitWindow(stream, wanted);
+        if (count == 0) {
+            // The client stopped granting window; give up on the stream rather than hold a worker.
+            writeReset(stream.id, CANCEL);
+            throw new StreamResetException();
+        }
+        return count;
+    }
+
+    private synchronized int awaitWindow(Stream stream, int wanted) throws IOException {
+        long stalledSince = System.currentTimeMillis();
+        while (true) {
+            if (closed) {
+                throw new EOFException("Connection closed");
+            }
+            if (stream.reset) {
+                throw new StreamResetException();
+            }
+            int available = Math.min(Math.min(sendWindow, stream.sendWindow), peerMaxFrameSize);
+            if (available > 0) {
+                int count = Math.min(available, wanted);
+                sendWindow -= count;
+                stream.sendWindow -= count;
+                return count;
+            }
+            long waited = System.currentTimeMillis() - stalledSince;
+            if (waited >= config.readTimeoutMs) {
+                stream.reset = true;
+                return 0;
+            }
+            try {
+                wait(config.readTimeoutMs - waited);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(settings, 6, SETTINGS_MAX_FRAME_SIZE, DEFAULT_FRAME_SIZE);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, ShnetRequestParser.MAX_HEAD_BYTES);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, true);
+    }
+
+    private static void putSetting(byte[] target, int at, int id, int value) {
+        target[at] = (byte) (id >>> 8);
+        target[at + 1] = (byte) id;
+        target[at + 2] = (byte) (value >>> 24);
+        target[at + 3] = (byte) (value >>> 16);
+        target[at + 4] = (byte) (value >>> 8);
+        target[at + 5] = (byte) value;
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] frame = new byte[4];
+        putInt(frame, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, frame, 0, 4, true);
+    }
+
+    private void writeReset(int streamId, int code) throws IOException {
+        byte[] frame = new byte[4];
+        putInt(frame, 0, code);
+        writeFrame(RST_STREAM, 0, streamId, frame, 0, 4, true);
+    }
+
+    // An empty SETTINGS frame is the server preface; the GOAWAY then refuses every stream.
+    static void refuse(OutputStream output) throws IOException {
+        byte[] frames = new byte[2 * FRAME_HEADER_BYTES + 8];
+        frames[3] = SETTINGS;
+        frames[FRAME_HEADER_BYTES + 2] = 8;
+        frames[FRAME_HEADER_BYTES + 3] = GOAWAY;
+        putInt(frames, 2 * FRAME_HEADER_BYTES + 4, REFUSED_STREAM);
+        output.write(frames);
+        output.flush();
+    }
+
+    private void goAway(int code) {
+        byte[] frame = new byte[8];
+        putInt(frame, 0, lastStreamId);
+        putInt(frame, 4, code);
+        try {
+            writeFrame(GOAWAY, 0, 0, frame, 0, 8, true);
+        } catch (IOException ignored) {
+            // The connection is closing anyway.
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] data, int offset, int length, boolean flush)
+            throws IOException {
+        synchronized (writeLock) {
+            byte[] header = new byte[FRAME_HEADER_BYTES];
+            header[0] = (byte) (length >>> 16);
+            header[1] = (byte) (length >>> 8);
+            header[2] = (byte) length;
+            header[3] = (byte) type;
+            header[4] = (byte) flags;
+            putInt(header, 5, streamId);
+            output.write(header);
+            output.write(data, offset, length);
+            if (flush) {
+                output.flush();
+            }
+        }
+    }
+
+    private boolean readFully(byte[] target, int length, boolean frameStart) throws IOException {
+        if (target.length < length) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Frame too large");
+        }
+        int offset = 0;
+        long idleSince = System.currentTimeMillis();
+        while (offset < length) {
+            int read;
+            try {
+                read = input.read(target, offset, length - offset);
+            } catch (SocketTimeoutException e) {
+                long idle = System.currentTimeMillis() - idleSince;
+                if (offset > 0 || !frameStart || receiving()) {
+                    if (idle >= config.readTimeoutMs) {
+                        throw e;
+                    }
+                } else if (streams.isEmpty() && idle >= config.keepAliveTimeoutMs) {
+                    goAway(NO_ERROR);
+                    return false;
+                }
+                continue;
+            }
+            if (read < 0) {
+                if (offset == 0 && frameStart) {
+                    return false;
+                }
+                throw new EOFException("Truncated frame");
+            }
+            offset += read;
+            idleSince = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    private boolean receiving() {
+        for (Stream stream : streams.values()) {
+            if (!stream.remoteClosed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        for (Stream stream : streams.values()) {
+            stream.cancel();
+        }
+        streams.clear();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore close errors.
+        }
+        server.connectionClosed(socket);
+    }
+
+    private static int readInt31(byte[] source, int at) {
+        return readInt32(source, at) & 0x7fffffff;
+    }
+
+    private static int readInt32(byte[] source, int at) {
+        return (source[at] & 0xff) << 24 | (source[at + 1] & 0xff) << 16
+                | (source[at + 2] & 0xff) << 8 | (source[at + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] target, int at, int value) {
+        target[at] = (byte) (value >>> 24);
+        target[at + 1] = (byte) (value >>> 16);
+        target[at + 2] = (byte) (value >>> 8);
+        target[at + 3] = (byte) value;
+    }
+
+    private final class Stream {
+        final int id;
+        // Guarded by the connection.
+        int sendWindow;
+        int receiveWindow = DEFAULT_WINDOW;
+        ShnetServer.RequestHead head;
+        ByteArrayOutputStream body;
+        RequestBody pipe;
+        long received;
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+        volatile ShnetBroadcaster.Subscriber subscriber;
+        boolean dispatched;
+
+        Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        void endOfBody() {
+            remoteClosed = true;
+            if (pipe != null) {
+                pipe.end();
+            } else if (body != null && !dispatched) {
+                byte[] bytes = body.toByteArray();
+                body = null;
+                if (!head.headers.containsKey("content-length")) {
+                    head.headers.put("content-length", Integer.toString(bytes.length));
+                }
+                dispatch(this, head.toRequest(bytes));
+            }
+        }
+
+        void cancel() {
+            reset = true;
+            if (pipe != null) {
+                pipe.fail();
+            }
+            ShnetBroadcaster.Subscriber events = subscriber;
+            if (events != null) {
+                events.close();
+            }
+            synchronized (ShnetHttp2.this) {
+                ShnetHttp2.this.notifyAll();
+            }
+        }
+    }
+
+    // Writes may wait for flow-control window, so they run on workers rather than the broadcasting thread.
+    private final class EventsSink implements ShnetBroadcaster.Sink {
+        private final Stream stream;
+
+        EventsSink(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void flush(ShnetBroadcaster.Subscriber subscriber) {
+            try {
+                workers.execute(() -> drain(subscriber));
+            } catch (RejectedExecutionException ignored) {
+                subscriber.close();
+            }
+        }
+
+        private void drain(ShnetBroadcaster.Subscriber subscriber) {
+            try {
+                byte[] event;
+                while ((event = subscriber.poll()) != null) {
+                    synchronized (this) {
+                        writeData(stream, event, 0, event.length, false);
+                    }
+                }
+            } catch (IOException ignored) {
+                subscriber.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                workers.execute(this::end);
+            } catch (RejectedExecutionException ignored) {
+                end();
+            }
+        }
+
+        // Synchronized with drain so no DATA frame follows END_STREAM.
+        private synchronized void end() {
+            if (!stream.reset) {
+                try {
+                    writeData(stream, EMPTY, 0, 0, true);
+                } catch (IOException ignored) {
+                    // The stream or connection is gone.
+                }
+            }
+            finish(stream);
+        }
+    }
+
+    private final class RequestBody extends InputStream {
+        private final Stream stream;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private byte[] current;
+        private int position;
+        private int unacknowledged;
+        private boolean ended;
+        private boolean failed;
+
+        RequestBody(Stream stream) {
+            this.stream = stream;
+        }
+
+        synchronized void offer(byte[] chunk, int overhead, boolean last) {
+            unacknowledged += overhead;
+            if (chunk.length > 0) {
+                chunks.add(chunk);
+            }
+            ended |= last;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            chunks.clear();
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            int acknowledge = 0;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + config.readTimeoutMs;
+                while ((current == null || position == current.length) && chunks.isEmpty() && !ended && !failed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Request body timed out");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (failed) {
+                    throw new EOFException("Stream reset");
+                }
+                if (current == null || position == current.length) {
+                    current = chunks.poll();
+                    position = 0;
+                    if (current == null) {
+                        return -1;
+                    }
+                }
+                count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, target, offset, count);
+                position += count;
+                unacknowledged += count;
+                // Reopen the stream window in batches as the handler consumes the body.
+                if (!ended && unacknowledged >= DEFAULT_WINDOW / 2) {
+                    acknowledge = unacknowledged;
+                    unacknowledged = 0;
+                }
+            }
+            if (acknowledge > 0) {
+                consumeReceiveWindow(stream, -acknowledge);
+                writeWindowUpdate(stream.id, acknowledge);
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            int available = current != null ? current.length - position : 0;
+            for (byte[] chunk : chunks) {
+                available += chunk.length;
+            }
+            return available;
+        }
+    }
+
+    private final class DataOutput extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer = new byte[DEFAULT_FRAME_SIZE];
+        private int count;
+        private boolean finished;
+
+        DataOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (length >= buffer.length) {
+                flushBuffer();
+                writeData(stream, data, offset, length, false);
+                return;
+            }
+            if (length > buffer.length - count) {
+                flushBuffer();
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+
+        void copy(FileChannel file, long position, long length) throws IOException {
+            flushBuffer();
+            ByteBuffer view = ByteBuffer.wrap(buffer);
+            long end = position + length;
+            while (position < end) {
+                view.clear();
+                view.limit((int) Math.min(buffer.length, end - position));
+                int read = file.read(view, position);
+                if (read < 0) {
+                    throw new EOFException("File truncated");
+                }
+                writeData(stream, buffer, 0, read, false);
+                position += read;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            writeData(stream, buffer, 0, count, true);
+            count = 0;
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                writeData(stream, buffer, 0, count, false);
+                count = 0;
+            }
+        }
+    }
+
+    private static final class Http2Exception extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Http2Exception(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private static final class StreamResetException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StreamResetException() {
+            super("Stream reset");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.shnet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class ShnetLoadShedder {
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final int maxThreads;
+    private final byte[] response;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedQueueFull = new AtomicLong();
+    private final AtomicLong shedQueueWait = new AtomicLong();
+    private final AtomicInteger threads = new AtomicInteger();
+    private final AtomicLong shedThreads = new AtomicLong();
+
+    ShnetLoadShedder(int maxQueued, int maxWaitMs, int maxThreads, byte[] response) {
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = maxWaitMs * 1_000_000L;
+        this.maxThreads = maxThreads;
+        this.response = response;
+    }
+
+    boolean admit() {
+        if (queued.incrementAndGet() > maxQueued && maxQueued > 0) {
+            queued.decrementAndGet();
+            shedQueueFull.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    boolean start(long queuedAt) {
+        queued.decrementAndGet();
+        if (maxWaitNanos > 0 && System.nanoTime() - queuedAt > maxWaitNanos) {
+            shedQueueWait.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    void cancel() {
+        queued.decrementAndGet();
+    }
+
+    // HTTP/2 and WebSocket connections keep a reader thread of their own outside the worker pool.
+    boolean startThread() {
+        if (threads.incrementAndGet() > maxThreads) {
+            threads.decrementAndGet();
+            shedThreads.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void endThread() {
+        threads.decrementAndGet();
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    byte[] response() {
+        return response;
+    }
+
+    Shnet.LoadStats stats() {
+        return new Shnet.LoadStats(queued.get(), admitted.get(), shedQueueFull.get(), shedQueueWait.get(),
+                threads.get(), shedThreads.get());
+    }
+}
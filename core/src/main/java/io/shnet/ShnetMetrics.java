@@ -0,0 +1,310 @@
+package io.shnet;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+final class ShnetMetrics {
+    static final String UNROUTED = "unrouted";
+    private static final int LINEAR_BITS = 3;
+    private static final int LINEAR_BUCKETS = 1 << LINEAR_BITS;
+    private static final int DIRECT_BUCKETS = 2 * LINEAR_BUCKETS;
+    private static final int MAX_EXPONENT = 27;
+    static final int BUCKETS = DIRECT_BUCKETS + (MAX_EXPONENT - LINEAR_BITS) * LINEAR_BUCKETS;
+    private static final int STRIPES = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+    private static final double[] PROMETHEUS_BOUNDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong reusedRequests = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+    private final ConcurrentHashMap<String, Histogram> routes = new ConcurrentHashMap<>();
+    private final AtomicLong tlsFullHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumedHandshakes = new AtomicLong();
+    private final AtomicLong tlsFailedHandshakes = new AtomicLong();
+    private final Histogram tlsHandshakes = new Histogram();
+
+    void connectionAccepted() {
+        connections.incrementAndGet();
+    }
+
+    void requestReused() {
+        reusedRequests.incrementAndGet();
+    }
+
+    long connections() {
+        return connections.get();
+    }
+
+    long reusedRequests() {
+        return reusedRequests.get();
+    }
+
+    void bytesIn(long count) {
+        if (count > 0) {
+            bytesIn.addAndGet(count);
+        }
+    }
+
+    void bytesOut(long count) {
+        if (count > 0) {
+            bytesOut.addAndGet(count);
+        }
+    }
+
+    void record(Shnet.Request request, Shnet.Response response, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        requests.incrementAndGet();
+        int statusClass = response.statusCode / 100;
+        statusClasses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+        String route = request.route();
+        if (route == null) {
+            route = UNROUTED;
+        }
+        Histogram histogram = routes.get(route);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = routes.putIfAbsent(route, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(micros);
+    }
+
+    void tlsHandshake(boolean resumed, long startNanos) {
+        (resumed ? tlsResumedHandshakes : tlsFullHandshakes).incrementAndGet();
+        tlsHandshakes.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    void tlsHandshakeFailed() {
+        tlsFailedHandshakes.incrementAndGet();
+    }
+
+    InputStream countIn(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    bytesIn.incrementAndGet();
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                bytesIn(read);
+                return read;
+            }
+        };
+    }
+
+    OutputStream countOut(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                bytesOut(length);
+            }
+        };
+    }
+
+    Shnet.Metrics snapshot() {
+        Map<String, Shnet.RouteMetrics> routeMetrics = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : routes.entrySet()) {
+            routeMetrics.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        long[] statuses = new long[6];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = statusClasses.get(i);
+        }
+        return new Shnet.Metrics(System.currentTimeMillis() - startedAt, connections.get(), reusedRequests.get(),
+                requests.get(), bytesIn.get(), bytesOut.get(), statuses,
+                Collections.unmodifiableMap(new LinkedHashMap<>(routeMetrics)),
+                tlsFullHandshakes.get(), tlsResumedHandshakes.get(), tlsFailedHandshakes.get(),
+                tlsHandshakes.snapshot());
+    }
+
+    String prometheus(Shnet.LoadStats load, Shnet.CacheStats cache) {
+        StringBuilder text = new StringBuilder(4096);
+        counter(text, "shnet_connections_total", "Accepted connections.", connections.get());
+        counter(text, "shnet_requests_reused_total", "Requests served on a kept-alive connection.",
+                reusedRequests.get());
+        counter(text, "shnet_bytes_received_total", "Bytes read from clients.", bytesIn.get());
+        counter(text, "shnet_bytes_sent_total", "Bytes written to clients.", bytesOut.get());
+        text.append("# HELP shnet_responses_total Responses by status class.\n")
+                .append("# TYPE shnet_responses_total counter\n");
+        for (int i = 1; i <= 5; i++) {
+            text.append("shnet_responses_total{code=\"").append(i).append("xx\"} ")
+                    .append(statusClasses.get(i)).append('\n');
+        }
+        counter(text, "shnet_shed_total", "Requests and connections refused by load shedding.",
+                load.shedQueueFull + load.shedQueueWait + load.shedConnectionThreads);
+        gauge(text, "shnet_queued_requests", "Work waiting for a worker.", load.queued);
+        gauge(text, "shnet_connection_threads", "HTTP/2 and WebSocket connections holding a reader thread.",
+                load.connectionThreads);
+        counter(text, "shnet_cache_hits_total", "Response cache hits.", cache.hits);
+        counter(text, "shnet_cache_misses_total", "Response cache misses.", cache.misses);
+        text.append("# HELP shnet_request_duration_seconds Time from dispatch to response, by route.\n")
+                .append("# TYPE shnet_request_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(routes).entrySet()) {
+            entry.getValue().prometheus(text, "shnet_request_duration_seconds",
+                    "route=\"" + escape(entry.getKey()) + "\",");
+        }
+        text.append("# HELP shnet_tls_handshakes_total TLS handshakes by outcome.\n")
+                .append("# TYPE shnet_tls_handshakes_total counter\n")
+                .append("shnet_tls_handshakes_total{type=\"full\"} ").append(tlsFullHandshakes.get()).append('\n')
+                .append("shnet_tls_handshakes_total{type=\"resumed\"} ").append(tlsResumedHandshakes.get())
+                .append('\n')
+                .append("shnet_tls_handshakes_total{type=\"failed\"} ").append(tlsFailedHandshakes.get())
+                .append('\n');
+        text.append("# HELP shnet_tls_handshake_duration_seconds Time to complete a TLS handshake.\n")
+                .append("# TYPE shnet_tls_handshake_duration_seconds histogram\n");
+        tlsHandshakes.prometheus(text, "shnet_tls_handshake_duration_seconds", "");
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static int bucket(long micros) {
+        if (micros < DIRECT_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int linear = (int) (micros >>> (exponent - LINEAR_BITS)) & (LINEAR_BUCKETS - 1);
+        return DIRECT_BUCKETS + (exponent - LINEAR_BITS - 1) * LINEAR_BUCKETS + linear;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < DIRECT_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - DIRECT_BUCKETS) / LINEAR_BUCKETS + LINEAR_BITS + 1;
+        int linear = (bucket - DIRECT_BUCKETS) % LINEAR_BUCKETS;
+        return ((long) (LINEAR_BUCKETS + linear + 1) << (exponent - LINEAR_BITS)) - 1;
+    }
+
+    static long percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    private static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+        private final AtomicLongArray totalMicros = new AtomicLongArray(STRIPES);
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            buckets.incrementAndGet(stripe * BUCKETS + bucket(micros));
+            totalMicros.addAndGet(stripe, micros);
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        long[] counts() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < buckets.length(); i++) {
+                counts[i % BUCKETS] += buckets.get(i);
+            }
+            return counts;
+        }
+
+        long totalMicros() {
+            long total = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                total += totalMicros.get(i);
+            }
+            return total;
+        }
+
+        Shnet.RouteMetrics snapshot() {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long max = maxMicros.get();
+            return new Shnet.RouteMetrics(total, totalMicros(), max,
+                    Math.min(max, percentile(counts, total, 0.50)), Math.min(max, percentile(counts, total, 0.90)),
+                    Math.min(max, percentile(counts, total, 0.99)));
+        }
+
+        void prometheus(StringBuilder text, String name, String labels) {
+            long[] counts = counts();
+            long cumulative = 0;
+            int bucket = 0;
+            for (double bound : PROMETHEUS_BOUNDS) {
+                long boundMicros = (long) (bound * 1_000_000);
+                while (bucket < BUCKETS && upperBound(bucket) <= boundMicros) {
+                    cumulative += counts[bucket++];
+                }
+                text.append(name).append("_bucket{").append(labels)
+                        .append("le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            while (bucket < BUCKETS) {
+                cumulative += counts[bucket++];
+            }
+            String series = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            text.append(name).append("_bucket{").append(labels)
+                    .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum").append(series).append(' ')
+                    .append(String.format(Locale.US, "%.6f", totalMicros() / 1_000_000.0)).append('\n');
+            text.append(name).append("_count").append(series).append(' ')
+                    .append(cumulative).append('\n');
+        }
+    }
+}
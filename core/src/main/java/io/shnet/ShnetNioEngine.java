@@ -0,0 +1,1046 @@
+package io.shnet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+final class ShnetNioEngine implements Runnable {
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final int SHARED_READ_BYTES = 16 * 1024;
+    private static final int MAX_GATHERED_SEGMENTS = 8;
+
+    private final ShnetServer server;
+    private final ShnetMetrics metrics;
+    private final Shnet.Config config;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = new HashSet<>();
+    // WebSocket frames are copied out and event-stream input is discarded on the selector thread,
+    // so one read buffer serves every upgraded socket.
+    private final ByteBuffer sharedInput = ByteBuffer.allocate(SHARED_READ_BYTES);
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_SEGMENTS];
+    private Thread thread;
+    private volatile boolean running;
+
+    ShnetNioEngine(ShnetServer server, Shnet.Config config, ExecutorService workers) throws IOException {
+        this.server = server;
+        this.metrics = server.metrics();
+        this.config = config;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    void start(List<ServerSocketChannel> channels) throws IOException {
+        try {
+            for (ServerSocketChannel channel : channels) {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this, "ShnetSelector");
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MS;
+        try {
+            while (running) {
+                selector.select(SWEEP_INTERVAL_MS);
+                runPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    sweepIdle(now);
+                    nextSweep = now + SWEEP_INTERVAL_MS;
+                }
+            }
+        } catch (IOException ignored) {
+            // Selector failure; fall through and release everything.
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Ignore close errors.
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException | CancelledKeyException ignored) {
+            connection.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException ignored) {
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            server.connectionAccepted();
+        } catch (IOException ignored) {
+            try {
+                channel.close();
+            } catch (IOException closeIgnored) {
+                // Ignore close errors.
+            }
+        }
+    }
+
+    private void runPending() {
+        Runnable task;
+        while ((task = pending.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void submit(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    private void sweepIdle(long now) {
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (connection.webSocket != null) {
+                if (!connection.webSocket.tick(now)) {
+                    connection.close();
+                }
+                continue;
+            }
+            if (connection.subscriber != null || connection.awaitsHandler()) {
+                continue;
+            }
+            long timeout = connection.isIdle() ? config.keepAliveTimeoutMs : config.readTimeoutMs;
+            if (now - connection.lastActivity > timeout) {
+                connection.close();
+            }
+        }
+    }
+
+    private enum State {
+        READ_HEAD,
+        READ_BODY,
+        DISPATCHED,
+        WRITING,
+        WEB_SOCKET,
+        EVENTS
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ArrayDeque<Segment> output = new ArrayDeque<>();
+        private SelectionKey key;
+        private final ShnetRequestParser parser = new ShnetRequestParser();
+        private State state = State.READ_HEAD;
+        private ShnetServer.RequestHead head;
+        private ByteBuffer body;
+        private StreamingBody stream;
+        private ResponsePipe pipe;
+        private volatile ShnetResponder pending;
+        private FileChannel file;
+        private ShnetWebSocket webSocket;
+        private boolean webSocketPaused;
+        private ShnetBroadcaster.Subscriber subscriber;
+        private boolean keepAlive;
+        private int served;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isIdle() {
+            return state == State.READ_HEAD && served > 0 && parser.isEmpty();
+        }
+
+        boolean awaitsHandler() {
+            return state == State.DISPATCHED || (pipe != null && output.isEmpty());
+        }
+
+        void onReadable() throws IOException {
+            if (state == State.WEB_SOCKET) {
+                readWebSocket();
+                return;
+            }
+            if (state == State.EVENTS) {
+                readEvents();
+                return;
+            }
+            if (stream != null) {
+                stream.fill();
+                return;
+            }
+            if (state == State.READ_BODY) {
+                int read = channel.read(body);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesIn(read);
+                lastActivity = System.currentTimeMillis();
+                if (!body.hasRemaining()) {
+                    dispatch();
+                }
+                return;
+            }
+            if (state == State.DISPATCHED) {
+                ByteBuffer buffer = parser.writableBuffer();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesIn(read);
+                parser.commit(read);
+                if (!buffer.hasRemaining()) {
+                    key.interestOps(0);
+                }
+                return;
+            }
+            if (state != State.READ_HEAD) {
+                return;
+            }
+            int read = channel.read(parser.writableBuffer());
+            if (read < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn(read);
+            parser.commit(read);
+            lastActivity = System.currentTimeMillis();
+            processInput();
+        }
+
+        void onWritable() throws IOException {
+            if (state == State.WEB_SOCKET) {
+                writeWebSocket();
+                return;
+            }
+            if (state == State.EVENTS) {
+                writeEvents();
+                return;
+            }
+            while (!output.isEmpty()) {
+                Segment segment = output.peek();
+                if (segment.bytes != null) {
+                    if (!writeGathered()) {
+                        lastActivity = System.currentTimeMillis();
+                        return;
+                    }
+                    continue;
+                }
+                while (segment.remaining > 0) {
+                    long sent = file.transferTo(segment.position, segment.remaining, channel);
+                    if (sent <= 0) {
+                        lastActivity = System.currentTimeMillis();
+                        return;
+                    }
+                    metrics.bytesOut(sent);
+                    segment.position += sent;
+                    segment.remaining -= sent;
+                }
+                output.poll();
+            }
+            lastActivity = System.currentTimeMillis();
+            if (pipe != null && !pipe.complete) {
+                key.interestOps(0);
+                return;
+            }
+            finishResponse();
+        }
+
+        // Writes the leading byte segments, typically a response head and its body, in one gathering write.
+        // Returns false while the socket buffer is full.
+        private boolean writeGathered() throws IOException {
+            int count = 0;
+            for (Segment segment : output) {
+                if (segment.bytes == null || count == gathered.length) {
+                    break;
+                }
+                gathered[count++] = segment.bytes;
+            }
+            metrics.bytesOut(count == 1 ? channel.write(gathered[0]) : channel.write(gathered, 0, count));
+            boolean drained = !gathered[count - 1].hasRemaining();
+            Arrays.fill(gathered, 0, count, null);
+            while (!output.isEmpty() && output.peek().bytes != null && !output.peek().bytes.hasRemaining()) {
+                Segment done = output.poll();
+                if (pipe != null) {
+                    pipe.release(done.bytes.capacity());
+                }
+            }
+            return drained;
+        }
+
+        private void processInput() throws IOException {
+            try {
+                head = parser.parseHead();
+            } catch (ProtocolException e) {
+                reject(400, "Bad Request");
+                return;
+            }
+            if (head == null) {
+                return;
+            }
+            if (served == 0 && config.http2 && head.isHttp2Preface()) {
+                handOffHttp2();
+                return;
+            }
+            keepAlive = served + 1 < config.maxRequestsPerConnection && head.keepAlive();
+            long contentLength = head.contentLength();
+            if (contentLength < 0) {
+                reject(400, "Bad Request");
+                return;
+            }
+            boolean streamBody = config.streamRequestBodies && contentLength > 0;
+            if (contentLength > (streamBody ? config.maxStreamedBodyBytes : config.maxBodyBytes)) {
+                reject(413, "Payload Too Large");
+                return;
+            }
+            if (streamBody) {
+                stream = new StreamingBody(contentLength);
+                dispatch();
+                return;
+            }
+            body = ByteBuffer.allocate((int) contentLength);
+            body.position(parser.take(body.array(), 0, (int) contentLength));
+            if (body.hasRemaining()) {
+                state = State.READ_BODY;
+                return;
+            }
+            dispatch();
+        }
+
+        // HTTP/2 multiplexes on its own thread; the channel leaves the selector once the key is cancelled.
+        private void handOffHttp2() {
+            connections.remove(this);
+            key.cancel();
+            byte[] buffered = new byte[parser.buffered()];
+            parser.take(buffered, 0, buffered.length);
+            submit(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    Socket socket = channel.socket();
+                    server.serveHttp2(socket,
+                            new SequenceInputStream(new ByteArrayInputStream(buffered),
+                                    metrics.countIn(socket.getInputStream())),
+                            new BufferedOutputStream(metrics.countOut(socket.getOutputStream()), STREAM_BUFFER_BYTES),
+                            ShnetHttp2.PREFACE_TAIL);
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        private void dispatch() throws IOException {
+            state = State.DISPATCHED;
+            key.interestOps(0);
+            if (served > 0) {
+                server.requestReused();
+            }
+            final ShnetServer.RequestHead requestHead = head;
+            final StreamingBody requestStream = stream;
+            final Shnet.Request request = requestStream != null
+                    ? head.toRequest(requestStream, requestStream.length)
+                    : head.toRequest(body.array());
+            head = null;
+            body = null;
+            final ShnetLoadShedder shedder = server.loadShedder();
+            if (!shedder.admit()) {
+                shed(shedder);
+                return;
+            }
+            final long queuedAt = System.nanoTime();
+            try {
+                workers.execute(() -> {
+                    if (!shedder.start(queuedAt)) {
+                        submit(() -> shed(shedder));
+                        return;
+                    }
+                    if (server.isAsync()) {
+                        ShnetResponder responder = server.respondAsync(request, response -> {
+                            pending = null;
+                            respond(request, requestHead, requestStream, response);
+                        });
+                        if (responder != null) {
+                            // Set before the handler runs: a completion on another thread clears it afterwards.
+                            pending = responder;
+                            server.startAsync(request, responder);
+                            if (requestStream == null) {
+                                submit(this::watchPending);
+                            }
+                        }
+                        return;
+                    }
+                    respond(request, requestHead, requestStream, server.respond(request));
+                });
+            } catch (RejectedExecutionException ignored) {
+                shedder.cancel();
+                close();
+                return;
+            }
+            if (requestStream != null) {
+                requestStream.fill();
+            }
+        }
+
+        private void watchPending() {
+            if (state == State.DISPATCHED && pending != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void respond(Shnet.Request request, ShnetServer.RequestHead requestHead, StreamingBody requestStream,
+                             Shnet.Response response) {
+            if (requestStream != null && !requestStream.drain(ShnetServer.MAX_DRAIN_BYTES)) {
+                keepAlive = false;
+            }
+            if (response.webSocket != null) {
+                submit(() -> startWebSocket(request, response));
+                return;
+            }
+            if (response.events != null) {
+                submit(() -> startEvents(request, response, requestHead.isHead()));
+                return;
+            }
+            if (response.writer != null) {
+                writeStream(requestHead, response);
+            } else {
+                prepareResponse(request, response, requestHead.isHead());
+            }
+        }
+
+        private void prepareResponse(Shnet.Request request, Shnet.Response response, boolean headOnly) {
+            List<Segment> segments = new ArrayList<>(2);
+            FileChannel fileChannel = null;
+            if (response.file != null) {
+                try {
+                    fileChannel = new FileInputStream(response.file).getChannel();
+                    ShnetFileResponse plan = ShnetFileResponse.plan(request.headers, response,
+                            fileChannel.size(), response.file.lastModified());
+                    segments.add(new Segment(server.encodeHead(plan.response, plan.contentLength, keepAlive)));
+                    if (!headOnly) {
+                        for (ShnetFileResponse.Part part : plan.parts) {
+                            segments.add(part.bytes != null ? new Segment(part.bytes)
+                                    : new Segment(part.position, part.count));
+                        }
+                    }
+                } catch (IOException ignored) {
+                    closeFile(fileChannel);
+                    fileChannel = null;
+                    segments.clear();
+                    response = Shnet.Response.text(404, "text/plain; charset=utf-8", "Not Found");
+                }
+            }
+            if (fileChannel == null) {
+                byte[] payload = response.body == null ? new byte[0] : response.body;
+                segments.add(new Segment(server.encodeHead(response, payload.length, keepAlive)));
+                if (!headOnly && payload.length > 0) {
+                    segments.add(new Segment(payload));
+                }
+            }
+            final FileChannel responseFile = fileChannel;
+            submit(() -> startWrite(segments, responseFile, null));
+        }
+
+        private void writeStream(ShnetServer.RequestHead requestHead, Shnet.Response response) {
+            boolean chunked = requestHead.acceptsChunked();
+            if (!chunked) {
+                keepAlive = false;
+            }
+            ResponsePipe responsePipe = new ResponsePipe();
+            byte[] responseHead = server.encodeHead(response,
+                    chunked ? ShnetServer.CHUNKED_LENGTH : ShnetServer.UNKNOWN_LENGTH, keepAlive);
+            submit(() -> startWrite(Collections.<Segment>emptyList(), null, responsePipe));
+            try {
+                responsePipe.write(responseHead);
+                if (!requestHead.isHead()) {
+                    ShnetBodyOutputStream body = new ShnetBodyOutputStream(responsePipe, chunked);
+                    response.writer.writeTo(body);
+                    body.finish();
+                }
+                responsePipe.finish();
+            } catch (IOException | RuntimeException ignored) {
+                responsePipe.abort();
+            }
+        }
+
+        private void startWebSocket(Shnet.Request request, Shnet.Response response) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            endStream();
+            state = State.WEB_SOCKET;
+            webSocket = new ShnetWebSocket(config, workers, request, response);
+            output.add(new Segment(server.encodeHead(response, 0, false)));
+            byte[] buffered = new byte[parser.buffered()];
+            parser.take(buffered, 0, buffered.length);
+            webSocket.start(new WebSocketTransport(), buffered);
+            pumpWebSocket();
+        }
+
+        private void readWebSocket() throws IOException {
+            sharedInput.clear();
+            int read = channel.read(sharedInput);
+            if (read < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn(read);
+            lastActivity = System.currentTimeMillis();
+            webSocket.receive(sharedInput.array(), 0, read);
+            if (!webSocket.acceptsInput()) {
+                webSocketPaused = true;
+                updateWebSocketInterest();
+            }
+        }
+
+        private void writeWebSocket() throws IOException {
+            if (writeQueued() && webSocket.isFinished()) {
+                close();
+                return;
+            }
+            updateWebSocketInterest();
+        }
+
+        // Frames leave the socket's queue only when the previous ones are written, which keeps its bound honest.
+        // Returns false while the socket buffer is full.
+        private boolean writeQueued() throws IOException {
+            while (true) {
+                Segment segment = output.peek();
+                if (segment == null) {
+                    byte[] frame = webSocket != null ? webSocket.poll() : subscriber.poll();
+                    if (frame == null) {
+                        return true;
+                    }
+                    segment = new Segment(frame);
+                    output.add(segment);
+                }
+                metrics.bytesOut(channel.write(segment.bytes));
+                lastActivity = System.currentTimeMillis();
+                if (segment.bytes.hasRemaining()) {
+                    return false;
+                }
+                output.poll();
+            }
+        }
+
+        private void pumpWebSocket() {
+            if (state != State.WEB_SOCKET || !key.isValid()) {
+                return;
+            }
+            try {
+                writeWebSocket();
+            } catch (IOException | CancelledKeyException ignored) {
+                close();
+            }
+        }
+
+        private void resumeWebSocket() {
+            if (state != State.WEB_SOCKET || !key.isValid()) {
+                return;
+            }
+            webSocketPaused = false;
+            updateWebSocketInterest();
+        }
+
+        private void updateWebSocketInterest() {
+            key.interestOps((webSocketPaused ? 0 : SelectionKey.OP_READ)
+                    | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        private void startEvents(Shnet.Request request, Shnet.Response response, boolean headOnly) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            Segment responseHead = new Segment(server.encodeHead(response, ShnetServer.UNKNOWN_LENGTH, false));
+            ShnetBroadcaster.Subscriber events = headOnly ? null
+                    : response.events.core.subscribe(request.headers.get("last-event-id"), new EventsSink());
+            if (events == null) {
+                keepAlive = false;
+                startWrite(Collections.singletonList(responseHead), null, null);
+                return;
+            }
+            endStream();
+            state = State.EVENTS;
+            subscriber = events;
+            output.add(responseHead);
+            pumpEvents();
+        }
+
+        // The client has nothing to say on an event stream; reading only notices when it goes away.
+        private void readEvents() throws IOException {
+            sharedInput.clear();
+            int read = channel.read(sharedInput);
+            if (read < 0) {
+                close();
+                return;
+            }
+            metrics.bytesIn(read);
+        }
+
+        private void writeEvents() throws IOException {
+            writeQueued();
+            key.interestOps(SelectionKey.OP_READ | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        private void pumpEvents() {
+            if (state != State.EVENTS || !key.isValid()) {
+                return;
+            }
+            try {
+                writeEvents();
+            } catch (IOException | CancelledKeyException ignored) {
+                close();
+            }
+        }
+
+        private void startWrite(List<Segment> segments, FileChannel responseFile, ResponsePipe responsePipe) {
+            if (!channel.isOpen()) {
+                closeFile(responseFile);
+                if (responsePipe != null) {
+                    responsePipe.fail();
+                }
+                return;
+            }
+            endStream();
+            state = State.WRITING;
+            output.addAll(segments);
+            file = responseFile;
+            pipe = responsePipe;
+            resumeWrite();
+        }
+
+        private void resumeWrite() {
+            try {
+                onWritable();
+                if (state == State.WRITING && !output.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException | CancelledKeyException ignored) {
+                close();
+            }
+        }
+
+        private void finishResponse() throws IOException {
+            closeFile(file);
+            file = null;
+            pipe = null;
+            served++;
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            state = State.READ_HEAD;
+            key.interestOps(SelectionKey.OP_READ);
+            if (!parser.isEmpty()) {
+                processInput();
+            }
+        }
+
+        private void reject(int statusCode, String message) {
+            keepAlive = false;
+            Shnet.Response response = Shnet.Response.text(statusCode, "text/plain; charset=utf-8", message);
+            List<Segment> segments = new ArrayList<>(2);
+            segments.add(new Segment(server.encodeHead(response, response.body.length, false)));
+            segments.add(new Segment(response.body));
+            startWrite(segments, null, null);
+        }
+
+        private void shed(ShnetLoadShedder shedder) {
+            keepAlive = false;
+            startWrite(Collections.singletonList(new Segment(shedder.response())), null, null);
+        }
+
+        void close() {
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            ShnetResponder responder = pending;
+            if (responder != null) {
+                responder.cancel();
+            }
+            endStream();
+            if (pipe != null) {
+                pipe.fail();
+                pipe = null;
+            }
+            if (webSocket != null) {
+                webSocket.closed();
+            }
+            if (subscriber != null) {
+                subscriber.close();
+            }
+            closeFile(file);
+            file = null;
+            output.clear();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore close errors.
+            }
+        }
+
+        private void endStream() {
+            if (stream != null) {
+                stream.fail();
+                stream = null;
+            }
+        }
+
+        private void closeFile(FileChannel fileChannel) {
+            if (fileChannel == null) {
+                return;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+                // Ignore close errors.
+            }
+        }
+
+        private final class StreamingBody extends InputStream {
+            private final long length;
+            private final ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_BYTES);
+            private long unreceived;
+            private boolean paused;
+            private boolean failed;
+
+            StreamingBody(long length) {
+                this.length = length;
+                this.unreceived = length;
+            }
+
+            synchronized void fill() throws IOException {
+                if (failed) {
+                    return;
+                }
+                if (unreceived > 0 && !parser.isEmpty()) {
+                    int wanted = (int) Math.min(buffer.remaining(), unreceived);
+                    int taken = parser.take(buffer.array(), buffer.position(), wanted);
+                    buffer.position(buffer.position() + taken);
+                    unreceived -= taken;
+                }
+                if (unreceived > 0 && buffer.hasRemaining()) {
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), unreceived));
+                    int read = channel.read(buffer);
+                    buffer.limit(limit);
+                    if (read < 0) {
+                        fail();
+                        throw new EOFException("Request body truncated");
+                    }
+                    unreceived -= read;
+                    metrics.bytesIn(read);
+                    if (read > 0) {
+                        lastActivity = System.currentTimeMillis();
+                    }
+                }
+                paused = unreceived > 0 && !buffer.hasRemaining();
+                key.interestOps(unreceived > 0 && !paused ? SelectionKey.OP_READ : 0);
+                notifyAll();
+            }
+
+            synchronized void fail() {
+                failed = true;
+                notifyAll();
+            }
+
+            boolean drain(long limit) {
+                synchronized (this) {
+                    if (unreceived + buffer.position() > limit) {
+                        return false;
+                    }
+                }
+                byte[] scratch = new byte[8192];
+                try {
+                    while (read(scratch, 0, scratch.length) >= 0) {
+                        // Discard the unread remainder so the connection can be reused.
+                    }
+                    return true;
+                } catch (IOException ignored) {
+                    return false;
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int read = read(single, 0, 1);
+                return read < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public synchronized int read(byte[] target, int offset, int count) throws IOException {
+                if (count == 0) {
+                    return 0;
+                }
+                long deadline = System.currentTimeMillis() + config.readTimeoutMs;
+                while (buffer.position() == 0) {
+                    if (unreceived == 0) {
+                        return -1;
+                    }
+                    if (failed) {
+                        throw new EOFException("Connection closed");
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new EOFException("Interrupted");
+                    }
+                }
+                buffer.flip();
+                int read = Math.min(count, buffer.remaining());
+                buffer.get(target, offset, read);
+                buffer.compact();
+                if (paused) {
+                    paused = false;
+                    submit(this::resume);
+                }
+                return read;
+            }
+
+            @Override
+            public synchronized int available() {
+                return buffer.position();
+            }
+
+            @Override
+            public void close() {
+                // The socket belongs to the connection; unread bytes are drained after the handler returns.
+            }
+
+            private void resume() {
+                if (stream != this) {
+                    return;
+                }
+                try {
+                    fill();
+                } catch (IOException | CancelledKeyException ignored) {
+                    Connection.this.close();
+                }
+            }
+        }
+
+        private final class WebSocketTransport implements ShnetWebSocket.Transport {
+            @Override
+            public void flush() {
+                submit(Connection.this::pumpWebSocket);
+            }
+
+            @Override
+            public void resume() {
+                submit(Connection.this::resumeWebSocket);
+            }
+
+            @Override
+            public void close() {
+                submit(Connection.this::close);
+            }
+        }
+
+        private final class EventsSink implements ShnetBroadcaster.Sink {
+            @Override
+            public void flush(ShnetBroadcaster.Subscriber subscriber) {
+                submit(Connection.this::pumpEvents);
+            }
+
+            @Override
+            public void close() {
+                submit(Connection.this::close);
+            }
+        }
+
+        private final class ResponsePipe extends OutputStream {
+            private byte[] pending = new byte[1024];
+            private int count;
+            private long queued;
+            private boolean failed;
+            private boolean complete;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] source, int offset, int length) {
+                if (count + length > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + length));
+                }
+                System.arraycopy(source, offset, pending, count, length);
+                count += length;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count == 0) {
+                    return;
+                }
+                final Segment segment = new Segment(Arrays.copyOf(pending, count));
+                count = 0;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + config.readTimeoutMs;
+                    while (queued >= STREAM_BUFFER_BYTES && !failed) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException("Write timed out");
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new EOFException("Interrupted");
+                        }
+                    }
+                    if (failed) {
+                        throw new EOFException("Connection closed");
+                    }
+                    queued += segment.bytes.capacity();
+                }
+                submit(() -> append(segment));
+            }
+
+            void finish() throws IOException {
+                flush();
+                submit(this::end);
+            }
+
+            void abort() {
+                submit(() -> {
+                    if (pipe == this) {
+                        Connection.this.close();
+                    }
+                });
+            }
+
+            synchronized void release(int bytes) {
+                queued -= bytes;
+                notifyAll();
+            }
+
+            synchronized void fail() {
+                failed = true;
+                notifyAll();
+            }
+
+            private void append(Segment segment) {
+                if (pipe != this) {
+                    return;
+                }
+                if (output.isEmpty()) {
+                    lastActivity = System.currentTimeMillis();
+                }
+                output.add(segment);
+                resumeWrite();
+            }
+
+            private void end() {
+                if (pipe != this) {
+                    return;
+                }
+                complete = true;
+                if (output.isEmpty()) {
+                    try {
+                        finishResponse();
+                    } catch (IOException | CancelledKeyException ignored) {
+                        Connection.this.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final ByteBuffer bytes;
+        private long position;
+        private long remaining;
+
+        Segment(byte[] bytes) {
+            this.bytes = ByteBuffer.wrap(bytes);
+        }
+
+        Segment(long position, long count) {
+            this.bytes = null;
+            this.position = position;
+            this.remaining = count;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package io.shnet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+final class ShnetRequestParser {
+    static final int MAX_HEAD_BYTES = ShnetServer.MAX_LINE_BYTES + 2 * ShnetServer.MAX_HEADER_BYTES;
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private static final String[] METHODS = {
+            "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH"
+    };
+    private static final String[] KNOWN_HEADERS = {
+            "host", "connection", "content-length", "content-type", "accept", "accept-encoding",
+            "accept-language", "user-agent", "cookie", "authorization", "transfer-encoding", "range",
+            "if-range", "if-none-match", "if-modified-since", "origin", "referer", "upgrade",
+            "cache-control", "pragma", "keep-alive", "expect", "forwarded", "x-forwarded-for",
+            "x-requested-with", "dnt", "te", "sec-fetch-mode", "sec-fetch-site", "sec-fetch-dest"
+    };
+    private static final byte[][] METHOD_BYTES = ascii(METHODS);
+    private static final byte[][] KNOWN_HEADER_BYTES = ascii(KNOWN_HEADERS);
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final byte[] HTTP_1_1_BYTES = HTTP_1_1.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0_BYTES = HTTP_1_0.getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    private int start;
+    private int end;
+    private int scanned;
+    private int lineLength;
+
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    int buffered() {
+        return end - start;
+    }
+
+    boolean fill(InputStream input) throws IOException {
+        ensureSpace();
+        int read = input.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    ByteBuffer writableBuffer() {
+        ensureSpace();
+        view.clear();
+        view.position(end);
+        return view;
+    }
+
+    void commit(int count) {
+        if (count > 0) {
+            end += count;
+        }
+    }
+
+    int take(byte[] target, int offset, int length) {
+        int count = Math.min(length, end - start);
+        System.arraycopy(buffer, start, target, offset, count);
+        start += count;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return count;
+    }
+
+    ShnetServer.RequestHead parseHead() throws ProtocolException {
+        if (scanned == 0) {
+            while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+                start++;
+            }
+        }
+        int headEnd = findHeadEnd();
+        if (headEnd < 0) {
+            return null;
+        }
+        ShnetServer.RequestHead head = parse(start, headEnd);
+        start = headEnd;
+        scanned = 0;
+        lineLength = 0;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return head;
+    }
+
+    private int findHeadEnd() throws ProtocolException {
+        int i = start + scanned;
+        while (i < end) {
+            byte b = buffer[i++];
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    return i;
+                }
+                lineLength = 0;
+            } else if (b != '\r' && ++lineLength > ShnetServer.MAX_LINE_BYTES) {
+                throw new ProtocolException("Line too long");
+            }
+        }
+        scanned = end - start;
+        if (scanned >= MAX_HEAD_BYTES) {
+            throw new ProtocolException("Header too large");
+        }
+        return -1;
+    }
+
+    private ShnetServer.RequestHead parse(int from, int to) throws ProtocolException {
+        int lineEnd = indexOf('\n', from, to);
+        int requestLineEnd = trimEnd(from, stripCr(from, lineEnd));
+        int methodEnd = indexOf(' ', from, requestLineEnd);
+        if (methodEnd <= from) {
+            throw new ProtocolException("Bad request line");
+        }
+        int targetStart = trimStart(methodEnd, requestLineEnd);
+        int targetEnd = indexOf(' ', targetStart, requestLineEnd);
+        if (targetEnd < 0) {
+            targetEnd = requestLineEnd;
+        }
+        if (targetStart == targetEnd) {
+            throw new ProtocolException("Bad request line");
+        }
+        String version = HTTP_1_0;
+        if (targetEnd < requestLineEnd) {
+            int versionStart = trimStart(targetEnd, requestLineEnd);
+            version = intern(versionStart, requestLineEnd);
+        }
+        String path;
+        String query = "";
+        int queryIndex = indexOf('?', targetStart, targetEnd);
+        if (queryIndex >= 0) {
+            path = ascii(targetStart, queryIndex);
+            query = ascii(queryIndex + 1, targetEnd);
+        } else {
+            path = ascii(targetStart, targetEnd);
+        }
+        // One copy of the header lines backs every value, decoded only when read.
+        int base = lineEnd + 1;
+        ShnetHeaders headers = new ShnetHeaders(Arrays.copyOfRange(buffer, base, to));
+        ShnetServer.RequestHead head = new ShnetServer.RequestHead(method(from, methodEnd), path, query, version,
+                headers);
+
+        int headerBytes = 0;
+        int pos = base;
+        while (pos < to) {
+            int next = indexOf('\n', pos, to);
+            int stop = stripCr(pos, next);
+            if (stop == pos) {
+                break;
+            }
+            headerBytes += stop - pos;
+            if (headerBytes > ShnetServer.MAX_HEADER_BYTES) {
+                throw new ProtocolException("Header too large");
+            }
+            int colon = indexOf(':', pos, stop);
+            if (colon > pos) {
+                int nameEnd = trimEnd(pos, colon);
+                int nameStart = trimStart(pos, nameEnd);
+                int valueStart = trimStart(colon + 1, stop);
+                int valueEnd = trimEnd(valueStart, stop);
+                headers.add(headerName(nameStart, nameEnd), valueStart - base, valueEnd - base);
+            }
+            pos = next + 1;
+        }
+        return head;
+    }
+
+    private String method(int from, int to) {
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            if (matches(METHOD_BYTES[i], from, to, false)) {
+                return METHODS[i];
+            }
+        }
+        return ascii(from, to);
+    }
+
+    private String intern(int from, int to) {
+        if (matches(HTTP_1_1_BYTES, from, to, false)) {
+            return HTTP_1_1;
+        }
+        if (matches(HTTP_1_0_BYTES, from, to, false)) {
+            return HTTP_1_0;
+        }
+        return ascii(from, to);
+    }
+
+    private String headerName(int from, int to) {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            if (matches(KNOWN_HEADER_BYTES[i], from, to, true)) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        for (int i = from; i < to; i++) {
+            buffer[i] = lower(buffer[i]);
+        }
+        return ascii(from, to);
+    }
+
+    private boolean matches(byte[] expected, int from, int to, boolean ignoreCase) {
+        if (expected.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buffer[from + i];
+            if (expected[i] != (ignoreCase ? lower(b) : b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String ascii(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    private int indexOf(char target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int stripCr(int from, int to) {
+        return to > from && buffer[to - 1] == '\r' ? to - 1 : to;
+    }
+
+    private int trimStart(int from, int to) {
+        while (from < to && (buffer[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buffer[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private void ensureSpace() {
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+            return;
+        }
+        if (buffer.length < MAX_HEAD_BYTES) {
+            byte[] larger = new byte[Math.min(MAX_HEAD_BYTES, buffer.length * 2)];
+            System.arraycopy(buffer, 0, larger, 0, end);
+            buffer = larger;
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[][] ascii(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+package io.shnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+final class ShnetResponder implements Shnet.Responder {
+    interface Listener {
+        void onResponse(Shnet.Response response);
+    }
+
+    private final Listener listener;
+    private final List<Runnable> cancelCallbacks = new ArrayList<>(1);
+    private ScheduledFuture<?> timeout;
+    private boolean done;
+    private boolean cancelled;
+
+    ShnetResponder(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean complete(Shnet.Response response) {
+        if (!settle()) {
+            return false;
+        }
+        listener.onResponse(response);
+        return true;
+    }
+
+    @Override
+    public boolean fail(Throwable error) {
+        if (!settle()) {
+            return false;
+        }
+        listener.onResponse(Shnet.Response.text(500, "text/plain; charset=utf-8", "Internal Server Error"));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void onCancel(Runnable callback) {
+        synchronized (this) {
+            if (!cancelled) {
+                if (!done) {
+                    cancelCallbacks.add(callback);
+                }
+                return;
+            }
+        }
+        runQuietly(callback);
+    }
+
+    synchronized void schedule(ScheduledExecutorService timer, long timeoutMs) {
+        if (!done && timer != null && timeoutMs > 0) {
+            timeout = timer.schedule(this::expire, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void expire() {
+        if (cancel()) {
+            listener.onResponse(Shnet.Response.text(503, "text/plain; charset=utf-8", "Service Unavailable"));
+        }
+    }
+
+    boolean cancel() {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            callbacks = new ArrayList<>(cancelCallbacks);
+            cancelCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            runQuietly(callback);
+        }
+        return true;
+    }
+
+    private synchronized boolean settle() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        cancelCallbacks.clear();
+        return true;
+    }
+
+    private static void runQuietly(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException ignored) {
+            // A failing cancel hook must not break the response.
+        }
+    }
+}
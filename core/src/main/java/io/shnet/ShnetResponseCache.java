@@ -0,0 +1,144 @@
+package io.shnet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class ShnetResponseCache {
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private final long maxBytes;
+    private final long defaultTtlMs;
+    private final List<String> varyHeaders;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long bytes;
+
+    ShnetResponseCache(long maxBytes, long defaultTtlMs, List<String> varyHeaders) {
+        this.maxBytes = maxBytes;
+        this.defaultTtlMs = defaultTtlMs;
+        this.varyHeaders = varyHeaders;
+    }
+
+    String key(Shnet.Request request, String encoding) {
+        if (!"GET".equals(request.method) && !"HEAD".equals(request.method)) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(64);
+        key.append("GET ").append(request.path);
+        if (!request.query.isEmpty()) {
+            key.append('?').append(request.query);
+        }
+        key.append('\n').append(encoding == null ? "" : encoding);
+        for (String name : varyHeaders) {
+            String value = request.headers.get(name);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    Shnet.Response get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt > now) {
+                hits.incrementAndGet();
+                return entry.response;
+            }
+            if (entry != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String key, String path, Shnet.Response response) {
+        long ttl = response.cacheTtlMs >= 0 ? response.cacheTtlMs : defaultTtlMs;
+        if (ttl <= 0 || response.statusCode != 200 || response.body == null || response.file != null
+                || response.writer != null) {
+            return;
+        }
+        long size = (long) response.body.length + key.length() * 2L + ENTRY_OVERHEAD_BYTES;
+        if (size > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(path, response, size, System.currentTimeMillis() + ttl);
+        synchronized (this) {
+            remove(key);
+            entries.put(key, entry);
+            bytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                bytes -= evicted.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // A response for one client, or one that varies on anything, must not be replayed to others.
+    static boolean isStorable(Shnet.Response response) {
+        if (response.header("Set-Cookie") != null) {
+            return false;
+        }
+        String vary = response.header("Vary");
+        if (vary != null && ShnetServer.RequestHead.hasToken(vary, "*")) {
+            return false;
+        }
+        String cacheControl = response.header("Cache-Control");
+        return cacheControl == null
+                || !(hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private"));
+    }
+
+    private static boolean hasDirective(String cacheControl, String name) {
+        for (String directive : cacheControl.split(",")) {
+            int equals = directive.indexOf('=');
+            String key = (equals < 0 ? directive : directive.substring(0, equals)).trim();
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void invalidate(String pathPrefix) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (pathPrefix == null || entry.path.startsWith(pathPrefix)) {
+                iterator.remove();
+                bytes -= entry.size;
+            }
+        }
+    }
+
+    synchronized Shnet.CacheStats stats() {
+        return new Shnet.CacheStats(hits.get(), misses.get(), evictions.get(), entries.size(), bytes);
+    }
+
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+    }
+
+    private static final class Entry {
+        final String path;
+        final Shnet.Response response;
+        final long size;
+        final long expiresAt;
+
+        Entry(String path, Shnet.Response response, long size, long expiresAt) {
+            this.path = path;
+            this.response = response;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
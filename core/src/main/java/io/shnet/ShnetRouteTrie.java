@@ -0,0 +1,234 @@
+package io.shnet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+final class ShnetRouteTrie {
+    static final String ANY_METHOD = "*";
+
+    private final Node root = new Node();
+
+    void add(String method, String pattern, Shnet.Handler handler) {
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with '/': " + pattern);
+        }
+        String[] segments = pattern.substring(1).split("/", -1);
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.startsWith("*")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                names.add(segment.length() > 1 ? segment.substring(1) : "*");
+                if (node.wildcard == null) {
+                    node.wildcard = new Node();
+                }
+                node = node.wildcard;
+            } else if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+                names.add(segment.substring(1, segment.length() - 1));
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+                throw new IllegalArgumentException("Malformed route segment '" + segment + "': " + pattern);
+            } else {
+                Node child = node.literals.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (node.routes.containsKey(method)) {
+            throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+        }
+        node.routes.put(method, new Route(handler, names.toArray(new String[0]), method + " " + pattern));
+    }
+
+    Match match(String method, String path) {
+        if (path == null || !path.startsWith("/")) {
+            return null;
+        }
+        Lookup lookup = new Lookup(method);
+        Route route = find(root, path, 1, lookup);
+        if (route != null) {
+            return new Match(route.handler, params(route.names, lookup.captures), null, route.label);
+        }
+        // Every node matching the path was visited, so the allowed methods cover literal and parameter routes alike.
+        return lookup.allowed != null ? new Match(null, Collections.emptyMap(), allow(lookup.allowed), null) : null;
+    }
+
+    private Route find(Node node, String path, int from, Lookup lookup) {
+        int end = path.indexOf('/', from);
+        boolean last = end < 0;
+        if (last) {
+            end = path.length();
+        }
+        Node literal = node.literals.get(path.substring(from, end));
+        if (literal != null) {
+            Route route = last ? literal.select(lookup) : find(literal, path, end + 1, lookup);
+            if (route != null) {
+                return route;
+            }
+        }
+        if (node.param != null && end > from) {
+            lookup.captures.add(path.substring(from, end));
+            Route route = last ? node.param.select(lookup) : find(node.param, path, end + 1, lookup);
+            if (route != null) {
+                return route;
+            }
+            lookup.captures.remove(lookup.captures.size() - 1);
+        }
+        if (node.wildcard != null) {
+            lookup.captures.add(path.substring(from));
+            Route route = node.wildcard.select(lookup);
+            if (route != null) {
+                return route;
+            }
+            lookup.captures.remove(lookup.captures.size() - 1);
+        }
+        return null;
+    }
+
+    private static Map<String, String> params(String[] names, List<String> values) {
+        if (names.length == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> params = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            params.put(names[i], decode(values.get(i)));
+        }
+        return Collections.unmodifiableMap(params);
+    }
+
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            if (value.charAt(i) == '%' && i + 2 < value.length()
+                    && hex(value.charAt(i + 1)) >= 0 && hex(value.charAt(i + 2)) >= 0) {
+                bytes.write(hex(value.charAt(i + 1)) << 4 | hex(value.charAt(i + 2)));
+                i += 3;
+            } else {
+                int codePoint = value.codePointAt(i);
+                byte[] encoded = new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+                i += Character.charCount(codePoint);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static String allow(Iterable<String> methods) {
+        List<String> allowed = new ArrayList<>();
+        for (String method : methods) {
+            if (ANY_METHOD.equals(method)) {
+                return null;
+            }
+            allowed.add(method);
+        }
+        if (allowed.contains("GET") && !allowed.contains("HEAD")) {
+            allowed.add("HEAD");
+        }
+        Collections.sort(allowed);
+        StringBuilder header = new StringBuilder();
+        for (String method : allowed) {
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append(method);
+        }
+        return header.toString();
+    }
+
+    static final class Match {
+        final Shnet.Handler handler;
+        final Map<String, String> params;
+        final String allow;
+        final String route;
+
+        Match(Shnet.Handler handler, Map<String, String> params, String allow, String route) {
+            this.handler = handler;
+            this.params = params;
+            this.allow = allow;
+            this.route = route;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> literals = new HashMap<>();
+        final Map<String, Route> routes = new LinkedHashMap<>();
+        Node param;
+        Node wildcard;
+
+        Route select(Lookup lookup) {
+            if (routes.isEmpty()) {
+                return null;
+            }
+            Route route = routes.get(lookup.method);
+            if (route == null && "HEAD".equals(lookup.method)) {
+                route = routes.get("GET");
+            }
+            if (route == null) {
+                route = routes.get(ANY_METHOD);
+            }
+            if (route == null) {
+                if (lookup.allowed == null) {
+                    lookup.allowed = new LinkedHashSet<>();
+                }
+                lookup.allowed.addAll(routes.keySet());
+            }
+            return route;
+        }
+    }
+
+    private static final class Route {
+        final Shnet.Handler handler;
+        final String[] names;
+        final String label;
+
+        Route(Shnet.Handler handler, String[] names, String label) {
+            this.handler = handler;
+            this.names = names;
+            this.label = label;
+        }
+    }
+
+    private static final class Lookup {
+        final String method;
+        final List<String> captures = new ArrayList<>(4);
+        Set<String> allowed;
+
+        Lookup(String method) {
+            this.method = method;
+        }
+    }
+}
@@ -0,0 +1,1181 @@
+package io.shnet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+final class ShnetServer {
+    static final int MAX_HEADER_BYTES = 32 * 1024;
+    static final int MAX_LINE_BYTES = 8192;
+    private static final int OUTPUT_BUFFER_BYTES = 8192;
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final int MAX_COALESCED_BODY_BYTES = 64 * 1024;
+    private static final int KEEP_ALIVE_POLL_MS = 250;
+    private static final int MAX_QUEUED_TLS_SHEDS = 16;
+    private static final int MAX_TRACKED_SESSION_IDS = 1024;
+    static final long MAX_DRAIN_BYTES = 64 * 1024;
+    static final long CHUNKED_LENGTH = -1;
+    static final long UNKNOWN_LENGTH = -2;
+    private static final ShnetBufferPool COPY_BUFFERS = new ShnetBufferPool(16 * 1024, 32);
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    interface RawResources {
+        InputStream open(int resourceId) throws IOException;
+    }
+
+    private final RawResources rawResources;
+    private final Shnet.Handler handler;
+    private final Shnet.Config config;
+    private final ShnetHeadWriter headWriter;
+    private ServerSocket ipv6Socket;
+    private ServerSocket ipv4Socket;
+    private Thread ipv6Thread;
+    private Thread ipv4Thread;
+    private ExecutorService workers;
+    private ScheduledThreadPoolExecutor timer;
+    private ThreadPoolExecutor tlsShedder;
+    private ShnetNioEngine nioEngine;
+    private final ShnetResponseCache responseCache;
+    private final ShnetLoadShedder loadShedder;
+    private final AtomicInteger connectionWorkers = new AtomicInteger();
+    private int workerLimit;
+    private volatile boolean running;
+    private String bindHost = "";
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final ShnetMetrics metrics = new ShnetMetrics();
+    private final Map<ByteBuffer, Boolean> sessionIds = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > MAX_TRACKED_SESSION_IDS;
+        }
+    };
+
+    ShnetServer(RawResources rawResources, Shnet.Handler handler, Shnet.Config config) {
+        this.rawResources = rawResources;
+        this.handler = handler;
+        this.config = config;
+        this.headWriter = new ShnetHeadWriter(config.cacheControl, keepAliveTimeoutSeconds());
+        this.responseCache = config.responseCacheBytes > 0
+                ? new ShnetResponseCache(config.responseCacheBytes, config.responseCacheTtlMs, config.responseCacheVary)
+                : null;
+        this.loadShedder = new ShnetLoadShedder(config.maxQueuedRequests, config.maxQueueWaitMs,
+                config.maxConnectionThreads, encodeOverload());
+    }
+
+    synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        running = true;
+        ServerSocketFactory socketFactory = null;
+        if (config.tlsConfig != null) {
+            try {
+                socketFactory = buildTlsSocketFactory();
+            } catch (IOException e) {
+                running = false;
+                throw e;
+            }
+        }
+        boolean nio = config.engine == Shnet.Engine.NIO && socketFactory == null;
+        workers = config.executorFactory.create(Math.max(1, config.workerThreads), new ShnetThreadFactory());
+        if (workers == null) {
+            running = false;
+            throw new IOException("Executor factory returned no executor");
+        }
+        workerLimit = workerLimit(workers);
+        ipv6Socket = null;
+        ipv4Socket = null;
+        IOException lastException = null;
+
+        if (config.bindMode == Shnet.BindMode.IPV6_ONLY || config.bindMode == Shnet.BindMode.DUAL
+                || config.bindMode == Shnet.BindMode.IPV6_PREFERRED) {
+            try {
+                ipv6Socket = bindSocket("::", config.port, socketFactory);
+            } catch (IOException ex) {
+                lastException = ex;
+                ipv6Socket = null;
+            }
+        }
+
+        if (config.bindMode == Shnet.BindMode.IPV4_ONLY || config.bindMode == Shnet.BindMode.DUAL
+                || (config.bindMode == Shnet.BindMode.IPV6_PREFERRED && ipv6Socket == null)) {
+            try {
+                ipv4Socket = bindSocket("0.0.0.0", config.port, socketFactory);
+            } catch (IOException ex) {
+                if (lastException == null) {
+                    lastException = ex;
+                }
+                ipv4Socket = null;
+            }
+        }
+
+        if (ipv6Socket == null && ipv4Socket == null) {
+            running = false;
+            shutdownWorkers();
+            if (lastException != null) {
+                throw lastException;
+            }
+            throw new IOException("Unable to bind shnet server");
+        }
+
+        if (nio) {
+            List<ServerSocketChannel> channels = new ArrayList<>(2);
+            if (ipv6Socket != null) {
+                channels.add(ipv6Socket.getChannel());
+            }
+            if (ipv4Socket != null) {
+                channels.add(ipv4Socket.getChannel());
+            }
+            if (isAsync()) {
+                timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                    Thread thread = new Thread(runnable, "ShnetTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                timer.setRemoveOnCancelPolicy(true);
+            }
+            try {
+                nioEngine = new ShnetNioEngine(this, config, workers);
+                nioEngine.start(channels);
+            } catch (IOException e) {
+                stop();
+                throw e;
+            }
+        } else {
+            if (socketFactory != null) {
+                tlsShedder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(MAX_QUEUED_TLS_SHEDS), runnable -> {
+                    Thread thread = new Thread(runnable, "ShnetShedder");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (ipv6Socket != null) {
+                ipv6Thread = new Thread(() -> runLoop(ipv6Socket), "ShnetServer-v6");
+                ipv6Thread.start();
+            }
+            if (ipv4Socket != null) {
+                ipv4Thread = new Thread(() -> runLoop(ipv4Socket), "ShnetServer-v4");
+                ipv4Thread.start();
+            }
+        }
+
+        if (ipv6Socket != null && ipv4Socket != null) {
+            bindHost = "dual";
+        } else if (ipv6Socket != null) {
+            bindHost = "::";
+        } else {
+            bindHost = "0.0.0.0";
+        }
+    }
+
+    synchronized void stop() {
+        running = false;
+        closeQuietly(ipv6Socket);
+        closeQuietly(ipv4Socket);
+        ipv6Socket = null;
+        ipv4Socket = null;
+        if (ipv6Thread != null) {
+            ipv6Thread.interrupt();
+        }
+        if (ipv4Thread != null) {
+            ipv4Thread.interrupt();
+        }
+        if (nioEngine != null) {
+            nioEngine.stop();
+            nioEngine = null;
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        if (tlsShedder != null) {
+            for (Runnable queued : tlsShedder.shutdownNow()) {
+                closeQuietly(((TlsShed) queued).socket);
+            }
+            tlsShedder = null;
+        }
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+        clients.clear();
+        shutdownWorkers();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    int getPort() {
+        return config.port;
+    }
+
+    String getBindHost() {
+        return bindHost;
+    }
+
+    long getAcceptedConnections() {
+        return metrics.connections();
+    }
+
+    long getReusedRequests() {
+        return metrics.reusedRequests();
+    }
+
+    void connectionAccepted() {
+        metrics.connectionAccepted();
+    }
+
+    void requestReused() {
+        metrics.requestReused();
+    }
+
+    ShnetResponseCache responseCache() {
+        return responseCache;
+    }
+
+    ShnetMetrics metrics() {
+        return metrics;
+    }
+
+    Shnet.Config config() {
+        return config;
+    }
+
+    ShnetLoadShedder loadShedder() {
+        return loadShedder;
+    }
+
+    private ServerSocket bindSocket(String host, int port, ServerSocketFactory factory) throws IOException {
+        // Plain listeners go through a channel so accepted sockets can take FileChannel.transferTo.
+        ServerSocket socket = factory == null ? ServerSocketChannel.open().socket() : factory.createServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+        if (socket instanceof SSLServerSocket) {
+            configureTls((SSLServerSocket) socket, config.tlsConfig, config.http2);
+        }
+        return socket;
+    }
+
+    private static void configureTls(SSLServerSocket socket, Shnet.TlsConfig tlsConfig, boolean http2) {
+        socket.setUseClientMode(false);
+        if (tlsConfig == null) {
+            return;
+        }
+        String[] protocols = supported(tlsConfig.protocols, socket.getSupportedProtocols());
+        if (protocols.length > 0) {
+            socket.setEnabledProtocols(protocols);
+        }
+        String[] cipherSuites = supported(tlsConfig.cipherSuites, socket.getSupportedCipherSuites());
+        if (cipherSuites.length > 0) {
+            socket.setEnabledCipherSuites(cipherSuites);
+        }
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setUseCipherSuitesOrder(true);
+            if (http2) {
+                setApplicationProtocols(parameters);
+            }
+            socket.setSSLParameters(parameters);
+        } catch (NoSuchMethodError ignored) {
+            // Server cipher order needs API 24; older devices honour the client's order.
+        }
+    }
+
+    private static void setApplicationProtocols(SSLParameters parameters) {
+        try {
+            parameters.setApplicationProtocols(new String[] {ShnetHttp2.ALPN, "http/1.1"});
+        } catch (NoSuchMethodError ignored) {
+            // ALPN needs API 29; older devices speak HTTP/1.1 only.
+        }
+    }
+
+    private static String[] supported(List<String> wanted, String[] available) {
+        List<String> availableList = Arrays.asList(available);
+        List<String> enabled = new ArrayList<>(wanted.size());
+        for (String name : wanted) {
+            if (availableList.contains(name)) {
+                enabled.add(name);
+            }
+        }
+        return enabled.toArray(new String[0]);
+    }
+
+    private static void setSessionTickets(SSLSocket socket, boolean enabled) {
+        // Conscrypt (Android) exposes this per socket; the JDK uses jdk.tls.server.enableSessionTicketExtension.
+        try {
+            socket.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(socket, enabled);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // Not a Conscrypt socket.
+        }
+    }
+
+    private boolean handshake(SSLSocket socket) {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        setSessionTickets(socket, config.tlsConfig == null || config.tlsConfig.sessionTickets);
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            metrics.tlsHandshakeFailed();
+            return false;
+        }
+        metrics.tlsHandshake(isResumed(socket.getSession(), startMillis), startNanos);
+        return true;
+    }
+
+    // Session-ID resumption hands back an ID an earlier handshake here produced. Stateless tickets
+    // mint a new ID (and session object) each time, but JSSE keeps the original creation time.
+    private boolean isResumed(SSLSession session, long startMillis) {
+        byte[] id = session.getId();
+        if (id != null && id.length > 0) {
+            synchronized (sessionIds) {
+                if (sessionIds.put(ByteBuffer.wrap(id), Boolean.TRUE) != null) {
+                    return true;
+                }
+            }
+        }
+        return session.getCreationTime() < startMillis;
+    }
+
+    private ServerSocketFactory buildTlsSocketFactory() throws IOException {
+        Shnet.TlsConfig tlsConfig = config.tlsConfig;
+        if (tlsConfig == null) {
+            return null;
+        }
+        try {
+            SSLContext sslContext = ShnetTlsContexts.context(tlsConfig, rawResources);
+            return sslContext.getServerSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS init failed", e);
+        }
+    }
+
+    private void runLoop(ServerSocket socket) {
+        while (running && socket != null) {
+            try {
+                Socket clientSocket = socket.accept();
+                if (workers == null) {
+                    handleClient(clientSocket);
+                } else if (!loadShedder.admit()) {
+                    shed(clientSocket, false);
+                } else {
+                    long queuedAt = System.nanoTime();
+                    try {
+                        workers.execute(() -> {
+                            if (loadShedder.start(queuedAt)) {
+                                handleClient(clientSocket);
+                            } else {
+                                shed(clientSocket, true);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        loadShedder.cancel();
+                        closeQuietly(clientSocket);
+                    }
+                }
+            } catch (IOException ignored) {
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // The accept thread never waits on a TLS handshake: TLS connections shed there go to a single
+    // shedding thread that completes the handshake before answering, and are closed without a
+    // response only when its small queue is full too.
+    private void shed(Socket socket, boolean offAcceptThread) {
+        if (socket instanceof SSLSocket && !offAcceptThread) {
+            ThreadPoolExecutor shedder = tlsShedder;
+            try {
+                if (shedder == null) {
+                    throw new RejectedExecutionException();
+                }
+                shedder.execute(new TlsShed(socket));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+            return;
+        }
+        try (Socket client = socket) {
+            if (client instanceof SSLSocket) {
+                SSLSocket tls = (SSLSocket) client;
+                client.setSoTimeout(config.readTimeoutMs);
+                if (!handshake(tls)) {
+                    return;
+                }
+                if (ShnetHttp2.ALPN.equals(applicationProtocol(tls))) {
+                    ShnetHttp2.refuse(client.getOutputStream());
+                } else {
+                    client.getOutputStream().write(loadShedder.response());
+                    client.getOutputStream().flush();
+                }
+            } else {
+                client.getOutputStream().write(loadShedder.response());
+                client.shutdownOutput();
+            }
+            InputStream input = client.getInputStream();
+            int pending = Math.min(input.available(), OUTPUT_BUFFER_BYTES);
+            if (pending > 0) {
+                input.skip(pending);
+            }
+        } catch (IOException ignored) {
+            // The client is gone; nothing to shed.
+        }
+    }
+
+    Shnet.Response overloadResponse() {
+        return overloadResponse(config);
+    }
+
+    static Shnet.Response overloadResponse(Shnet.Config config) {
+        return Shnet.Response.text(503, "text/plain; charset=utf-8", "Service Unavailable")
+                .withHeader("Retry-After", Integer.toString(config.retryAfterSeconds));
+    }
+
+    private byte[] encodeOverload() {
+        Shnet.Response response = overloadResponse();
+        return headWriter.encode(response, response.body.length, false, response.body);
+    }
+
+    private void handleClient(Socket socket) {
+        connectionAccepted();
+        clients.add(socket);
+        connectionWorkers.incrementAndGet();
+        Socket client = socket;
+        try {
+            client.setSoTimeout(config.readTimeoutMs);
+            client.setTcpNoDelay(true);
+            if (client instanceof SSLSocket && !handshake((SSLSocket) client)) {
+                return;
+            }
+            InputStream input = metrics.countIn(client.getInputStream());
+            OutputStream output = new BufferedOutputStream(metrics.countOut(client.getOutputStream()),
+                    OUTPUT_BUFFER_BYTES);
+            if (client instanceof SSLSocket && ShnetHttp2.ALPN.equals(applicationProtocol((SSLSocket) client))) {
+                serveHttp2(client, input, output, ShnetHttp2.PREFACE);
+                client = null;
+                return;
+            }
+            ShnetRequestParser parser = new ShnetRequestParser();
+            int timeout = config.readTimeoutMs;
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive && running) {
+                RequestHead head;
+                int idleMs = 0;
+                try {
+                    while ((head = parser.parseHead()) == null) {
+                        boolean idle = served > 0 && parser.isEmpty();
+                        int wanted = idle ? Math.min(config.keepAliveTimeoutMs, KEEP_ALIVE_POLL_MS)
+                                : config.readTimeoutMs;
+                        if (wanted != timeout) {
+                            client.setSoTimeout(wanted);
+                            timeout = wanted;
+                        }
+                        try {
+                            if (!parser.fill(input)) {
+                                return;
+                            }
+                        } catch (SocketTimeoutException e) {
+                            // An idle connection gives its worker back as soon as another connection needs one.
+                            idleMs += wanted;
+                            if (!idle || idleMs >= config.keepAliveTimeoutMs || workersContended()) {
+                                return;
+                            }
+                        }
+                    }
+                } catch (ProtocolException e) {
+                    sendError(output, 400, "Bad Request");
+                    output.flush();
+                    return;
+                }
+                if (served == 0 && config.http2 && head.isHttp2Preface()) {
+                    byte[] buffered = new byte[parser.buffered()];
+                    parser.take(buffered, 0, buffered.length);
+                    serveHttp2(client, new SequenceInputStream(new ByteArrayInputStream(buffered), input), output,
+                            ShnetHttp2.PREFACE_TAIL);
+                    client = null;
+                    return;
+                }
+                if (timeout != config.readTimeoutMs) {
+                    client.setSoTimeout(config.readTimeoutMs);
+                    timeout = config.readTimeoutMs;
+                }
+                if (served > 0) {
+                    requestReused();
+                }
+                served++;
+                Outcome outcome = handleRequest(head, parser, input, output, client,
+                        served < config.maxRequestsPerConnection && !workersContended());
+                if (outcome == Outcome.DETACHED) {
+                    client = null;
+                    return;
+                }
+                keepAlive = outcome == Outcome.KEEP_ALIVE;
+                output.flush();
+            }
+        } catch (IOException ignored) {
+            // Ignore socket errors.
+        } finally {
+            connectionWorkers.decrementAndGet();
+            if (client != null) {
+                closeQuietly(client);
+                clients.remove(socket);
+            }
+        }
+    }
+
+    // Each blocking connection holds a worker, so keep-alive stops while connections wait for one.
+    private boolean workersContended() {
+        return loadShedder.queued() > 0 || connectionWorkers.get() >= workerLimit;
+    }
+
+    private static int workerLimit(ExecutorService workers) {
+        if (workers instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) workers).getMaximumPoolSize();
+        }
+        if (workers instanceof ForkJoinPool) {
+            return ((ForkJoinPool) workers).getParallelism();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    void serveHttp2(Socket socket, InputStream input, OutputStream output, byte[] preface) {
+        clients.add(socket);
+        if (!loadShedder.startThread()) {
+            refuseHttp2(socket, output);
+            return;
+        }
+        ShnetHttp2 connection = new ShnetHttp2(this, config, workers, socket, input, output, preface);
+        Thread thread = new Thread(() -> {
+            try {
+                connection.run();
+            } finally {
+                loadShedder.endThread();
+            }
+        }, "ShnetHttp2");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void serveWebSocket(Socket socket, InputStream input, OutputStream output, byte[] buffered,
+                        Shnet.Request request, Shnet.Response response) {
+        clients.add(socket);
+        ShnetWebSocket webSocket = new ShnetWebSocket(config, workers, request, response);
+        ShnetWebSocket.StreamTransport transport = new ShnetWebSocket.StreamTransport(this, webSocket, socket, input,
+                output, buffered);
+        // The thread was reserved when the upgrade was accepted.
+        Thread thread = new Thread(() -> {
+            try {
+                transport.run();
+            } finally {
+                loadShedder.endThread();
+            }
+        }, "ShnetWebSocket");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void refuseHttp2(Socket socket, OutputStream output) {
+        try {
+            ShnetHttp2.refuse(output);
+            if (!(socket instanceof SSLSocket)) {
+                socket.shutdownOutput();
+            }
+        } catch (IOException ignored) {
+            // The client is gone; nothing to refuse.
+        } finally {
+            closeQuietly(socket);
+            clients.remove(socket);
+        }
+    }
+
+    private boolean serveEvents(Socket socket, OutputStream output, Shnet.Request request, Shnet.Response response) {
+        ShnetBroadcaster.StreamSink sink = new ShnetBroadcaster.StreamSink(this, workers, socket, output);
+        return response.events.core.subscribe(request.headers.get("last-event-id"), sink) != null;
+    }
+
+    void connectionClosed(Socket socket) {
+        clients.remove(socket);
+    }
+
+    private static String applicationProtocol(SSLSocket socket) {
+        try {
+            return socket.getApplicationProtocol();
+        } catch (NoSuchMethodError | UnsupportedOperationException ignored) {
+            // ALPN needs API 29; older devices speak HTTP/1.1 only.
+            return null;
+        }
+    }
+
+    private Outcome handleRequest(RequestHead head, ShnetRequestParser parser, InputStream input,
+                                  OutputStream output, Socket client, boolean allowKeepAlive)
+            throws IOException {
+        boolean keepAlive = allowKeepAlive && head.keepAlive();
+        long contentLength = head.contentLength();
+        if (contentLength < 0) {
+            sendError(output, 400, "Bad Request");
+            return Outcome.CLOSE;
+        }
+        boolean streamBody = config.streamRequestBodies && contentLength > 0;
+        if (contentLength > (streamBody ? config.maxStreamedBodyBytes : config.maxBodyBytes)) {
+            sendError(output, 413, "Payload Too Large");
+            return Outcome.CLOSE;
+        }
+        Shnet.Request request;
+        ShnetBodyStream bodyStream = null;
+        if (streamBody) {
+            bodyStream = new ShnetBodyStream(parser, input, contentLength);
+            request = head.toRequest(bodyStream, contentLength);
+        } else {
+            byte[] body = contentLength > 0 ? readBody(parser, input, (int) contentLength) : EMPTY_BODY;
+            if (body.length < contentLength) {
+                return Outcome.CLOSE;
+            }
+            request = head.toRequest(body);
+        }
+
+        Shnet.Response response = respond(request);
+        if (bodyStream != null && !bodyStream.drain(MAX_DRAIN_BYTES)) {
+            keepAlive = false;
+        }
+        if (response.webSocket != null) {
+            // The socket moves to a WebSocket reader thread, which frees this worker.
+            try {
+                output.write(encodeHead(response, 0, false));
+                output.flush();
+            } catch (IOException e) {
+                loadShedder.endThread();
+                throw e;
+            }
+            byte[] buffered = new byte[parser.buffered()];
+            parser.take(buffered, 0, buffered.length);
+            serveWebSocket(client, input, output, buffered, request, response);
+            return Outcome.DETACHED;
+        }
+        if (response.events != null) {
+            // Close-delimited, so every subscriber writes the broadcaster's encoded events unchanged.
+            output.write(encodeHead(response, UNKNOWN_LENGTH, false));
+            output.flush();
+            if (head.isHead() || !serveEvents(client, output, request, response)) {
+                return Outcome.CLOSE;
+            }
+            return Outcome.DETACHED;
+        }
+        if (response.file != null) {
+            sendFileResponse(output, client.getChannel(), head.headers, response, keepAlive, head.isHead());
+        } else if (response.writer != null) {
+            return sendStreamResponse(output, head, response, keepAlive) ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+        } else {
+            sendResponse(output, response, keepAlive, head.isHead());
+        }
+        return keepAlive ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+    }
+
+    Shnet.Response respond(Shnet.Request request) {
+        if (isMetricsRequest(request)) {
+            return metricsResponse();
+        }
+        long start = System.nanoTime();
+        String cacheKey = cacheKey(request);
+        Shnet.Response response = cached(request, cacheKey);
+        if (response == null) {
+            if (isAsync()) {
+                response = await((Shnet.AsyncHandler) handler, request, config.asyncTimeoutMs);
+            } else {
+                try {
+                    response = handler != null ? handler.handle(request) : null;
+                } catch (Exception ex) {
+                    response = Shnet.Response.text(500, "text/plain; charset=utf-8", "Internal Server Error");
+                }
+            }
+            response = finish(request, cacheKey, response);
+        }
+        metrics.record(request, response, start);
+        return response;
+    }
+
+    boolean isAsync() {
+        return handler instanceof Shnet.AsyncHandler;
+    }
+
+    // Returns the responder before the handler runs, so the caller can record it before the handler
+    // completes it from another thread; startAsync then invokes the handler. Null means already answered.
+    ShnetResponder respondAsync(Shnet.Request request, ShnetResponder.Listener listener) {
+        if (isMetricsRequest(request)) {
+            listener.onResponse(metricsResponse());
+            return null;
+        }
+        long start = System.nanoTime();
+        String cacheKey = cacheKey(request);
+        Shnet.Response cached = cached(request, cacheKey);
+        if (cached != null) {
+            metrics.record(request, cached, start);
+            listener.onResponse(cached);
+            return null;
+        }
+        Thread caller = Thread.currentThread();
+        ShnetResponder.Listener finisher = response -> {
+            Shnet.Response finished = finish(request, cacheKey, response);
+            metrics.record(request, finished, start);
+            listener.onResponse(finished);
+        };
+        ShnetResponder responder = new ShnetResponder(response -> {
+            if (Thread.currentThread() == caller) {
+                finisher.onResponse(response);
+                return;
+            }
+            try {
+                workers.execute(() -> finisher.onResponse(response));
+            } catch (RejectedExecutionException ignored) {
+                finisher.onResponse(response);
+            }
+        });
+        return responder;
+    }
+
+    void startAsync(Shnet.Request request, ShnetResponder responder) {
+        invoke((Shnet.AsyncHandler) handler, request, responder);
+        responder.schedule(timer, config.asyncTimeoutMs);
+    }
+
+    static Shnet.Response await(Shnet.AsyncHandler handler, Shnet.Request request, long timeoutMs) {
+        Shnet.Response[] result = new Shnet.Response[1];
+        CountDownLatch latch = new CountDownLatch(1);
+        ShnetResponder responder = new ShnetResponder(response -> {
+            result[0] = response;
+            latch.countDown();
+        });
+        invoke(handler, request, responder);
+        try {
+            if (!latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                responder.expire();
+                latch.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responder.cancel();
+            return Shnet.Response.text(503, "text/plain; charset=utf-8", "Service Unavailable");
+        }
+        return result[0];
+    }
+
+    private static void invoke(Shnet.AsyncHandler handler, Shnet.Request request, ShnetResponder responder) {
+        try {
+            handler.handle(request, responder);
+        } catch (Exception ex) {
+            responder.fail(ex);
+        }
+    }
+
+    private boolean isMetricsRequest(Shnet.Request request) {
+        return config.metricsPath != null && config.metricsPath.equals(request.path)
+                && ("GET".equals(request.method) || "HEAD".equals(request.method));
+    }
+
+    private Shnet.Response metricsResponse() {
+        String text = metrics.prometheus(loadShedder.stats(),
+                responseCache != null ? responseCache.stats() : new Shnet.CacheStats(0, 0, 0, 0, 0));
+        return Shnet.Response.text(200, "text/plain; version=0.0.4; charset=utf-8", text);
+    }
+
+    private String cacheKey(Shnet.Request request) {
+        if (responseCache == null) {
+            return null;
+        }
+        return responseCache.key(request,
+                config.compressResponses ? ShnetCompression.negotiate(request.headers.get("accept-encoding")) : null);
+    }
+
+    private Shnet.Response cached(Shnet.Request request, String cacheKey) {
+        Shnet.Response cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+        if (cached == null) {
+            return null;
+        }
+        return ShnetCachePolicy.isNotModified(request, cached) ? ShnetCachePolicy.notModified(cached) : cached;
+    }
+
+    private Shnet.Response finish(Shnet.Request request, String cacheKey, Shnet.Response response) {
+        if (response == null || (response.file != null && !response.file.isFile())) {
+            response = Shnet.Response.text(404, "text/plain; charset=utf-8", "Not Found");
+        }
+        if (response.webSocket != null) {
+            // The NIO engine serves WebSockets from the selector; stream sockets need a reader thread.
+            return ShnetWebSocket.accept(config, request, response, nioEngine == null ? loadShedder : null);
+        }
+        if (response.events != null) {
+            return response;
+        }
+        // Judged on the handler's own headers, before the configured default Cache-Control is added.
+        boolean storable = cacheKey != null && ShnetResponseCache.isStorable(response);
+        response = ShnetCachePolicy.apply(config, request, response);
+        response = ShnetCompression.apply(config, request.headers, response);
+        // HEAD may be answered from a GET entry but never fills one: its body need not match.
+        if (storable && !"HEAD".equals(request.method)) {
+            responseCache.put(cacheKey, request.path, response);
+        }
+        return response;
+    }
+
+    private byte[] readBody(ShnetRequestParser parser, InputStream input, int length) throws IOException {
+        byte[] data = new byte[length];
+        int total = parser.take(data, 0, length);
+        while (total < length) {
+            int read = input.read(data, total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        if (total == length) {
+            return data;
+        }
+        return Arrays.copyOf(data, total);
+    }
+
+    private void sendError(OutputStream output, int statusCode, String message) throws IOException {
+        sendResponse(output, Shnet.Response.text(statusCode, "text/plain; charset=utf-8", message), false, false);
+    }
+
+    private void sendResponse(OutputStream output, Shnet.Response response, boolean keepAlive, boolean headOnly)
+            throws IOException {
+        byte[] body = response.body == null ? EMPTY_BODY : response.body;
+        if (headOnly || body.length > MAX_COALESCED_BODY_BYTES) {
+            output.write(encodeHead(response, body.length, keepAlive));
+            if (!headOnly) {
+                output.write(body);
+            }
+            return;
+        }
+        // Head and body leave in one write: one TCP segment and, over TLS, one record.
+        output.write(headWriter.encode(response, body.length, keepAlive, body));
+    }
+
+    private void sendFileResponse(OutputStream output, SocketChannel channel, Map<String, String> requestHeaders,
+                                  Shnet.Response response, boolean keepAlive, boolean headOnly) throws IOException {
+        try (FileInputStream input = new FileInputStream(response.file)) {
+            FileChannel file = input.getChannel();
+            ShnetFileResponse plan = ShnetFileResponse.plan(requestHeaders, response,
+                    file.size(), response.file.lastModified());
+            output.write(encodeHead(plan.response, plan.contentLength, keepAlive));
+            if (headOnly) {
+                return;
+            }
+            for (ShnetFileResponse.Part part : plan.parts) {
+                if (part.bytes != null) {
+                    output.write(part.bytes);
+                } else if (channel != null) {
+                    output.flush();
+                    transferFile(file, part.position, part.count, channel);
+                } else {
+                    copyFile(file, part.position, part.count, output);
+                }
+            }
+        }
+    }
+
+    private void transferFile(FileChannel file, long position, long count, WritableByteChannel target)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                throw new EOFException("File truncated");
+            }
+            metrics.bytesOut(sent);
+            position += sent;
+        }
+    }
+
+    private static void copyFile(FileChannel file, long position, long count, OutputStream output)
+            throws IOException {
+        byte[] buffer = COPY_BUFFERS.acquire();
+        try {
+            ByteBuffer view = ByteBuffer.wrap(buffer);
+            long end = position + count;
+            while (position < end) {
+                view.clear();
+                view.limit((int) Math.min(buffer.length, end - position));
+                int read = file.read(view, position);
+                if (read < 0) {
+                    throw new EOFException("File truncated");
+                }
+                output.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            COPY_BUFFERS.release(buffer);
+        }
+    }
+
+    private boolean sendStreamResponse(OutputStream output, RequestHead head, Shnet.Response response,
+                                       boolean keepAlive) throws IOException {
+        boolean chunked = head.acceptsChunked();
+        keepAlive = keepAlive && chunked;
+        output.write(encodeHead(response, chunked ? CHUNKED_LENGTH : UNKNOWN_LENGTH, keepAlive));
+        if (head.isHead()) {
+            return keepAlive;
+        }
+        ShnetBodyOutputStream body = new ShnetBodyOutputStream(output, chunked);
+        try {
+            response.writer.writeTo(body);
+            body.finish();
+        } catch (RuntimeException ignored) {
+            // The status line is already sent; dropping the connection marks the body as incomplete.
+            return false;
+        }
+        return keepAlive;
+    }
+
+    byte[] encodeHead(Shnet.Response response, long contentLength, boolean keepAlive) {
+        return headWriter.encode(response, contentLength, keepAlive, null);
+    }
+
+    List<String> http2Head(Shnet.Response response, long contentLength) {
+        String contentType = response.contentType;
+        if (contentType == null) {
+            contentType = response.file != null ? "application/octet-stream" : "text/plain; charset=utf-8";
+        }
+        boolean bodiless = response.statusCode == 204 || response.statusCode == 304;
+        List<String> fields = new ArrayList<>(16);
+        fields.add(":status");
+        fields.add(Integer.toString(response.statusCode));
+        if (!bodiless) {
+            fields.add("content-type");
+            fields.add(contentType);
+            if (contentLength >= 0) {
+                fields.add("content-length");
+                fields.add(Long.toString(contentLength));
+            }
+        }
+        if (response.file != null && response.downloadName != null && !response.downloadName.isEmpty()) {
+            fields.add("content-disposition");
+            fields.add("attachment; filename=\"" + response.downloadName + "\"");
+        }
+        if (response.header("Cache-Control") == null) {
+            fields.add("cache-control");
+            fields.add(config.cacheControl);
+        }
+        for (Map.Entry<String, String> entry : response.headers.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.US);
+            // Connection-specific headers are not allowed in HTTP/2.
+            if (!"connection".equals(name) && !"keep-alive".equals(name) && !"transfer-encoding".equals(name)
+                    && !"upgrade".equals(name) && !"proxy-connection".equals(name)) {
+                fields.add(name);
+                fields.add(entry.getValue());
+            }
+        }
+        return fields;
+    }
+
+    int keepAliveTimeoutSeconds() {
+        return Math.max(1, config.keepAliveTimeoutMs / 1000);
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore close errors.
+        }
+    }
+
+    private void closeQuietly(ServerSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Ignore close errors.
+        }
+    }
+
+    private void shutdownWorkers() {
+        if (workers != null) {
+            config.executorFactory.release(workers);
+            workers = null;
+        }
+    }
+
+    private enum Outcome {
+        CLOSE,
+        KEEP_ALIVE,
+        DETACHED
+    }
+
+    static final class RequestHead {
+        final String method;
+        final String path;
+        final String query;
+        final String version;
+        final ShnetHeaders headers;
+
+        RequestHead(String method, String path, String query, String version) {
+            this(method, path, query, version, new ShnetHeaders());
+        }
+
+        RequestHead(String method, String path, String query, String version, ShnetHeaders headers) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        long contentLength() {
+            String lengthHeader = headers.get("content-length");
+            if (lengthHeader == null) {
+                return 0;
+            }
+            try {
+                return Math.max(-1, Long.parseLong(lengthHeader));
+            } catch (NumberFormatException ignored) {
+                return -1;
+            }
+        }
+
+        boolean keepAlive() {
+            if (headers.containsKey("transfer-encoding")) {
+                // Chunked request bodies are not supported; the framing is lost after this request.
+                return false;
+            }
+            String connection = headers.get("connection");
+            if ("HTTP/1.1".equals(version)) {
+                return connection == null || !hasToken(connection, "close");
+            }
+            return connection != null && hasToken(connection, "keep-alive");
+        }
+
+        boolean isHttp2Preface() {
+            return "PRI".equals(method) && "*".equals(path) && "HTTP/2.0".equals(version) && headers.isEmpty();
+        }
+
+        boolean acceptsChunked() {
+            return !"HTTP/1.0".equals(version);
+        }
+
+        boolean isHead() {
+            return "HEAD".equals(method);
+        }
+
+        Shnet.Request toRequest(byte[] body) {
+            return new Shnet.Request(method, path, query, headers, body);
+        }
+
+        Shnet.Request toRequest(InputStream bodyStream, long contentLength) {
+            return new Shnet.Request(method, path, query, headers, bodyStream, contentLength);
+        }
+
+        static boolean hasToken(String headerValue, String token) {
+            int length = headerValue.length();
+            int from = 0;
+            while (from < length) {
+                int comma = headerValue.indexOf(',', from);
+                int to = comma < 0 ? length : comma;
+                while (from < to && headerValue.charAt(from) <= ' ') {
+                    from++;
+                }
+                int stop = to;
+                while (stop > from && headerValue.charAt(stop - 1) <= ' ') {
+                    stop--;
+                }
+                if (stop - from == token.length() && headerValue.regionMatches(true, from, token, 0, token.length())) {
+                    return true;
+                }
+                from = to + 1;
+            }
+            return false;
+        }
+    }
+
+    static String formatHttpDate(long millis) {
+        return HTTP_DATE.get().format(new Date(millis));
+    }
+
+    static long parseHttpDate(String value) {
+        try {
+            return HTTP_DATE.get().parse(value.trim()).getTime();
+        } catch (ParseException ignored) {
+            return -1;
+        }
+    }
+
+    private final class TlsShed implements Runnable {
+        final Socket socket;
+
+        TlsShed(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            shed(socket, true);
+        }
+    }
+
+    private static final class ShnetThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "ShnetWorker-" + counter.getAndIncrement());
+        }
+    }
+}
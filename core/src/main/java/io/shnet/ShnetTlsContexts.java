@@ -0,0 +1,279 @@
+package io.shnet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+
+final class ShnetTlsContexts {
+    private static final int MAX_CONTEXTS = 4;
+    static final long RELOAD_CHECK_MS = 2000;
+
+    private static final Map<Shnet.TlsConfig, Entry> contexts =
+            new LinkedHashMap<Shnet.TlsConfig, Entry>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Shnet.TlsConfig, Entry> eldest) {
+                    return size() > MAX_CONTEXTS;
+                }
+            };
+
+    private ShnetTlsContexts() {
+    }
+
+    static SSLContext context(Shnet.TlsConfig tlsConfig, ShnetServer.RawResources rawResources)
+            throws IOException, GeneralSecurityException {
+        synchronized (contexts) {
+            Entry entry = contexts.get(tlsConfig);
+            if (entry == null) {
+                entry = build(tlsConfig, rawResources);
+                contexts.put(tlsConfig, entry);
+            }
+            return entry.sslContext;
+        }
+    }
+
+    static boolean reload(Shnet.TlsConfig tlsConfig) {
+        Entry entry;
+        synchronized (contexts) {
+            entry = contexts.get(tlsConfig);
+        }
+        return entry != null && entry.keyManager.reload(true);
+    }
+
+    private static Entry build(Shnet.TlsConfig tlsConfig, ShnetServer.RawResources rawResources)
+            throws IOException, GeneralSecurityException {
+        ReloadingKeyManager keyManager = new ReloadingKeyManager(tlsConfig, rawResources);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[] {keyManager}, null, null);
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(tlsConfig.sessionCacheSize);
+            sessions.setSessionTimeout(tlsConfig.sessionTimeoutSeconds);
+        }
+        return new Entry(sslContext, keyManager);
+    }
+
+    private static X509KeyManager loadKeyManager(Shnet.TlsConfig tlsConfig, ShnetServer.RawResources rawResources)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(tlsConfig.keyStoreType);
+        char[] storePassword = passwordChars(tlsConfig.keyStorePassword);
+        try (InputStream input = openKeyStoreInputStream(tlsConfig, rawResources)) {
+            keyStore.load(input, storePassword);
+        }
+        KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        char[] keyPassword = passwordChars(selectKeyPassword(tlsConfig));
+        keyManagerFactory.init(keyStore, keyPassword);
+        for (KeyManager keyManager : keyManagerFactory.getKeyManagers()) {
+            if (keyManager instanceof X509KeyManager) {
+                return (X509KeyManager) keyManager;
+            }
+        }
+        throw new GeneralSecurityException("Keystore has no X.509 key manager");
+    }
+
+    private static InputStream openKeyStoreInputStream(Shnet.TlsConfig tlsConfig,
+                                                       ShnetServer.RawResources rawResources) throws IOException {
+        if (tlsConfig.source == Shnet.TlsConfig.Source.RAW_RESOURCE) {
+            if (rawResources == null) {
+                throw new IOException("Raw resource keystores need the Android service");
+            }
+            return rawResources.open(tlsConfig.keyStoreResourceId);
+        }
+        if (tlsConfig.source == Shnet.TlsConfig.Source.FILE) {
+            return new FileInputStream(tlsConfig.keyStorePath);
+        }
+        throw new IOException("Unknown TLS keystore source");
+    }
+
+    private static String selectKeyPassword(Shnet.TlsConfig tlsConfig) {
+        if (tlsConfig.keyPassword != null) {
+            return tlsConfig.keyPassword;
+        }
+        return tlsConfig.keyStorePassword;
+    }
+
+    private static char[] passwordChars(String password) {
+        if (password == null) {
+            return null;
+        }
+        return password.toCharArray();
+    }
+
+    private static final class Entry {
+        final SSLContext sslContext;
+        final ReloadingKeyManager keyManager;
+
+        Entry(SSLContext sslContext, ReloadingKeyManager keyManager) {
+            this.sslContext = sslContext;
+            this.keyManager = keyManager;
+        }
+    }
+
+    private static final class Keys {
+        final int generation;
+        final X509KeyManager keyManager;
+        final long lastModified;
+        final long length;
+
+        Keys(int generation, X509KeyManager keyManager, long lastModified, long length) {
+            this.generation = generation;
+            this.keyManager = keyManager;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    // Aliases carry the keystore generation, so a handshake that picked a key before a swap still finds it.
+    static final class ReloadingKeyManager extends X509ExtendedKeyManager {
+        private final Shnet.TlsConfig tlsConfig;
+        private final ShnetServer.RawResources rawResources;
+        private volatile Keys current;
+        private volatile Keys previous;
+        private volatile long nextCheck;
+
+        ReloadingKeyManager(Shnet.TlsConfig tlsConfig, ShnetServer.RawResources rawResources)
+                throws IOException, GeneralSecurityException {
+            this.tlsConfig = tlsConfig;
+            this.rawResources = rawResources;
+            this.current = load(0);
+            this.nextCheck = System.currentTimeMillis() + RELOAD_CHECK_MS;
+        }
+
+        boolean reload(boolean force) {
+            if (tlsConfig.source != Shnet.TlsConfig.Source.FILE) {
+                return false;
+            }
+            synchronized (this) {
+                nextCheck = System.currentTimeMillis() + RELOAD_CHECK_MS;
+                Keys keys = current;
+                File file = new File(tlsConfig.keyStorePath);
+                if (!force && file.lastModified() == keys.lastModified && file.length() == keys.length) {
+                    return false;
+                }
+                try {
+                    Keys loaded = load(keys.generation + 1);
+                    previous = keys;
+                    current = loaded;
+                    return true;
+                } catch (IOException | GeneralSecurityException e) {
+                    // Keep serving the old certificate; a half-written keystore is retried on the next check.
+                    return false;
+                }
+            }
+        }
+
+        private Keys load(int generation) throws IOException, GeneralSecurityException {
+            long lastModified = 0;
+            long length = 0;
+            if (tlsConfig.source == Shnet.TlsConfig.Source.FILE) {
+                File file = new File(tlsConfig.keyStorePath);
+                lastModified = file.lastModified();
+                length = file.length();
+            }
+            return new Keys(generation, loadKeyManager(tlsConfig, rawResources), lastModified, length);
+        }
+
+        private Keys checked() {
+            if (System.currentTimeMillis() >= nextCheck) {
+                reload(false);
+            }
+            return current;
+        }
+
+        private Keys keys(String alias) {
+            if (alias == null) {
+                return null;
+            }
+            int separator = alias.indexOf(':');
+            if (separator <= 0) {
+                return null;
+            }
+            String generation = alias.substring(0, separator);
+            Keys keys = current;
+            if (generation.equals(Integer.toString(keys.generation))) {
+                return keys;
+            }
+            keys = previous;
+            return keys != null && generation.equals(Integer.toString(keys.generation)) ? keys : null;
+        }
+
+        private static String tag(Keys keys, String alias) {
+            return alias == null ? null : keys.generation + ":" + alias;
+        }
+
+        private static String[] tag(Keys keys, String[] aliases) {
+            if (aliases == null) {
+                return null;
+            }
+            String[] tagged = new String[aliases.length];
+            for (int i = 0; i < aliases.length; i++) {
+                tagged[i] = tag(keys, aliases[i]);
+            }
+            return tagged;
+        }
+
+        private static String untag(String alias) {
+            return alias.substring(alias.indexOf(':') + 1);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            Keys keys = checked();
+            return tag(keys, keys.keyManager.getServerAliases(keyType, issuers));
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            Keys keys = checked();
+            return tag(keys, keys.keyManager.chooseServerAlias(keyType, issuers, socket));
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            Keys keys = checked();
+            if (keys.keyManager instanceof X509ExtendedKeyManager) {
+                return tag(keys, ((X509ExtendedKeyManager) keys.keyManager)
+                        .chooseEngineServerAlias(keyType, issuers, engine));
+            }
+            return tag(keys, keys.keyManager.chooseServerAlias(keyType, issuers, null));
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return null;
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return null;
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            Keys keys = keys(alias);
+            return keys != null ? keys.keyManager.getCertificateChain(untag(alias)) : null;
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            Keys keys = keys(alias);
+            return keys != null ? keys.keyManager.getPrivateKey(untag(alias)) : null;
+        }
+    }
+}
@@ -0,0 +1,866 @@
+package io.shnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class ShnetWebSocket implements Shnet.WebSocket {
+    static final long TICK_MS = 1000;
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String DEFLATE = "permessage-deflate";
+    private static final String NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MIN_DEFLATE_BYTES = 128;
+    private static final int MAX_REASON_BYTES = 123;
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final int KEPT_BUFFER_BYTES = 64 * 1024;
+    private static final int DISPATCH_BATCH = 16;
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int NORMAL_CLOSURE = 1000;
+    private static final int PROTOCOL_ERROR = 1002;
+    private static final int NO_STATUS = 1005;
+    private static final int ABNORMAL_CLOSURE = 1006;
+    private static final int INVALID_DATA = 1007;
+    private static final int MESSAGE_TOO_BIG = 1009;
+
+    interface Transport {
+        void flush();
+
+        void resume();
+
+        void close();
+    }
+
+    private final Shnet.Config config;
+    private final ExecutorService workers;
+    private final Shnet.Request request;
+    private final Shnet.WebSocketHandler handler;
+    private final boolean deflate;
+    private final boolean deflateReset;
+    private volatile Transport transport;
+    private volatile boolean open = true;
+    private volatile long lastReceived = System.currentTimeMillis();
+    private volatile long pingSentAt;
+    private volatile long closeSentAt;
+    private final AtomicBoolean closeDelivered = new AtomicBoolean();
+
+    // Read side; only the transport's reader touches these.
+    private byte[] input = new byte[1024];
+    private int inputCount;
+    private boolean inputClosed;
+    private ByteArrayOutputStream message;
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+    private final Object inflaterLock = new Object();
+    private Inflater inflater;
+
+    // Write side, guarded by frames.
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private long queued;
+    private boolean writing;
+    private boolean closeSent;
+    private boolean closeReceived;
+    private boolean failed;
+    private Deflater deflater;
+
+    // Handler callbacks, guarded by events; one connection's callbacks never overlap.
+    private final ArrayDeque<Event> events = new ArrayDeque<>();
+    private long pendingInput;
+    private boolean dispatching;
+    private boolean inputPaused;
+
+    ShnetWebSocket(Shnet.Config config, ExecutorService workers, Shnet.Request request, Shnet.Response response) {
+        this.config = config;
+        this.workers = workers;
+        this.request = request;
+        this.handler = response.webSocket;
+        String extension = response.header("Sec-WebSocket-Extensions");
+        this.deflate = extension != null;
+        this.deflateReset = extension != null && extension.contains(NO_CONTEXT_TAKEOVER);
+    }
+
+    static boolean isUpgrade(Shnet.Request request) {
+        String upgrade = request.headers.get("upgrade");
+        String connection = request.headers.get("connection");
+        String key = request.headers.get("sec-websocket-key");
+        String version = request.headers.get("sec-websocket-version");
+        return "GET".equals(request.method)
+                && upgrade != null && ShnetServer.RequestHead.hasToken(upgrade, "websocket")
+                && connection != null && ShnetServer.RequestHead.hasToken(connection, "upgrade")
+                && key != null && key.trim().length() == 24
+                && version != null && "13".equals(version.trim());
+    }
+
+    // With threads, an accepted upgrade holds one reader thread until the transport ends.
+    static Shnet.Response accept(Shnet.Config config, Shnet.Request request, Shnet.Response response,
+                                 ShnetLoadShedder threads) {
+        if (!isUpgrade(request)) {
+            return Shnet.Response.text(426, "text/plain; charset=utf-8", "Upgrade Required")
+                    .withHeader("Upgrade", "websocket")
+                    .withHeader("Sec-WebSocket-Version", "13");
+        }
+        if (threads != null && !threads.startThread()) {
+            return ShnetServer.overloadResponse(config);
+        }
+        Shnet.Response accepted = response
+                .withHeader("Upgrade", "websocket")
+                .withHeader("Connection", "Upgrade")
+                .withHeader("Sec-WebSocket-Accept", acceptKey(request.headers.get("sec-websocket-key").trim()));
+        String extension = config.webSocketCompression
+                ? negotiateDeflate(request.headers.get("sec-websocket-extensions"))
+                : null;
+        return extension != null ? accepted.withHeader("Sec-WebSocket-Extensions", extension) : accepted;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String negotiateDeflate(String offers) {
+        if (offers == null) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            String[] parts = offer.split(";");
+            if (!DEFLATE.equalsIgnoreCase(parts[0].trim())) {
+                continue;
+            }
+            StringBuilder accepted = new StringBuilder(DEFLATE);
+            boolean usable = true;
+            for (int i = 1; i < parts.length && usable; i++) {
+                String parameter = parts[i].trim();
+                int equals = parameter.indexOf('=');
+                String name = (equals < 0 ? parameter : parameter.substring(0, equals)).trim().toLowerCase(Locale.US);
+                String value = equals < 0 ? null : unquote(parameter.substring(equals + 1).trim());
+                if (NO_CONTEXT_TAKEOVER.equals(name)) {
+                    accepted.append("; ").append(NO_CONTEXT_TAKEOVER);
+                } else if ("server_max_window_bits".equals(name)) {
+                    // Deflater always uses a 32 KB window, so only the default size can be honoured.
+                    usable = "15".equals(value);
+                    accepted.append("; server_max_window_bits=15");
+                } else if (!"client_no_context_takeover".equals(name) && !"client_max_window_bits".equals(name)) {
+                    usable = false;
+                }
+            }
+            if (usable) {
+                return accepted.toString();
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int remaining = data.length - i;
+            int bits = (data[i] & 0xff) << 16
+                    | (remaining > 1 ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? data[i + 2] & 0xff : 0);
+            encoded.append(BASE64[bits >>> 18 & 0x3f]).append(BASE64[bits >>> 12 & 0x3f]);
+            encoded.append(remaining > 1 ? BASE64[bits >>> 6 & 0x3f] : '=');
+            encoded.append(remaining > 2 ? BASE64[bits & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+
+    void start(Transport transport, byte[] buffered) {
+        this.transport = transport;
+        deliver(() -> handler.onOpen(this), 0);
+        if (buffered.length > 0) {
+            receive(buffered, 0, buffered.length);
+        }
+    }
+
+    @Override
+    public Shnet.Request request() {
+        return request;
+    }
+
+    @Override
+    public boolean sendText(String text) {
+        return text != null && send(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean sendBinary(byte[] data) {
+        return data != null && send(OP_BINARY, data);
+    }
+
+    @Override
+    public void close(int code, String reason) {
+        boolean valid = code == NORMAL_CLOSURE || (code >= 1001 && code <= 1003)
+                || (code >= INVALID_DATA && code <= 1011) || (code >= 3000 && code <= 4999);
+        sendClose(valid ? code : NORMAL_CLOSURE, reason);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public long queuedBytes() {
+        synchronized (frames) {
+            return queued;
+        }
+    }
+
+    private boolean send(int opcode, byte[] payload) {
+        boolean wake;
+        synchronized (frames) {
+            // An empty queue always takes one message; after that the queue is bounded. The check comes
+            // first because a refused message must not reach the deflater, whose context the client shares.
+            if (closeSent || (queued > 0 && queued + payload.length > config.webSocketMaxQueuedBytes)) {
+                return false;
+            }
+            boolean compressed = deflate && payload.length >= MIN_DEFLATE_BYTES;
+            wake = enqueue(frame(opcode, compressed, compressed ? deflate(payload) : payload));
+        }
+        if (wake) {
+            transport.flush();
+        }
+        return true;
+    }
+
+    private void sendControl(int opcode, byte[] payload) {
+        boolean wake;
+        synchronized (frames) {
+            if (closeSent) {
+                return;
+            }
+            wake = enqueue(frame(opcode, false, payload));
+        }
+        if (wake) {
+            transport.flush();
+        }
+    }
+
+    private void sendClose(int code, String reason) {
+        boolean wake;
+        synchronized (frames) {
+            if (closeSent) {
+                return;
+            }
+            closeSent = true;
+            open = false;
+            closeSentAt = System.currentTimeMillis();
+            wake = enqueue(frame(OP_CLOSE, false, closePayload(code, reason)));
+        }
+        if (wake) {
+            transport.flush();
+        }
+    }
+
+    // Called with frames held; returns true when the transport has to start writing.
+    private boolean enqueue(byte[] frame) {
+        frames.add(frame);
+        queued += frame.length;
+        if (writing) {
+            return false;
+        }
+        writing = true;
+        return true;
+    }
+
+    byte[] poll() {
+        synchronized (frames) {
+            byte[] frame = frames.poll();
+            if (frame == null) {
+                writing = false;
+                return null;
+            }
+            queued -= frame.length;
+            return frame;
+        }
+    }
+
+    boolean isFinished() {
+        synchronized (frames) {
+            return closeSent && (closeReceived || failed);
+        }
+    }
+
+    boolean acceptsInput() {
+        synchronized (events) {
+            inputPaused = pendingInput >= config.webSocketMaxQueuedBytes;
+            return !inputPaused;
+        }
+    }
+
+    // Returns false once the peer stopped answering pings or never completed a close handshake.
+    boolean tick(long now) {
+        long closing = closeSentAt;
+        if (closing > 0) {
+            return now - closing <= config.readTimeoutMs;
+        }
+        int interval = config.webSocketPingIntervalMs;
+        if (interval <= 0) {
+            return true;
+        }
+        long ping = pingSentAt;
+        if (ping > 0) {
+            return now - ping <= interval;
+        }
+        if (now - lastReceived >= interval) {
+            pingSentAt = now;
+            sendControl(OP_PING, EMPTY);
+        }
+        return true;
+    }
+
+    void closed() {
+        open = false;
+        synchronized (frames) {
+            closeSent = true;
+            frames.clear();
+            queued = 0;
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+        synchronized (inflaterLock) {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+        deliverClose(ABNORMAL_CLOSURE, "");
+    }
+
+    void receive(byte[] data, int offset, int length) {
+        lastReceived = System.currentTimeMillis();
+        pingSentAt = 0;
+        if (inputClosed) {
+            return;
+        }
+        if (inputCount + length > input.length) {
+            input = Arrays.copyOf(input, Math.max(input.length * 2, inputCount + length));
+        }
+        System.arraycopy(data, offset, input, inputCount, length);
+        inputCount += length;
+        int at = 0;
+        int consumed;
+        while (!inputClosed && (consumed = readFrame(at)) > 0) {
+            at += consumed;
+        }
+        if (inputClosed) {
+            inputCount = 0;
+            return;
+        }
+        inputCount -= at;
+        if (inputCount < KEPT_BUFFER_BYTES && input.length > KEPT_BUFFER_BYTES) {
+            input = Arrays.copyOfRange(input, at, at + Math.max(1024, inputCount));
+        } else if (at > 0) {
+            System.arraycopy(input, at, input, 0, inputCount);
+        }
+    }
+
+    // Returns the bytes used by one complete frame, or 0 while the frame is still incomplete.
+    private int readFrame(int at) {
+        int available = inputCount - at;
+        if (available < 2) {
+            return 0;
+        }
+        int first = input[at] & 0xff;
+        int second = input[at + 1] & 0xff;
+        int header = 2;
+        long length = second & 0x7f;
+        if (length == 126) {
+            if (available < 4) {
+                return 0;
+            }
+            length = (input[at + 2] & 0xff) << 8 | (input[at + 3] & 0xff);
+            header = 4;
+        } else if (length == 127) {
+            if (available < 10) {
+                return 0;
+            }
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = length << 8 | (input[at + 2 + i] & 0xff);
+            }
+            header = 10;
+        }
+        boolean fin = (first & 0x80) != 0;
+        boolean rsv1 = (first & 0x40) != 0;
+        int opcode = first & 0x0f;
+        // Refuse bad frames from the header alone so an oversized payload is never buffered.
+        if ((first & 0x30) != 0 || (second & 0x80) == 0) {
+            fail(PROTOCOL_ERROR, "Bad frame");
+            return 0;
+        }
+        if (opcode >= OP_CLOSE ? opcode > OP_PONG || !fin || rsv1 || length > 125 : opcode > OP_BINARY) {
+            fail(PROTOCOL_ERROR, "Bad frame");
+            return 0;
+        }
+        if (length < 0 || length > config.webSocketMaxMessageBytes) {
+            fail(MESSAGE_TOO_BIG, "Message too big");
+            return 0;
+        }
+        int size = (int) length;
+        if (available < header + 4 + size) {
+            return 0;
+        }
+        int mask = at + header;
+        int payload = mask + 4;
+        for (int i = 0; i < size; i++) {
+            input[payload + i] ^= input[mask + (i & 3)];
+        }
+        onFrame(fin, rsv1, opcode, payload, size);
+        return header + 4 + size;
+    }
+
+    private void onFrame(boolean fin, boolean rsv1, int opcode, int offset, int length) {
+        if (opcode == OP_CLOSE) {
+            onClose(offset, length);
+            return;
+        }
+        if (opcode == OP_PING) {
+            sendControl(OP_PONG, Arrays.copyOfRange(input, offset, offset + length));
+            return;
+        }
+        if (opcode == OP_PONG) {
+            return;
+        }
+        if (opcode == OP_CONTINUATION) {
+            if (messageOpcode < 0 || rsv1) {
+                fail(PROTOCOL_ERROR, "Unexpected continuation");
+                return;
+            }
+        } else {
+            if (messageOpcode >= 0 || (rsv1 && !deflate)) {
+                fail(PROTOCOL_ERROR, "Unexpected frame");
+                return;
+            }
+            messageOpcode = opcode;
+            messageCompressed = rsv1;
+        }
+        int buffered = message != null ? message.size() : 0;
+        if (buffered + length > config.webSocketMaxMessageBytes) {
+            fail(MESSAGE_TOO_BIG, "Message too big");
+            return;
+        }
+        byte[] payload;
+        if (fin && buffered == 0) {
+            payload = Arrays.copyOfRange(input, offset, offset + length);
+        } else {
+            if (message == null) {
+                message = new ByteArrayOutputStream(Math.max(1024, length * 2));
+            }
+            message.write(input, offset, length);
+            if (!fin) {
+                return;
+            }
+            payload = message.toByteArray();
+            message = payload.length > KEPT_BUFFER_BYTES ? null : message;
+            if (message != null) {
+                message.reset();
+            }
+        }
+        int type = messageOpcode;
+        boolean compressed = messageCompressed;
+        messageOpcode = -1;
+        if (compressed) {
+            try {
+                payload = inflate(payload);
+            } catch (DataFormatException e) {
+                fail(INVALID_DATA, "Bad compressed data");
+                return;
+            }
+            if (payload == null) {
+                fail(MESSAGE_TOO_BIG, "Message too big");
+                return;
+            }
+        }
+        if (type == OP_TEXT) {
+            String text;
+            try {
+                text = decode(payload, 0, payload.length);
+            } catch (CharacterCodingException e) {
+                fail(INVALID_DATA, "Invalid UTF-8");
+                return;
+            }
+            deliver(() -> handler.onText(this, text), payload.length);
+        } else {
+            byte[] data = payload;
+            deliver(() -> handler.onBinary(this, data), payload.length);
+        }
+    }
+
+    private void onClose(int offset, int length) {
+        int code = NO_STATUS;
+        String reason = "";
+        if (length == 1) {
+            fail(PROTOCOL_ERROR, "Bad close frame");
+            return;
+        }
+        if (length >= 2) {
+            code = (input[offset] & 0xff) << 8 | (input[offset + 1] & 0xff);
+            boolean valid = (code >= NORMAL_CLOSURE && code <= 1003) || (code >= INVALID_DATA && code <= 1014)
+                    || (code >= 3000 && code <= 4999);
+            if (!valid) {
+                fail(PROTOCOL_ERROR, "Bad close code");
+                return;
+            }
+            try {
+                reason = decode(input, offset + 2, length - 2);
+            } catch (CharacterCodingException e) {
+                fail(INVALID_DATA, "Invalid UTF-8");
+                return;
+            }
+        }
+        inputClosed = true;
+        synchronized (frames) {
+            closeReceived = true;
+        }
+        sendClose(code == NO_STATUS ? -1 : code, "");
+        deliverClose(code, reason);
+        closeIfDone();
+    }
+
+    private void fail(int code, String reason) {
+        inputClosed = true;
+        synchronized (frames) {
+            failed = true;
+        }
+        sendClose(code, reason);
+        deliverClose(code, reason);
+        closeIfDone();
+    }
+
+    // The transport closes the socket once the close frame is written; this covers a queue that already drained.
+    private void closeIfDone() {
+        synchronized (frames) {
+            if (writing || !closeSent) {
+                return;
+            }
+        }
+        transport.close();
+    }
+
+    private static byte[] closePayload(int code, String reason) {
+        if (code < 0) {
+            return EMPTY;
+        }
+        byte[] text = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        int keep = text.length;
+        if (keep > MAX_REASON_BYTES) {
+            keep = MAX_REASON_BYTES;
+            while (keep > 0 && (text[keep] & 0xc0) == 0x80) {
+                keep--;
+            }
+        }
+        byte[] payload = new byte[2 + keep];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, keep);
+        return payload;
+    }
+
+    private static byte[] frame(int opcode, boolean compressed, byte[] payload) {
+        int length = payload.length;
+        int header = length < 126 ? 2 : length <= 0xffff ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | (compressed ? 0x40 : 0) | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length <= 0xffff) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 4; i++) {
+                frame[6 + i] = (byte) (length >>> (24 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, header, length);
+        return frame;
+    }
+
+    private static String decode(byte[] data, int offset, int length) throws CharacterCodingException {
+        return StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, offset, length))
+                .toString();
+    }
+
+    // Called with frames held, so messages are compressed in the order they are queued. Every deflated
+    // message must be sent as is: the client's inflater shares the window.
+    private byte[] deflate(byte[] payload) {
+        if (deflater == null) {
+            deflater = new Deflater(config.compressionLevel, true);
+        }
+        deflater.setInput(payload);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length / 2 + 64);
+        byte[] chunk = new byte[Math.min(payload.length + 64, READ_BUFFER_BYTES)];
+        int written;
+        do {
+            written = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            output.write(chunk, 0, written);
+        } while (written == chunk.length);
+        if (deflateReset) {
+            deflater.reset();
+        }
+        byte[] deflated = output.toByteArray();
+        // RFC 7692 drops the empty block that ends every sync flush.
+        return Arrays.copyOf(deflated, Math.max(0, deflated.length - DEFLATE_TAIL.length));
+    }
+
+    private byte[] inflate(byte[] payload) throws DataFormatException {
+        synchronized (inflaterLock) {
+            if (!open) {
+                return EMPTY;
+            }
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            byte[] data = Arrays.copyOf(payload, payload.length + DEFLATE_TAIL.length);
+            System.arraycopy(DEFLATE_TAIL, 0, data, payload.length, DEFLATE_TAIL.length);
+            inflater.setInput(data);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length * 3 + 64);
+            byte[] chunk = new byte[READ_BUFFER_BYTES];
+            int read;
+            while ((read = inflater.inflate(chunk)) > 0 || !(inflater.needsInput() || inflater.finished())) {
+                if (inflater.needsDictionary()) {
+                    throw new DataFormatException("Preset dictionary");
+                }
+                output.write(chunk, 0, read);
+                if (output.size() > config.webSocketMaxMessageBytes) {
+                    return null;
+                }
+            }
+            if (inflater.finished()) {
+                inflater.reset();
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private void deliverClose(int code, String reason) {
+        open = false;
+        if (closeDelivered.compareAndSet(false, true)) {
+            deliver(() -> handler.onClose(this, code, reason), 0);
+        }
+    }
+
+    private void deliver(Runnable action, int size) {
+        synchronized (events) {
+            events.add(new Event(action, size));
+            pendingInput += size;
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            workers.execute(this::dispatch);
+        } catch (RejectedExecutionException ignored) {
+            // The server is stopping; run the remaining callbacks here so onClose is not lost.
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        for (int i = 0; i < DISPATCH_BATCH; i++) {
+            Event event;
+            synchronized (events) {
+                event = events.poll();
+                if (event == null) {
+                    dispatching = false;
+                    return;
+                }
+            }
+            try {
+                event.action.run();
+            } catch (RuntimeException ignored) {
+                // A failing callback must not stop the ones queued behind it.
+            }
+            if (event.size > 0) {
+                boolean resume;
+                synchronized (events) {
+                    pendingInput -= event.size;
+                    resume = inputPaused && pendingInput < config.webSocketMaxQueuedBytes;
+                    if (resume) {
+                        inputPaused = false;
+                    }
+                }
+                if (resume) {
+                    transport.resume();
+                }
+            }
+        }
+        // Hand the worker back between batches so a busy socket cannot hold it.
+        schedule();
+    }
+
+    private static final class Event {
+        final Runnable action;
+        final int size;
+
+        Event(Runnable action, int size) {
+            this.action = action;
+            this.size = size;
+        }
+    }
+
+    // Blocking sockets (and all TLS sockets) get a reader thread; writes drain on the worker pool.
+    static final class StreamTransport implements Transport, Runnable {
+        private final ShnetServer server;
+        private final ShnetWebSocket webSocket;
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private final byte[] buffered;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private boolean resumed;
+
+        StreamTransport(ShnetServer server, ShnetWebSocket webSocket, Socket socket, InputStream input,
+                        OutputStream output, byte[] buffered) {
+            this.server = server;
+            this.webSocket = webSocket;
+            this.socket = socket;
+            this.input = input;
+            this.output = output;
+            this.buffered = buffered;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[READ_BUFFER_BYTES];
+            try {
+                socket.setSoTimeout((int) TICK_MS);
+                webSocket.start(this, buffered);
+                while (!closed.get()) {
+                    if (!webSocket.tick(System.currentTimeMillis())) {
+                        return;
+                    }
+                    if (!webSocket.acceptsInput()) {
+                        awaitResume();
+                        continue;
+                    }
+                    int read;
+                    try {
+                        read = input.read(buffer);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    if (read < 0) {
+                        return;
+                    }
+                    webSocket.receive(buffer, 0, read);
+                }
+            } catch (IOException ignored) {
+                // The peer went away.
+            } finally {
+                close();
+            }
+        }
+
+        private synchronized void awaitResume() {
+            try {
+                if (!resumed) {
+                    wait(TICK_MS);
+                }
+                resumed = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+
+        @Override
+        public synchronized void resume() {
+            resumed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void flush() {
+            try {
+                webSocket.workers.execute(this::drain);
+            } catch (RejectedExecutionException ignored) {
+                close();
+            }
+        }
+
+        private void drain() {
+            try {
+                byte[] frame;
+                while ((frame = webSocket.poll()) != null) {
+                    synchronized (output) {
+                        output.write(frame);
+                        if (webSocket.queuedBytes() == 0) {
+                            output.flush();
+                        }
+                    }
+                }
+                if (webSocket.isFinished()) {
+                    close();
+                }
+            } catch (IOException ignored) {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Ignore close errors.
+            }
+            server.connectionClosed(socket);
+            webSocket.closed();
+        }
+    }
+}
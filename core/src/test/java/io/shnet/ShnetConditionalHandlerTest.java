@@ -0,0 +1,121 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class ShnetConditionalHandlerTest {
+    private static final String ETAG = "\"catalog-7\"";
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Shnet.Handler catalog = request -> {
+        calls.incrementAndGet();
+        return Shnet.Response.text(200, "application/json", "[]");
+    };
+
+    @Test
+    void answersMatchingEtagWithoutCallingHandler() {
+        Shnet.Handler handler = Shnet.conditional(request -> ETAG, catalog);
+        Shnet.Response response = handler.handle(request("GET", "if-none-match", "\"other\", " + ETAG));
+        assertEquals(304, response.statusCode);
+        assertEquals(ETAG, response.header("ETag"));
+        assertEquals(0, response.body.length);
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    void answersUnmodifiedDateWithoutCallingHandler() {
+        Shnet.Handler handler = Shnet.conditional(validator(null), catalog);
+        Shnet.Response response = handler.handle(
+                request("HEAD", "if-modified-since", ShnetServer.formatHttpDate(LAST_MODIFIED)));
+        assertEquals(304, response.statusCode);
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    void tagsHandlerResponseWhenStale() {
+        Shnet.Handler handler = Shnet.conditional(validator(ETAG), catalog);
+        Shnet.Response response = handler.handle(request("GET", "if-none-match", "\"catalog-6\""));
+        assertEquals(200, response.statusCode);
+        assertEquals(ETAG, response.header("ETag"));
+        assertEquals(ShnetServer.formatHttpDate(LAST_MODIFIED), response.header("Last-Modified"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void passesOtherMethodsThrough() {
+        Shnet.Handler handler = Shnet.conditional(request -> ETAG, catalog);
+        Shnet.Response response = handler.handle(request("POST", "if-none-match", ETAG));
+        assertEquals(200, response.statusCode);
+        assertNull(response.header("ETag"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void tagsAsyncHandlerResponse() {
+        Shnet.Router router = Shnet.Router.builder().get("/catalog", catalog).build();
+        Shnet.AsyncHandler handler = (Shnet.AsyncHandler) Shnet.conditional(request -> ETAG, router);
+        AtomicReference<Shnet.Response> completed = new AtomicReference<>();
+        handler.handle(request("GET", "if-none-match", "\"catalog-6\""), responder(completed));
+        assertEquals(ETAG, completed.get().header("ETag"));
+        handler.handle(request("GET", "if-none-match", ETAG), responder(completed));
+        assertEquals(304, completed.get().statusCode);
+        assertEquals(1, calls.get());
+    }
+
+    private static Shnet.Validator validator(String etag) {
+        return new Shnet.Validator() {
+            @Override
+            public String etag(Shnet.Request request) {
+                return etag;
+            }
+
+            @Override
+            public long lastModified(Shnet.Request request) {
+                return LAST_MODIFIED;
+            }
+        };
+    }
+
+    private static Shnet.Request request(String method, String header, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(header, value);
+        return new Shnet.Request(method, "/catalog", "", headers, new byte[0]);
+    }
+
+    private static Shnet.Responder responder(AtomicReference<Shnet.Response> completed) {
+        return new Shnet.Responder() {
+            @Override
+            public boolean complete(Shnet.Response response) {
+                completed.set(response);
+                return true;
+            }
+
+            @Override
+            public boolean fail(Throwable error) {
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                return completed.get() != null;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public void onCancel(Runnable callback) {
+            }
+        };
+    }
+}
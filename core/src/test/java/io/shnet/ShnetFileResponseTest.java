@@ -0,0 +1,149 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ShnetFileResponseTest {
+    private static final long LAST_MODIFIED = 1_700_000_000_123L;
+    private static final byte[] CONTENT = new byte[100];
+
+    static {
+        for (int i = 0; i < CONTENT.length; i++) {
+            CONTENT[i] = (byte) ('A' + i % 26);
+        }
+    }
+
+    @Test
+    void servesSingleRange() {
+        ShnetFileResponse plan = plan("bytes=10-19", null);
+        assertEquals(206, plan.response.statusCode);
+        assertEquals("bytes 10-19/100", plan.response.header("Content-Range"));
+        assertEquals(10, plan.contentLength);
+        assertEquals(ascii(10, 20), body(plan));
+    }
+
+    @Test
+    void servesSuffixRanges() {
+        assertEquals("bytes 90-99/100", plan("bytes=-10", null).response.header("Content-Range"));
+        assertEquals("bytes 0-99/100", plan("bytes=-500", null).response.header("Content-Range"));
+        assertEquals("bytes 95-99/100", plan("bytes=95-", null).response.header("Content-Range"));
+        assertEquals("bytes 90-99/100", plan("bytes=90-99999999999999999999", null).response.header("Content-Range"));
+    }
+
+    @Test
+    void coalescesOverlappingAndAdjacentRanges() {
+        ShnetFileResponse plan = plan("bytes=20-29, 0-9,5-19", null);
+        assertEquals(206, plan.response.statusCode);
+        assertEquals("bytes 0-29/100", plan.response.header("Content-Range"));
+        assertEquals(ascii(0, 30), body(plan));
+    }
+
+    @Test
+    void framesMultipartByteranges() {
+        ShnetFileResponse plan = plan("bytes=50-54,0-4", null);
+        assertEquals(206, plan.response.statusCode);
+        String type = plan.response.contentType;
+        assertTrue(type.startsWith("multipart/byteranges; boundary="));
+        String boundary = type.substring(type.indexOf('=') + 1);
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 50-54/100\r\n\r\n"
+                + ascii(50, 55)
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-4/100\r\n\r\n"
+                + ascii(0, 5)
+                + "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, body(plan));
+        assertEquals(expected.length(), plan.contentLength);
+        assertNull(plan.response.header("Content-Range"));
+    }
+
+    @Test
+    void capsNumberOfRanges() {
+        StringBuilder sixteen = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 16; i++) {
+            sixteen.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        ShnetFileResponse plan = plan(sixteen.toString(), null);
+        assertEquals(206, plan.response.statusCode);
+        assertEquals(2 * 16 + 1, plan.parts.size());
+        assertEquals(200, plan(sixteen + ",40-40", null).response.statusCode);
+    }
+
+    @Test
+    void rejectsUnsatisfiableRanges() {
+        for (String range : new String[] {"bytes=100-", "bytes=200-300", "bytes=-0", "bytes=150-160,100-"}) {
+            ShnetFileResponse plan = plan(range, null);
+            assertEquals(416, plan.response.statusCode, range);
+            assertEquals("bytes */100", plan.response.header("Content-Range"), range);
+        }
+        // One satisfiable range is enough.
+        assertEquals("bytes 0-0/100", plan("bytes=500-600,0-0", null).response.header("Content-Range"));
+    }
+
+    @Test
+    void ignoresMalformedRanges() {
+        for (String range : new String[] {"bytes=+5-10", "bytes=5-+10", "bytes=--5", "bytes=-+5", "bytes=a-b",
+                "bytes=10-5", "bytes=5", "items=0-5", "bytes= 5 - 10"}) {
+            ShnetFileResponse plan = plan(range, null);
+            assertEquals(200, plan.response.statusCode, range);
+            assertEquals(100, plan.contentLength, range);
+            assertEquals("bytes", plan.response.header("Accept-Ranges"), range);
+        }
+    }
+
+    @Test
+    void honoursIfRange() {
+        String etag = ShnetFileResponse.etag(CONTENT.length, LAST_MODIFIED);
+        assertEquals(206, plan("bytes=0-9", etag).response.statusCode);
+        assertEquals(200, plan("bytes=0-9", "\"other\"").response.statusCode);
+        assertEquals(200, plan("bytes=0-9", "W/" + etag).response.statusCode);
+        assertEquals(206, plan("bytes=0-9", ShnetServer.formatHttpDate(LAST_MODIFIED)).response.statusCode);
+        assertEquals(200, plan("bytes=0-9", ShnetServer.formatHttpDate(LAST_MODIFIED - 5000)).response.statusCode);
+    }
+
+    @Test
+    void addsValidatorsToWholeResponse() {
+        ShnetFileResponse plan = plan(null, null);
+        assertEquals(200, plan.response.statusCode);
+        assertEquals(ShnetFileResponse.etag(CONTENT.length, LAST_MODIFIED), plan.response.header("ETag"));
+        assertEquals(ShnetServer.formatHttpDate(LAST_MODIFIED), plan.response.header("Last-Modified"));
+    }
+
+    private static ShnetFileResponse plan(String range, String ifRange) {
+        Map<String, String> headers = new HashMap<>();
+        if (range != null) {
+            headers.put("range", range);
+        }
+        if (ifRange != null) {
+            headers.put("if-range", ifRange);
+        }
+        Shnet.Response response = Shnet.Response.bytes(200, "text/plain", CONTENT);
+        return ShnetFileResponse.plan(headers, response, CONTENT.length, LAST_MODIFIED);
+    }
+
+    private static String body(ShnetFileResponse plan) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ShnetFileResponse.Part part : plan.parts) {
+            if (part.bytes != null) {
+                out.write(part.bytes, 0, part.bytes.length);
+            } else {
+                out.write(CONTENT, (int) part.position, (int) part.count);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static String ascii(int from, int to) {
+        return new String(CONTENT, from, to - from, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,131 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ShnetHpackTest {
+    // RFC 7541 Appendix C.3 and C.4: three requests on one connection, without and with Huffman.
+    private static final List<String> REQUEST_1 = Arrays.asList(
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    private static final List<String> REQUEST_2 = Arrays.asList(
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+            "cache-control", "no-cache");
+    private static final List<String> REQUEST_3 = Arrays.asList(
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+            "custom-key", "custom-value");
+
+    @Test
+    void integersMatchAppendixC1() throws ProtocolException {
+        assertArrayEquals(hex("0a"), writeInt(5, 10));
+        assertArrayEquals(hex("1f9a0a"), writeInt(5, 1337));
+        assertArrayEquals(hex("2a"), writeInt(8, 42));
+        assertEquals(1337, ShnetHpack.readInt(hex("1f9a0a"), 3, new int[] {0}, 5));
+    }
+
+    @Test
+    void decodesLiteralWithIndexingFromAppendixC21() throws ProtocolException {
+        byte[] block = hex("400a637573746f6d2d6b65790d637573746f6d2d686561646572");
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decoder.decode(block, block.length));
+        // The field is now dynamic index 62.
+        assertEquals(Arrays.asList("custom-key", "custom-header"), decoder.decode(hex("be"), 1));
+    }
+
+    @Test
+    void decodesRequestsWithoutHuffmanFromAppendixC3() throws ProtocolException {
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        assertEquals(REQUEST_1, decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(REQUEST_2, decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(REQUEST_3, decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+    }
+
+    @Test
+    void decodesRequestsWithHuffmanFromAppendixC4() throws ProtocolException {
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        assertEquals(REQUEST_1, decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(REQUEST_2, decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(REQUEST_3, decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    void encodesRequestsAsAppendixC4() {
+        ShnetHpack.Encoder encoder = new ShnetHpack.Encoder();
+        assertArrayEquals(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff"), encoder.encode(REQUEST_1));
+        assertArrayEquals(hex("828684be5886a8eb10649cbf"), encoder.encode(REQUEST_2));
+        assertArrayEquals(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"), encoder.encode(REQUEST_3));
+    }
+
+    @Test
+    void roundTripsResponsesThroughTheDynamicTable() throws ProtocolException {
+        ShnetHpack.Encoder encoder = new ShnetHpack.Encoder();
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        List<String> fields = Arrays.asList(
+                ":status", "200", "content-type", "application/json; charset=utf-8",
+                "cache-control", "max-age=60", "x-request", "caf\u00e9 \u00ff", "set-cookie", "id=1",
+                "content-length", "1234");
+        byte[] first = encoder.encode(fields);
+        assertEquals(fields, decoder.decode(first, first.length));
+        byte[] second = encoder.encode(fields);
+        assertEquals(fields, decoder.decode(second, second.length));
+        assertTrue(second.length < first.length, "second block should reuse indexed fields");
+    }
+
+    @Test
+    void roundTripsAfterTableSizeChange() throws ProtocolException {
+        ShnetHpack.Encoder encoder = new ShnetHpack.Encoder();
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        List<String> fields = Arrays.asList(":status", "200", "x-long", new String(new char[200]).replace('\0', 'v'));
+        byte[] block = encoder.encode(fields);
+        assertEquals(fields, decoder.decode(block, block.length));
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(100);
+        block = encoder.encode(fields);
+        assertEquals(0x20, block[0] & 0xff, "smallest size is signalled first");
+        assertEquals(fields, decoder.decode(block, block.length));
+    }
+
+    @Test
+    void rejectsMalformedBlocks() {
+        ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+        // Dynamic index 62 with an empty table.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "be"));
+        // Table size update above the advertised maximum.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "3fe21f"));
+        // Table size update after a field.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "8220"));
+        // String length runs past the block.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "400a6375"));
+        // Integer continuation that never ends.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "ffffffffffff"));
+        // Huffman padding longer than seven bits.
+        assertThrows(ProtocolException.class, () -> decode(decoder, "418df1e3c2e5f23a6ba0ab90f4ffff"));
+    }
+
+    private static List<String> decode(ShnetHpack.Decoder decoder, String block) throws ProtocolException {
+        byte[] bytes = hex(block);
+        return decoder.decode(bytes, bytes.length);
+    }
+
+    private static byte[] writeInt(int prefix, int value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ShnetHpack.writeInt(out, 0, prefix, value);
+        return out.toByteArray();
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
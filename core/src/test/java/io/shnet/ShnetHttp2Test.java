@@ -0,0 +1,200 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Speaks h2c with prior knowledge to a server on loopback, one raw frame at a time.
+class ShnetHttp2Test {
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int SETTINGS = 0x4;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int LARGE_BODY = 100_000;
+
+    private ShnetServer server;
+    private Socket socket;
+    private DataInputStream input;
+    private OutputStream output;
+    private final ShnetHpack.Encoder encoder = new ShnetHpack.Encoder();
+    private final ShnetHpack.Decoder decoder = new ShnetHpack.Decoder(ShnetHpack.DEFAULT_TABLE_SIZE);
+
+    @BeforeEach
+    void start() throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Shnet.Config config = Shnet.Config.builder(port, 0, "test", "test")
+                .setBindMode(Shnet.BindMode.IPV4_ONLY)
+                .setHttp2(true)
+                .build();
+        byte[] large = new byte[LARGE_BODY];
+        Arrays.fill(large, (byte) 'x');
+        server = new ShnetServer(null, request -> "/large".equals(request.path)
+                ? Shnet.Response.bytes(200, "application/octet-stream", large)
+                : Shnet.Response.text(200, "text/plain; charset=utf-8", "hello " + request.path), config);
+        server.start();
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        input = new DataInputStream(socket.getInputStream());
+        output = new BufferedOutputStream(socket.getOutputStream());
+        output.write(ShnetHttp2.PREFACE);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    void servesPriorKnowledgeGet() throws IOException {
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        writeHeaders(1, "/greeting");
+        Frame headers = next(HEADERS);
+        assertEquals(1, headers.stream);
+        List<String> fields = decoder.decode(headers.payload, headers.payload.length);
+        assertEquals(":status", fields.get(0));
+        assertEquals("200", fields.get(1));
+        assertTrue(fields.contains("text/plain; charset=utf-8"));
+        Frame data = next(DATA);
+        assertEquals(1, data.stream);
+        assertTrue((data.flags & FLAG_END_STREAM) != 0);
+        assertArrayEquals("hello /greeting".getBytes(StandardCharsets.UTF_8), data.payload);
+    }
+
+    @Test
+    void rejectsFrameLargerThanMaxFrameSize() throws IOException {
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        writeFrame(HEADERS, FLAG_END_HEADERS, 1, new byte[16385]);
+        assertEquals(FRAME_SIZE_ERROR, goAwayCode());
+    }
+
+    @Test
+    void rejectsOversizedHeaderBlock() throws IOException {
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        byte[] fragment = new byte[16384];
+        writeFrame(HEADERS, 0, 1, fragment);
+        for (int i = 0; i < 2 * ShnetRequestParser.MAX_HEAD_BYTES / fragment.length; i++) {
+            writeFrame(CONTINUATION, 0, 1, fragment);
+        }
+        assertEquals(PROTOCOL_ERROR, goAwayCode());
+    }
+
+    @Test
+    void respectsStreamAndConnectionWindows() throws IOException {
+        // SETTINGS_INITIAL_WINDOW_SIZE of 1000 for every stream.
+        writeFrame(SETTINGS, 0, 0, new byte[] {0, 4, 0, 0, 0x03, (byte) 0xe8});
+        writeHeaders(1, "/large");
+        next(HEADERS);
+        assertEquals(1000, dataUntilQuiet());
+        // The stream window is now larger than the connection's 65535.
+        writeFrame(WINDOW_UPDATE, 0, 1, increment(LARGE_BODY));
+        assertEquals(65535 - 1000, dataUntilQuiet());
+        writeFrame(WINDOW_UPDATE, 0, 0, increment(LARGE_BODY));
+        assertEquals(LARGE_BODY - 65535, dataUntilQuiet());
+    }
+
+    @Test
+    void rejectsConnectionWindowOverflow() throws IOException {
+        writeFrame(SETTINGS, 0, 0, new byte[0]);
+        writeFrame(WINDOW_UPDATE, 0, 0, increment(Integer.MAX_VALUE));
+        assertEquals(FLOW_CONTROL_ERROR, goAwayCode());
+    }
+
+    private void writeHeaders(int stream, String path) throws IOException {
+        writeFrame(HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, stream, encoder.encode(Arrays.asList(
+                ":method", "GET", ":scheme", "http", ":authority", "localhost", ":path", path)));
+    }
+
+    private void writeFrame(int type, int flags, int stream, byte[] payload) throws IOException {
+        output.write(new byte[] {
+                (byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags,
+                (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+        output.write(payload);
+        output.flush();
+    }
+
+    private static byte[] increment(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private Frame read() throws IOException {
+        int length = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+        Frame frame = new Frame(input.readUnsignedByte(), input.readUnsignedByte(), input.readInt(), new byte[length]);
+        input.readFully(frame.payload);
+        return frame;
+    }
+
+    private Frame next(int type) throws IOException {
+        while (true) {
+            Frame frame = read();
+            if (frame.type == type) {
+                return frame;
+            }
+        }
+    }
+
+    private int goAwayCode() throws IOException {
+        Frame frame = next(GOAWAY);
+        return ByteBuffer.wrap(frame.payload).getInt(4);
+    }
+
+    // Counts DATA bytes until the server stops sending, either blocked on a window or done.
+    private int dataUntilQuiet() throws IOException {
+        socket.setSoTimeout(300);
+        int received = 0;
+        try {
+            while (true) {
+                Frame frame = read();
+                if (frame.type == DATA) {
+                    received += frame.payload.length;
+                }
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            return received;
+        } finally {
+            socket.setSoTimeout(5000);
+        }
+    }
+
+    private static final class Frame {
+        final int type;
+        final int flags;
+        final int stream;
+        final byte[] payload;
+
+        Frame(int type, int flags, int stream, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.stream = stream;
+            this.payload = payload;
+        }
+    }
+}
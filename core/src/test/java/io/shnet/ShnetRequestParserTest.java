@@ -0,0 +1,206 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class ShnetRequestParserTest {
+    @Test
+    void parsesHeadSplitAcrossFills() throws IOException {
+        ShnetRequestParser parser = new ShnetRequestParser();
+        InputStream input = new ChunkedInput(ascii("GET /items?page=2 HTTP/1.1\r\nHost: node\r\nX-Trace:  abc \r\n\r\n"), 1);
+        ShnetServer.RequestHead head = null;
+        int fills = 0;
+        while (head == null) {
+            assertTrue(parser.fill(input));
+            fills++;
+            head = parser.parseHead();
+        }
+        assertTrue(fills > 1);
+        assertEquals("GET", head.method);
+        assertEquals("/items", head.path);
+        assertEquals("page=2", head.query);
+        assertEquals("HTTP/1.1", head.version);
+        assertEquals("node", head.headers.get("host"));
+        assertEquals("abc", head.headers.get("x-trace"));
+        assertTrue(parser.isEmpty());
+    }
+
+    @Test
+    void acceptsBareLineFeeds() throws IOException {
+        ShnetServer.RequestHead head = parseOne("POST /form HTTP/1.0\nContent-Type: text/plain\nContent-Length: 3\n\n");
+        assertEquals("POST", head.method);
+        assertEquals("HTTP/1.0", head.version);
+        assertEquals("text/plain", head.headers.get("content-type"));
+        assertEquals(3, head.contentLength());
+    }
+
+    @Test
+    void skipsBlankLinesBetweenPipelinedRequests() throws IOException {
+        ShnetRequestParser parser = parser("\r\nGET /1 HTTP/1.1\r\n\r\n\r\n\r\nGET /2 HTTP/1.1\n\nGET /3 HTTP/1.1\r\n");
+        assertEquals("/1", parser.parseHead().path);
+        assertEquals("/2", parser.parseHead().path);
+        assertNull(parser.parseHead());
+        assertEquals(17, parser.buffered());
+    }
+
+    @Test
+    void keepsBodyBytesBuffered() throws IOException {
+        ShnetRequestParser parser = parser("PUT /blob HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET / HTTP/1.1\r\n\r\n");
+        assertEquals(5, parser.parseHead().contentLength());
+        byte[] body = new byte[5];
+        assertEquals(5, parser.take(body, 0, body.length));
+        assertEquals("hello", new String(body, StandardCharsets.US_ASCII));
+        assertEquals("/", parser.parseHead().path);
+        assertTrue(parser.isEmpty());
+    }
+
+    @Test
+    void drainReportsUnreusableConnectionInsteadOfThrowing() {
+        ShnetBodyStream finished = new ShnetBodyStream(new ShnetRequestParser(), new ChunkedInput(new byte[10], 3), 10);
+        assertTrue(finished.drain(ShnetServer.MAX_DRAIN_BYTES));
+        ShnetBodyStream truncated = new ShnetBodyStream(new ShnetRequestParser(), new ChunkedInput(new byte[4], 3), 10);
+        assertFalse(truncated.drain(ShnetServer.MAX_DRAIN_BYTES));
+        InputStream stalled = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        };
+        assertFalse(new ShnetBodyStream(new ShnetRequestParser(), stalled, 10).drain(ShnetServer.MAX_DRAIN_BYTES));
+    }
+
+    @Test
+    void enforcesLineLimit() throws IOException {
+        String longest = "GET /" + repeat('a', ShnetServer.MAX_LINE_BYTES - 14) + " HTTP/1.1";
+        assertEquals(ShnetServer.MAX_LINE_BYTES, longest.length());
+        assertNotNull(parseOne(longest + "\r\n\r\n"));
+        ProtocolException e = assertThrows(ProtocolException.class, () -> parseOne("GET /a" + longest + "\r\n\r\n"));
+        assertEquals("Line too long", e.getMessage());
+    }
+
+    @Test
+    void enforcesHeadLimitBeforeTheHeadEnds() throws IOException {
+        ShnetRequestParser parser = new ShnetRequestParser();
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (head.length() < ShnetRequestParser.MAX_HEAD_BYTES + 1024) {
+            head.append("X-Filler: ").append(repeat('f', 1000)).append("\r\n");
+        }
+        InputStream input = new ChunkedInput(ascii(head.toString()), 4096);
+        ProtocolException e = assertThrows(ProtocolException.class, () -> {
+            while (parser.fill(input)) {
+                assertNull(parser.parseHead());
+            }
+        });
+        assertEquals("Header too large", e.getMessage());
+    }
+
+    @Test
+    void enforcesHeaderBytesOfCompleteHead() {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        while (head.length() < ShnetServer.MAX_HEADER_BYTES + 1024) {
+            head.append("X-Filler: ").append(repeat('f', 1000)).append("\r\n");
+        }
+        assertThrows(ProtocolException.class, () -> parseOne(head + "\r\n"));
+    }
+
+    @Test
+    void compactsWhenPipelinedHeadCrossesInitialCapacity() throws IOException {
+        // The first head leaves the second straddling the end of the initial 8 KB buffer.
+        String first = "GET /first HTTP/1.1\r\nX-Pad: " + repeat('p', 8140) + "\r\n\r\n";
+        String second = "GET /second?q=1 HTTP/1.1\r\nHost: node\r\n\r\n";
+        ShnetRequestParser parser = new ShnetRequestParser();
+        InputStream input = new ChunkedInput(ascii(first + second), 8192);
+        assertTrue(parser.fill(input));
+        assertEquals("/first", parser.parseHead().path);
+        assertNull(parser.parseHead());
+        assertTrue(parser.fill(input));
+        ShnetServer.RequestHead head = parser.parseHead();
+        assertEquals("/second", head.path);
+        assertEquals("q=1", head.query);
+        assertEquals("node", head.headers.get("host"));
+        assertTrue(parser.isEmpty());
+    }
+
+    @Test
+    void growsForHeadLargerThanInitialCapacity() throws IOException {
+        String pad = repeat('p', 6000);
+        ShnetServer.RequestHead head = parseOne("GET /big HTTP/1.1\r\nX-One: " + pad + "\r\nX-Two: " + pad + "\r\n\r\n");
+        assertEquals("/big", head.path);
+        assertEquals(pad, head.headers.get("x-one"));
+        assertEquals(pad, head.headers.get("x-two"));
+    }
+
+    @Test
+    void decodesNonAsciiBytesAsReplacement() throws IOException {
+        byte[] request = ascii("GET /caf? HTTP/1.1\r\n\r\n");
+        request[8] = (byte) 0xe9;
+        ShnetRequestParser parser = new ShnetRequestParser();
+        assertTrue(parser.fill(new ChunkedInput(request, request.length)));
+        assertEquals("/caf\ufffd", parser.parseHead().path);
+    }
+
+    private static ShnetServer.RequestHead parseOne(String request) throws IOException {
+        ShnetServer.RequestHead head = parser(request).parseHead();
+        assertNotNull(head);
+        return head;
+    }
+
+    private static ShnetRequestParser parser(String request) throws IOException {
+        ShnetRequestParser parser = new ShnetRequestParser();
+        InputStream input = new ChunkedInput(ascii(request), Integer.MAX_VALUE);
+        while (parser.buffered() < request.length()) {
+            assertTrue(parser.fill(input));
+        }
+        return parser;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class ChunkedInput extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        ChunkedInput(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (position == data.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, chunk), data.length - position);
+            System.arraycopy(data, position, target, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ShnetResponseCacheTest {
+    private static final Shnet.Response OK = Shnet.Response.text(200, "text/plain", "ok");
+
+    @Test
+    void storesPlainResponses() {
+        assertTrue(ShnetResponseCache.isStorable(OK));
+        assertTrue(ShnetResponseCache.isStorable(OK.withHeader("Cache-Control", "public, max-age=60")));
+        assertTrue(ShnetResponseCache.isStorable(OK.withHeader("Vary", "Accept-Language")));
+    }
+
+    @Test
+    void refusesResponsesForOneClient() {
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Set-Cookie", "id=1")));
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Cache-Control", "no-store")));
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Cache-Control", "max-age=0, No-Store")));
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Cache-Control", "private")));
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Cache-Control", "private=\"Set-Cookie\"")));
+        assertFalse(ShnetResponseCache.isStorable(OK.withHeader("Vary", "Accept, *")));
+    }
+}
@@ -0,0 +1,283 @@
+package io.shnet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+// Feeds client frames straight into ShnetWebSocket; callbacks run on the calling thread.
+class ShnetWebSocketTest {
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_CLOSE = 0x8;
+    private static final int MAX_MESSAGE_BYTES = 1024;
+    private static final byte[] MASK = {0x37, (byte) 0xfa, 0x21, 0x3d};
+
+    private final List<String> events = new ArrayList<>();
+    private final Shnet.WebSocketHandler echo = new Shnet.WebSocketHandler() {
+        @Override
+        public void onText(Shnet.WebSocket socket, String text) {
+            events.add("text:" + text);
+            socket.sendText(text);
+        }
+
+        @Override
+        public void onClose(Shnet.WebSocket socket, int code, String reason) {
+            events.add("close:" + code);
+        }
+    };
+    private final Shnet.Config config = Shnet.Config.builder(8723, 0, "test", "test")
+            .setWebSocketMaxMessageBytes(MAX_MESSAGE_BYTES)
+            .build();
+
+    @Test
+    void acceptsHandshakeWithRfc6455Key() {
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", ShnetWebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+        Shnet.Response response = ShnetWebSocket.accept(config, upgrade("permessage-deflate; client_max_window_bits"),
+                Shnet.Response.webSocket(echo), null);
+        assertEquals(101, response.statusCode);
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", response.header("Sec-WebSocket-Accept"));
+        assertEquals("websocket", response.header("Upgrade"));
+        assertEquals("permessage-deflate", response.header("Sec-WebSocket-Extensions"));
+    }
+
+    @Test
+    void refusesRequestWithoutUpgrade() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("sec-websocket-key", "dGhlIHNhbXBsZSBub25jZQ==");
+        headers.put("sec-websocket-version", "13");
+        Shnet.Request request = new Shnet.Request("GET", "/ws", "", headers, new byte[0]);
+        Shnet.Response response = ShnetWebSocket.accept(config, request, Shnet.Response.webSocket(echo), null);
+        assertEquals(426, response.statusCode);
+        assertNull(response.header("Sec-WebSocket-Accept"));
+    }
+
+    @Test
+    void echoesMaskedText() {
+        ShnetWebSocket socket = open(false);
+        receive(socket, masked(true, false, OP_TEXT, utf8("hello")));
+        assertEquals(Collections.singletonList("text:hello"), events);
+        assertArrayEquals(new byte[] {(byte) 0x81, 5, 'h', 'e', 'l', 'l', 'o'}, socket.poll());
+    }
+
+    @Test
+    void rejectsUnmaskedClientFrame() {
+        ShnetWebSocket socket = open(false);
+        byte[] frame = {(byte) 0x81, 2, 'h', 'i'};
+        socket.receive(frame, 0, frame.length);
+        assertEquals(Collections.singletonList("close:1002"), events);
+        assertEquals(1002, closeCode(socket.poll()));
+        assertFalse(socket.isOpen());
+    }
+
+    @Test
+    void rejectsOversizedFrameFromItsHeader() {
+        ShnetWebSocket socket = open(false);
+        // Only the header of a 1 MB frame: the payload never has to arrive for the refusal.
+        byte[] header = {(byte) 0x82, (byte) 0xff, 0, 0, 0, 0, 0, 0x10, 0, 0, MASK[0], MASK[1], MASK[2], MASK[3]};
+        socket.receive(header, 0, header.length);
+        assertEquals(Collections.singletonList("close:1009"), events);
+        assertEquals(1009, closeCode(socket.poll()));
+        byte[] more = new byte[64 * 1024];
+        socket.receive(more, 0, more.length);
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    void rejectsMessageOverLimitAcrossFragments() {
+        ShnetWebSocket socket = open(false);
+        receive(socket, masked(false, false, OP_TEXT, new byte[MAX_MESSAGE_BYTES - 10]));
+        receive(socket, masked(true, false, OP_CONTINUATION, new byte[20]));
+        assertEquals(Collections.singletonList("close:1009"), events);
+    }
+
+    @Test
+    void joinsUtf8SequenceSplitAcrossFragments() {
+        ShnetWebSocket socket = open(false);
+        byte[] text = utf8("caf\u00e9");
+        receive(socket, masked(false, false, OP_TEXT, Arrays.copyOf(text, 4)));
+        receive(socket, masked(true, false, OP_CONTINUATION, Arrays.copyOfRange(text, 4, text.length)));
+        assertEquals(Collections.singletonList("text:caf\u00e9"), events);
+    }
+
+    @Test
+    void rejectsInvalidUtf8InFragmentedText() {
+        ShnetWebSocket socket = open(false);
+        receive(socket, masked(false, false, OP_TEXT, new byte[] {'c', 'a', 'f', (byte) 0xc3}));
+        receive(socket, masked(true, false, OP_CONTINUATION, new byte[] {'('}));
+        assertEquals(Collections.singletonList("close:1007"), events);
+        assertEquals(1007, closeCode(socket.poll()));
+    }
+
+    @Test
+    void rejectsContinuationWithoutMessage() {
+        ShnetWebSocket socket = open(false);
+        receive(socket, masked(true, false, OP_CONTINUATION, utf8("x")));
+        assertEquals(Collections.singletonList("close:1002"), events);
+    }
+
+    @Test
+    void roundTripsDeflatedMessages() throws DataFormatException {
+        ShnetWebSocket socket = open(true);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Inflater inflater = new Inflater(true);
+        String text = String.join(" ", Collections.nCopies(40, "compressible"));
+        for (int round = 0; round < 2; round++) {
+            byte[] compressed = deflate(deflater, utf8(text));
+            // The second message arrives in two fragments; only the first carries RSV1.
+            if (round == 0) {
+                receive(socket, masked(true, true, OP_TEXT, compressed));
+            } else {
+                int half = compressed.length / 2;
+                receive(socket, masked(false, true, OP_TEXT, Arrays.copyOf(compressed, half)));
+                receive(socket, masked(true, false, OP_CONTINUATION, Arrays.copyOfRange(compressed, half, compressed.length)));
+            }
+            assertEquals("text:" + text, events.get(round));
+            byte[] frame = socket.poll();
+            assertEquals(0xc1, frame[0] & 0xff, "FIN, RSV1 and text");
+            int header = (frame[1] & 0x7f) == 126 ? 4 : 2;
+            byte[] payload = Arrays.copyOfRange(frame, header, frame.length);
+            assertTrue(payload.length < text.length());
+            assertEquals(text, new String(inflate(inflater, payload), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void answersCloseHandshake() {
+        ShnetWebSocket socket = open(false);
+        receive(socket, masked(true, false, OP_CLOSE, new byte[] {0x03, (byte) 0xe8}));
+        assertEquals(Collections.singletonList("close:1000"), events);
+        assertEquals(1000, closeCode(socket.poll()));
+        assertTrue(socket.isFinished());
+    }
+
+    private ShnetWebSocket open(boolean deflate) {
+        Shnet.Response response = Shnet.Response.webSocket(echo);
+        if (deflate) {
+            response = response.withHeader("Sec-WebSocket-Extensions", "permessage-deflate");
+        }
+        ShnetWebSocket socket = new ShnetWebSocket(config, new DirectExecutor(), upgrade(null), response);
+        socket.start(new Transport(), new byte[0]);
+        return socket;
+    }
+
+    private static Shnet.Request upgrade(String extensions) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("upgrade", "websocket");
+        headers.put("connection", "Upgrade");
+        headers.put("sec-websocket-key", "dGhlIHNhbXBsZSBub25jZQ==");
+        headers.put("sec-websocket-version", "13");
+        if (extensions != null) {
+            headers.put("sec-websocket-extensions", extensions);
+        }
+        return new Shnet.Request("GET", "/ws", "", headers, new byte[0]);
+    }
+
+    private static void receive(ShnetWebSocket socket, byte[] data) {
+        socket.receive(data, 0, data.length);
+    }
+
+    private static byte[] masked(boolean fin, boolean rsv1, int opcode, byte[] payload) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write((fin ? 0x80 : 0) | (rsv1 ? 0x40 : 0) | opcode);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        }
+        frame.write(MASK, 0, MASK.length);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ MASK[i & 3]);
+        }
+        return frame.toByteArray();
+    }
+
+    private static int closeCode(byte[] frame) {
+        assertEquals(0x80 | OP_CLOSE, frame[0] & 0xff);
+        return (frame[2] & 0xff) << 8 | (frame[3] & 0xff);
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.setInput(data);
+        byte[] buffer = new byte[4096];
+        int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(buffer, length - 4);
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] data) throws DataFormatException {
+        byte[] input = Arrays.copyOf(data, data.length + 4);
+        input[input.length - 2] = (byte) 0xff;
+        input[input.length - 1] = (byte) 0xff;
+        inflater.setInput(input);
+        byte[] buffer = new byte[4096];
+        return Arrays.copyOf(buffer, inflater.inflate(buffer));
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Transport implements ShnetWebSocket.Transport {
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class DirectExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}